@@ -1,5 +1,7 @@
 package org.extensiblecommands;
 
+import java.util.concurrent.CompletableFuture;
+
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -36,10 +38,10 @@ public class AbortableCommand extends DecoratorCommand {
 
     @Override
     public void abort() {
-        aborted = true;
+        // Register the abort before aborting the operation, so that the command is aborted when the operation returns
+        super.abort();
         if (abortDelegate != null)
             abortDelegate.abort();
-        super.abort();
     }
 
     @Override
@@ -47,4 +49,9 @@ public class AbortableCommand extends DecoratorCommand {
         coreCommand.run();
         processAbortAndPauseEvents();
     }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        return coreCommand.runAsync().thenCompose(s -> processAbortAndPauseEventsAsync());
+    }
 }
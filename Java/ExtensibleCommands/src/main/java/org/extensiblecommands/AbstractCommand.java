@@ -2,10 +2,21 @@ package org.extensiblecommands;
 
 import io.reactivex.disposables.Disposable;
 import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
 
+import java.lang.ref.WeakReference;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Base class for all commands. Implements fundamental command functions such as:
@@ -50,55 +61,218 @@ public abstract class AbstractCommand implements Command {
     private final PublishSubject<ProgressUpdate> progressUpdateObservable = PublishSubject.create();
 
     /**
-     * Fraction of command completed (between 0 and 1)
+     * Serialized view of the progress update observable: leaves completing on different threads
+     * do not block each other, an emission in progress on another thread delivers their updates
      */
-    private double fractionCompleted;
+    private final Subject<ProgressUpdate> progressUpdateEmitter = progressUpdateObservable.toSerialized();
 
     /**
-     * Command start time
+     * Minimum interval between two progress updates of a command (in nsec, 0 means no limit)
      */
-    private Instant startTime;
+    private static volatile long progressUpdateIntervalNsec = 0;
 
     /**
-     * Command stop time
+     * Command start time (nsec, as returned by System.nanoTime(), i.e. not affected by wall clock adjustments)
      */
-    private Instant stopTime;
+    private volatile long startTimeNsec;
 
     /**
-     * Local Abort flag (set on every individual command by calling Abort() method)
+     * Command stop time (nsec, as returned by System.nanoTime()), recorded when the command reaches a final state
      */
+    private volatile long stopTimeNsec;
+
+    /**
+     * Local Abort flag: set by Abort() on the command it is called on, and on the descendants overriding Abort()
+     * (they are notified explicitly). The other descendants find an Abort of an ancestor through their invoker chain,
+     * so it is not reflected by their flag. Subclasses setting the flag must call signalControlChange() afterwards.
+     * @deprecated Use isAborted(), which also reports the Abort of the commands running this command.
+     */
+    @Deprecated
     protected volatile boolean aborted;
 
     /**
-     * Local Pause flag (set on every individual command by calling Pause() method)
+     * Token signaling the abort to the code executed by the command (re-armed at the start of every run)
+     */
+    private final CancellationToken cancellationToken = new CancellationToken(this::processCheckpoint);
+
+    /**
+     * Time of the first abort request of the current run (nsec, as returned by System.nanoTime(), 0 if not aborted)
+     */
+    private final AtomicLong abortRequestTimeNsec = new AtomicLong();
+
+    /**
+     * Local Pause stamp (set on every individual command by calling Pause(), Resume() or Abort() method):
+     * sequence number of the last request (upper bits) and whether it was Pause (lowest bit), 0 if there was none.
+     * The most recent request in the invoker chain decides whether the command is paused.
+     */
+    private volatile long pauseStamp;
+
+    /**
+     * Command running this command as its sub-command (NULL if the command is not running or is the root of the running tree).
+     * Abort and Pause requests of the invoker chain apply to the command, so they are not propagated down the tree.
+     */
+    private volatile AbstractCommand invoker;
+
+    /**
+     * Registration linking the cancellation token to the cancellation token of the invoker (for the current run)
+     */
+    private volatile Disposable invokerTokenRegistration;
+
+    /**
+     * Control epoch at which the last check has found the command neither aborted nor paused (-1 if none).
+     * Read and written by the thread executing the command: a stale value only makes the check walk the invoker chain.
+     */
+    private long quietControlEpoch = -1;
+
+    /**
+     * Library-wide epoch of Abort, Pause and Resume requests (incremented on every request, after the request is recorded).
+     * As long as it does not change, a command found neither aborted nor paused does not need to walk its invoker chain again,
+     * so the check costs a single volatile read.
+     */
+    private static final AtomicLong controlEpoch = new AtomicLong();
+
+    /**
+     * Number of units of work of a command counting its progress in units, when the number is not known in advance
+     * (see getNumberOfProgressUnits())
+     */
+    protected static final int UnknownNumberOfProgressUnits = -1;
+
+    /**
+     * Number of threads waiting for a paused command to be resumed
+     */
+    private static final AtomicInteger numberOfControlWaiters = new AtomicInteger();
+
+    /**
+     * Asynchronous runs suspended while their command is paused (no thread is held while they wait for Resume or Abort)
+     */
+    private static final ConcurrentLinkedQueue<SuspendedRun> suspendedRuns = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of asynchronous runs suspended while their command is paused
      */
-    private volatile boolean paused;
+    private static final AtomicInteger numberOfSuspendedRuns = new AtomicInteger();
 
     /**
-     * Event signaling that the command has been resumed
+     * Lock and condition used by threads waiting for a paused command to be resumed
      */
-    private final ManualResetEvent eventResuming = new ManualResetEvent(false);
+    private static final ReentrantLock controlLock = new ReentrantLock();
+    private static final Condition controlChanged = controlLock.newCondition();
+
+    /**
+     * Does a command class override Abort(), Pause() or Resume() (i.e. must the requests be delivered to its instances explicitly)?
+     */
+    private static final ClassValue<Boolean> customControlClasses = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("abort").getDeclaringClass() != AbstractCommand.class ||
+                        type.getMethod("pause").getDeclaringClass() != AbstractCommand.class ||
+                        type.getMethod("resume").getDeclaringClass() != AbstractCommand.class;
+            }
+            catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+    };
 
     /**
      * Number of leaf descendant commands
      */
-    private int numberOfLeaves = 0;
+    private volatile int numberOfLeaves = 0;
 
     /**
      * Number of completed leaf descendant commands (updated during command execution)
      */
-    private int numberOfLeavesCompleted = 0;
+    private final AtomicInteger numberOfLeavesCompleted = new AtomicInteger();
 
     /**
-     * Lock for leaf descendant command updates
+     * Is the progress of the current run counted in units of work reported by the command (see getNumberOfProgressUnits())?
+     * The units then replace the leaves in the progress counters.
      */
-    private final Object leafUpdateLock = new Object();
+    private volatile boolean isCountingProgressUnits;
 
     /**
-     * Subscriptions to the progress of leaf descendant commands
+     * Are leaf descendants weighted by their estimated times (otherwise every leaf weighs 1)?
+     */
+    private volatile boolean isWeightedByTime;
+
+    /**
+     * Weight of a leaf descendant without estimated time
+     */
+    private volatile long defaultLeafWeight = 1;
+
+    /**
+     * Total weight of leaf descendants
+     */
+    private volatile long totalLeafWeight;
+
+    /**
+     * Total weight of completed leaf descendants (updated during command execution)
+     */
+    private final AtomicLong completedLeafWeight = new AtomicLong();
+
+    /**
+     * Estimated execution time set explicitly (nsec, negative if not set)
+     */
+    private volatile long explicitEstimatedTimeNsec = -1;
+
+
+    /**
+     * Percent completed reported by the last progress update
+     */
+    private final AtomicInteger lastPublishedPercent = new AtomicInteger();
+
+    /**
+     * Time of the last progress update (nsec, as returned by System.nanoTime())
+     */
+    private final AtomicLong lastPublishedTimeNsec = new AtomicLong();
+
+    /**
+     * Lock ordering the progress updates: the decision to publish an update and its emission are made under the lock,
+     * so that concurrent updates are emitted in increasing order
+     */
+    private final ReentrantLock progressLock = new ReentrantLock();
+
+    /**
+     * Permit preventing simultaneous runs of the same command.
+     * A semaphore is used instead of a monitor, so that virtual threads do not pin their carriers,
+     * and so that an asynchronous run can release it on a different thread.
+     */
+    private final Semaphore runPermit = new Semaphore(1);
+
+    /**
+     * Asynchronous runs waiting for the run permit (started when the permit is released, no thread waits for it)
+     */
+    private final Queue<CompletableFuture<State>> pendingAsyncRuns = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Is the command counting its completed leaf descendants (i.e. is it running)?
+     */
+    private volatile boolean isTrackingProgress;
+
+    /**
+     * Parent commands, notified when a leaf descendant completes or when the tree structure changes (copied on write).
+     * A command can be shared between several trees (e.g. NullCommand), so parents are weakly referenced
+     * to let the trees that are no longer used be garbage-collected.
+     */
+    private volatile List<WeakReference<AbstractCommand>> parents = List.of();
+
+    /**
+     * Subscriptions to the progress of leaf descendant commands that cannot notify their completion through parent links
+     * (i.e. commands not derived from AbstractCommand)
      */
     private final List<Disposable> leafSubscriptions = new ArrayList<>();
 
+    /**
+     * Cached structural index of the command tree (rebuilt when the tree structure changes)
+     */
+    private volatile CommandTreeIndex treeIndex;
+
+    /**
+     * Structure version of the command tree (incremented when the structure of the command or of a descendant changes)
+     */
+    private final AtomicLong structureVersion = new AtomicLong();
+
     /**
      * @return      Command name (preferably, uniquely identifies the command)
      */
@@ -140,32 +314,47 @@ public abstract class AbstractCommand implements Command {
     }
     
     /**
-     * @return      List of all child command objects (1st level only)
+     * @return      Read-only list of all child command objects (1st level only)
      */
     @Override
     public Iterable<Command> getChildren() {
-        return new ArrayList<>();
+        return getTreeIndex().getChildren();
     }
 
     /**
-     * @return      List of all descendant command objects (all levels)
+     * @return      Read-only list of all descendant command objects (all levels, in pre-order)
      */
     @Override
     public Iterable<Command> getDescendants() {
-        return new ArrayList<>();
+        return getTreeIndex().getDescendants();
+    }
+
+    /**
+     * @return      Read-only list of descendants that do not have their own descendants (i.e. leaves on the tree)
+     */
+    public final List<Command> getLeaves() {
+        return getTreeIndex().getLeaves();
+    }
+
+    /**
+     * @return      Number of leaf descendant commands
+     */
+    public final int getNumberOfLeaves() {
+        return getTreeIndex().getLeaves().size();
+    }
+
+    /**
+     * @return      Depth of the command tree, i.e. number of levels below the command (0 for a command without children)
+     */
+    public final int getDepth() {
+        return getTreeIndex().getDepth();
     }
 
     /**
      * @return      Current elapsed time of command execution. Can be queried before command completion.
      */
     public final Duration getElapsedTime() {
-        if (getState() == State.Idle) {
-            return Duration.ZERO;
-        }
-        else if (getState() == State.Executing) {
-            return Duration.between(startTime, Instant.now());
-        }
-        return Duration.between(startTime, stopTime);
+        return Duration.ofNanos(getElapsedTimeNsec());
     }
 
     /**
@@ -173,13 +362,77 @@ public abstract class AbstractCommand implements Command {
      */
     @Override
     public final long getElapsedTimeMsec() {
-        if (getState() == State.Idle) {
+        return TimeUnit.NANOSECONDS.toMillis(getElapsedTimeNsec());
+    }
+
+    /**
+     * @return      Current elapsed time of command execution (in nsec). Can be queried before command completion.
+     */
+    @Override
+    public final long getElapsedTimeNsec() {
+        var state = getState();
+        if (state == State.Idle) {
             return 0;
         }
-        else if (getState() == State.Executing) {
-            return Duration.between(startTime, Instant.now()).toMillis();
+        else if (state == State.Executing) {
+            return System.nanoTime() - startTimeNsec;
+        }
+        return stopTimeNsec - startTimeNsec;
+    }
+
+    /**
+     * @return      Estimated execution time of the command (zero if unknown)
+     */
+    @Override
+    public final Duration getEstimatedTime() {
+        return Duration.ofNanos(getEstimatedTimeNsec());
+    }
+
+    /**
+     * @return      Estimated execution time of the command (in msec, 0 if unknown)
+     */
+    @Override
+    public final long getEstimatedTimeMsec() {
+        return TimeUnit.NANOSECONDS.toMillis(getEstimatedTimeNsec());
+    }
+
+    /**
+     * Estimated execution time is, in order of priority:
+     * - the time set by setEstimatedTime();
+     * - the time estimated by the command itself (see estimateTimeNsec());
+     * - the mean measured execution time of the commands with the same name (if latency recording is enabled).
+     * @return      Estimated execution time of the command (in nsec, 0 if unknown)
+     */
+    @Override
+    public final long getEstimatedTimeNsec() {
+        var explicitEstimate = explicitEstimatedTimeNsec;
+        if (explicitEstimate >= 0)
+            return explicitEstimate;
+
+        var estimate = estimateTimeNsec();
+        if (estimate > 0)
+            return estimate;
+
+        return LatencyHistograms.getMeanNsec(name);
+    }
+
+    /**
+     * Set estimated execution time of the command, overriding the time estimated by the command itself
+     * @param estimatedTime     Estimated execution time (NULL restores the time estimated by the command)
+     */
+    public final void setEstimatedTime(Duration estimatedTime) {
+        if (estimatedTime == null) {
+            explicitEstimatedTimeNsec = -1;
+            CommandTreeIndex.invalidateEstimates();
+            return;
         }
-        return Duration.between(startTime, stopTime).toMillis();
+        if (estimatedTime.isNegative())
+            throw new RuntimeException(String.format("Estimated time %s of command %s is negative", estimatedTime, name));
+
+        explicitEstimatedTimeNsec = estimatedTime.toNanos();
+
+        // The estimated times captured by the structural indexes are refreshed by the next run
+        CommandTreeIndex.invalidateEstimates();
     }
 
     /**
@@ -187,7 +440,11 @@ public abstract class AbstractCommand implements Command {
      */
     @Override
     public final double getFractionCompleted() {
-        return fractionCompleted;
+        var leavesCompleted = numberOfLeavesCompleted.get();
+        if (leavesCompleted == 0)
+            return 0.0;
+
+        return calculateFractionCompleted(leavesCompleted, completedLeafWeight.get());
     }
 
     /**
@@ -195,80 +452,101 @@ public abstract class AbstractCommand implements Command {
      */
     @Override
     public final int getPercentCompleted() {
-        return (int)(100* fractionCompleted);
+        return (int)(100* getFractionCompleted());
     }
 
     /**
-     * Main method to run the command
+     * Set minimum interval between two progress updates of a command.
+     * Progress updates are always coalesced to at most one update per percent change,
+     * the update reporting the completion of the last leaf is never dropped.
+     * @param intervalMsec      Minimum interval (msec, 0 means no limit)
      */
-    @Override
-    public synchronized void run() throws Exception {
-        // Start timer
-        startTime = Instant.now();
-        
-        paused = false;
-        aborted = false;
+    public static void setProgressUpdateIntervalMsec(long intervalMsec) {
+        if (intervalMsec < 0)
+            throw new RuntimeException(String.format("Progress update interval %s msec is negative", intervalMsec));
 
-        numberOfLeaves = getLeaves().size();
-        numberOfLeavesCompleted = 0;
-        fractionCompleted = 0.0;
-        subscribeForLeafProgressUpdates();
+        progressUpdateIntervalNsec = TimeUnit.MILLISECONDS.toNanos(intervalMsec);
+    }
 
-        eventResuming.reset();
-        eventFinished.reset();
+    /**
+     * @return      Minimum interval between two progress updates of a command (msec, 0 means no limit)
+     */
+    public static long getProgressUpdateIntervalMsec() {
+        return TimeUnit.NANOSECONDS.toMillis(progressUpdateIntervalNsec);
+    }
 
+    /**
+     * Main method to run the command
+     */
+    @Override
+    public void run() throws Exception {
+        runPermit.acquireUninterruptibly();
         try {
-            setState(State.Executing);
-            exception = null;
-
-            eventStarted.set();
-
-            execute();
+            try {
+                startRun();
+                execute();
 
-            // Still need to check for errors even if there was no exception thrown
-            checkErrors();
-            signalCompletion();
-        }
-        catch (ExtensibleCommandsException e) {
-            setState(State.Failed);
-            exception = e;
+                // Still need to check for errors even if there was no exception thrown
+                checkErrors();
+                signalCompletion();
+            }
+            catch (ExtensibleCommandsException e) {
+                setState(State.Failed);
+                exception = e;
 
-            checkErrors();
-            signalCompletion();
-        }
-        catch (Exception e) {
-            // If any other exception is thrown, terminate command execution.
-            // This case is not handled by Extensible Commands!
-            setState(State.Failed);
-            throw e;
+                checkErrors();
+                signalCompletion();
+            }
+            catch (Exception e) {
+                // If any other exception is thrown, terminate command execution.
+                // This case is not handled by Extensible Commands!
+                setState(State.Failed);
+                throw e;
+            }
+            finally {
+                // Even if an unhandled exception is thrown, make sure we do this
+                finishRun();
+            }
         }
         finally {
-            // Even if an unhandled exception is thrown, make sure we do this
-            unsubscribeFromLeafProgressUpdates();
+            releaseRunPermit();
+        }
+    }
 
-            // Record elapsed time
-            stopTime = Instant.now();
+    /**
+     * Run the command asynchronously. Composite commands chain the futures of their children
+     * instead of blocking on them, so that no thread is held while waiting for sub-commands.
+     * @return      Future completed with the final state of the command,
+     *              or completed exceptionally if an exception not handled by Extensible Commands is thrown
+     */
+    @Override
+    public CompletableFuture<State> runAsync() {
+        var result = new CompletableFuture<State>();
 
-            eventFinished.set();
-            eventStarted.reset();
+        // If the command is already running, the run is started when the other run releases the permit
+        if (runPermit.tryAcquire()) {
+            startRunAsync(result);
+        }
+        else {
+            pendingAsyncRuns.add(result);
+            // The other run may have released the permit before the run was queued
+            startPendingAsyncRuns();
         }
+        return result;
     }
 
     /**
-     * Pause command execution
+     * Pause command execution. The request is a single write: running descendants find it through their invoker chain
+     * (only descendants overriding Abort(), Pause() or Resume() are notified explicitly).
      */
     @Override
     public void pause() {
-        // Iterate through child objects and pause them first.
-        // This works recursively, i.e. each child will pause its children.
-        for (var command : getChildren())
+        setPauseStamp(true);
+        for (var command : getTreeIndex().getCustomControlDescendants())
             command.pause();
 
-        paused = true;
-
         if (getState() == State.Executing)
-            Logger.log(Logger.LogLevel.Info,
-                String.format("Command %s is PAUSED", name));
+            Logger.log(Logger.LogLevel.Info, "Command %s is PAUSED", name);
     }
 
     /**
@@ -276,38 +554,74 @@ public abstract class AbstractCommand implements Command {
      */
     @Override
     public void resume() {
-        // Iterate through child objects and resume them first.
-        // This works recursively, i.e. each child will resume its children.
-        for (var command : getChildren())
+        setPauseStamp(false);
+        for (var command : getTreeIndex().getCustomControlDescendants())
             command.resume();
 
-        if (paused) {
-            paused = false;
-            eventResuming.set();
-        }
-
         if (getState() == State.Executing)
-            Logger.log(Logger.LogLevel.Info,
-                    String.format("Command %s is RESUMED", name));
+            Logger.log(Logger.LogLevel.Info, "Command %s is RESUMED", name);
     }
 
     /**
-     * Abort command execution
+     * Abort command execution. The request is a single write: running descendants find it through their invoker chain
+     * (only descendants overriding Abort(), Pause() or Resume() are notified explicitly).
      */
     @Override
     public void abort() {
-        // Iterate through child objects and abort them first.
-        // This works recursively, i.e. each child will abort its children.
-        for (var command : getChildren())
-            command.abort();
+        abortRequestTimeNsec.compareAndSet(0, System.nanoTime());
 
-        paused = false;
+        // Abort supersedes Pause
         aborted = true;
+        setPauseStamp(false);
+
+        cancellationToken.cancel();
+        for (var command : getTreeIndex().getCustomControlDescendants())
+            command.abort();
 
-        eventResuming.set();
         if (getState() == State.Executing)
-            Logger.log(Logger.LogLevel.Info,
-                    String.format("Command %s is ABORTED", name));
+            Logger.log(Logger.LogLevel.Info, "Command %s is ABORTED", name);
+    }
+
+    /**
+     * @return      Read-only sorted set of resources used by the command and its descendants
+     *              (operations using a common resource conflict with each other)
+     */
+    public final Set<String> getResources() {
+        var declaredResources = getDeclaredResources();
+        var descendantResources = getTreeIndex().getResources();
+        if (declaredResources.isEmpty())
+            return descendantResources;
+
+        var resources = new TreeSet<>(descendantResources);
+        resources.addAll(declaredResources);
+        return Collections.unmodifiableSet(resources);
+    }
+
+    /**
+     * Resources used by the command itself, not by its descendants. Commands performing actual operations
+     * (e.g. simple commands) override this method, the resources of composite commands are aggregated from their descendants.
+     * @return      Resources used by the command itself
+     */
+    protected Set<String> getDeclaredResources() {
+        return Set.of();
+    }
+
+    /**
+     * @return      Token signaling the abort of the current run to the code executed by the command
+     */
+    public final CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * @return      Time from the first abort request to the moment the command stopped executing
+     *              (nsec, 0 if the last run has not been aborted)
+     */
+    public final long getAbortLatencyNsec() {
+        var requestTimeNsec = abortRequestTimeNsec.get();
+        if (getState() != State.Aborted || requestTimeNsec == 0)
+            return 0;
+        return Math.max(0, stopTimeNsec - requestTimeNsec);
     }
 
     /**
@@ -329,45 +643,394 @@ public abstract class AbstractCommand implements Command {
         eventFinished.reset();
     }
 
+    /**
+     * @return      Has Abort been requested for the command or for one of the commands running it?
+     */
+    protected final boolean isAborted() {
+        for (var command = this; command != null; command = command.invoker) {
+            if (command.aborted)
+                return true;
+            var commandInvoker = command.invoker;
+            if (commandInvoker != null && commandInvoker.isAbortingSubCommands())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return      Is the command paused (by the most recent Pause or Resume request in its invoker chain)?
+     */
+    protected final boolean isPaused() {
+        long latestStamp = 0;
+        for (var command = this; command != null; command = command.invoker)
+            latestStamp = Math.max(latestStamp, command.pauseStamp);
+        return (latestStamp & 1) != 0;
+    }
+
+    /**
+     * Are the running sub-commands aborted while this command is not (e.g. by a fail-fast policy)?
+     * Commands overriding this method must call signalControlChange() when the result changes to true.
+     * @return      Are the running sub-commands aborted?
+     */
+    protected boolean isAbortingSubCommands() {
+        return false;
+    }
+
+    /**
+     * Signal a change of the Abort or Pause state: commands re-check their invoker chain, paused commands wake up
+     */
+    protected static void signalControlChange() {
+        controlEpoch.incrementAndGet();
+        if (numberOfControlWaiters.get() > 0) {
+            controlLock.lock();
+            try {
+                controlChanged.signalAll();
+            }
+            finally {
+                controlLock.unlock();
+            }
+        }
+        if (numberOfSuspendedRuns.get() > 0)
+            resumeSuspendedRuns();
+    }
+
+    /**
+     * @return      Number of threads blocked while their command is paused (synchronous runs)
+     */
+    public static int getNumberOfThreadsWaitingForResume() {
+        return numberOfControlWaiters.get();
+    }
+
+    /**
+     * @return      Number of asynchronous runs suspended while their command is paused (they do not hold any thread)
+     */
+    public static int getNumberOfSuspendedRuns() {
+        return numberOfSuspendedRuns.get();
+    }
+
+    /**
+     * @param command       Command
+     * @return              Does the command handle Abort, Pause and Resume requests itself
+     *                      (i.e. must the requests be delivered to it explicitly)?
+     */
+    static boolean hasCustomControl(Command command) {
+        return !(command instanceof AbstractCommand) || customControlClasses.get(command.getClass());
+    }
+
     /**
      * The body of the command execution
      */
     protected abstract void execute() throws Exception ;
 
+    /**
+     * The body of the asynchronous command execution. By default, runs execute() on a worker thread of the default executor.
+     * Composite commands override this method to chain the asynchronous runs of their children.
+     * @return      Future completed when the command body is executed
+     */
+    protected CompletableFuture<Void> executeAsync() {
+        var future = new CompletableFuture<Void>();
+        CommandExecutors.getDefaultExecutor().execute(() -> {
+            try {
+                execute();
+                future.complete(null);
+            }
+            catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
     /**
      * Set the main command state based on the child commands states
      */
     protected abstract void checkErrors();
 
     /**
-     * Set the current state of the command
-     * @param state         Current state of the command
+     * Collect child command objects (1st level only). Commands containing other commands override this method
+     * (and link every child with linkChild() when it is added). It is only called when the structural index
+     * of the command tree is rebuilt.
+     * @param children      List to add child commands to
      */
-    protected final void setState(State state) {
-        Logger.log(Logger.LogLevel.Info,
-                String.format("Command %s : %s -> %s", name, this.state, state));
-        this.state = state;
-        currentStateObservable.onNext(this.state);
+    protected void collectChildren(List<Command> children) { }
+
+    /**
+     * Number of units of work the progress of the command is counted in, instead of its completed leaf descendants
+     * (e.g. the elements of a collection processed by the command). Completed units are reported by completeProgressUnit().
+     * If the number is not known in advance, the progress stays at 0 until the number is set by setNumberOfProgressUnits().
+     * @return      Number of units of work of the run about to start (0 means the progress counts completed leaf descendants,
+     *              UnknownNumberOfProgressUnits means the number is not known yet)
+     */
+    protected int getNumberOfProgressUnits() {
+        return 0;
+    }
+
+    /**
+     * Report the completion of a unit of work and publish a progress update (unless it is coalesced with the other updates).
+     * Does nothing unless the command is running and counts its progress in units of work.
+     */
+    protected final void completeProgressUnit() {
+        if (isCountingProgressUnits && isTrackingProgress)
+            publishProgress(numberOfLeavesCompleted.incrementAndGet(), completedLeafWeight.incrementAndGet());
+    }
+
+    /**
+     * Set the number of units of work of the current run, once it is known (or if it differs from the number announced
+     * by getNumberOfProgressUnits()), and publish a progress update.
+     * Does nothing unless the command is running and counts its progress in units of work.
+     * @param numberOfUnits     Number of units of work of the current run
+     */
+    protected final void setNumberOfProgressUnits(int numberOfUnits) {
+        if (!isCountingProgressUnits || !isTrackingProgress)
+            return;
+
+        numberOfLeaves = numberOfUnits;
+        totalLeafWeight = numberOfUnits;
+        var unitsCompleted = numberOfLeavesCompleted.get();
+        if (unitsCompleted > 0)
+            publishProgress(unitsCompleted, completedLeafWeight.get());
+    }
+
+    /**
+     * Estimate execution time of the command. By default, child commands are assumed to be executed one after another,
+     * so the estimate is the sum of their estimated times. Commands containing other commands override this method
+     * to reflect how they execute their children, and custom "leaf" commands may override it to estimate
+     * the time of the actual operation (e.g. from its parameters).
+     * @return      Estimated execution time (nsec, 0 if unknown)
+     */
+    protected long estimateTimeNsec() {
+        long estimate = 0;
+        for (var child : getTreeIndex().getChildren())
+            estimate += child.getEstimatedTimeNsec();
+        return estimate;
+    }
+
+    /**
+     * Link a child command to this command, so that its leaf descendants notify this command of their completion
+     * @param child         Child command (1st level only)
+     */
+    protected final void linkChild(Command child) {
+        if (child instanceof AbstractCommand)
+            ((AbstractCommand) child).addParent(this);
+    }
+
+    /**
+     * Add a parent command (pruning the parents that have been garbage-collected)
+     * @param parent        Parent command
+     */
+    private synchronized void addParent(AbstractCommand parent) {
+        var newParents = new ArrayList<WeakReference<AbstractCommand>>(parents.size() + 1);
+        for (var reference : parents) {
+            if (reference.get() != null)
+                newParents.add(reference);
+        }
+        newParents.add(new WeakReference<>(parent));
+        parents = newParents;
     }
 
     /**
-     * @return      Descendants that do not have their own descendants (i.e. leaves on the tree)
+     * Signal a change of the structure of the command (e.g. a child command added, resources changed),
+     * invalidating the structural indexes of the command and of its ancestors (the other trees are not affected)
      */
-    private List<Command> getLeaves() {
-        var leaves = new ArrayList<Command>();
-        for (var subCommand : getDescendants()) {
-            if (!subCommand.getChildren().iterator().hasNext()) {
-                leaves.add(subCommand);
+    protected final void onStructureChanged() {
+        structureVersion.incrementAndGet();
+        for (var reference : parents) {
+            var parent = reference.get();
+            if (parent != null)
+                parent.onStructureChanged();
+        }
+    }
+
+    /**
+     * @return      Structural index of the command tree (rebuilt if the tree structure has changed since the last call)
+     */
+    final CommandTreeIndex getTreeIndex() {
+        var index = treeIndex;
+        // Read the version before reading the structure, so that a concurrent change invalidates the new index
+        var version = structureVersion.get();
+        if (index == null || !index.isValid(version)) {
+            var children = new ArrayList<Command>();
+            collectChildren(children);
+            index = CommandTreeIndex.build(version, children);
+            treeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Prepare the command for execution and signal its start
+     */
+    private void startRun() {
+        // Start timer
+        startTimeNsec = System.nanoTime();
+
+        aborted = false;
+        pauseStamp = 0;
+        abortRequestTimeNsec.set(0);
+        quietControlEpoch = -1;
+
+        // The running parent (if any) is the invoker: its Abort and Pause requests apply to this command
+        invoker = findRunningParent();
+        cancellationToken.reset();
+        if (invoker != null)
+            invokerTokenRegistration = invoker.cancellationToken.register(cancellationToken::cancel);
+        if (isAborted())
+            cancellationToken.cancel();
+
+        var index = getTreeIndex();
+        var numberOfProgressUnits = getNumberOfProgressUnits();
+        isCountingProgressUnits = numberOfProgressUnits != 0;
+        numberOfLeaves = isCountingProgressUnits ? numberOfProgressUnits : index.getLeaves().size();
+        numberOfLeavesCompleted.set(0);
+        if (isCountingProgressUnits)
+            initUnitWeights(Math.max(0, numberOfProgressUnits));
+        else
+            initLeafWeights(invoker == null ? index.refreshEstimates(this) : index.getEstimates(this));
+        lastPublishedPercent.set(0);
+        lastPublishedTimeNsec.set(System.nanoTime());
+        subscribeForLeafProgressUpdates(index.getUnlinkedLeaves());
+        isTrackingProgress = true;
+
+        eventFinished.reset();
+
+        setState(State.Executing);
+        exception = null;
+
+        eventStarted.set();
+    }
+
+    /**
+     * Clean up after the execution and signal its end
+     */
+    private void finishRun() {
+        isTrackingProgress = false;
+        unsubscribeFromLeafProgressUpdates();
+
+        var registration = invokerTokenRegistration;
+        invokerTokenRegistration = null;
+        if (registration != null)
+            registration.dispose();
+        invoker = null;
+
+        // Stop time has been recorded when the final state was set
+        if (getState() == State.Completed)
+            LatencyHistograms.record(name, stopTimeNsec - startTimeNsec);
+
+        eventFinished.set();
+        eventStarted.reset();
+    }
+
+    /**
+     * Release the run permit, handing it over to the next pending asynchronous run (if any)
+     */
+    private void releaseRunPermit() {
+        runPermit.release();
+        if (!pendingAsyncRuns.isEmpty())
+            startPendingAsyncRuns();
+    }
+
+    /**
+     * Start the next pending asynchronous run if the run permit is free (on a worker thread of the default executor,
+     * so that the run is not started by the thread finishing the previous run)
+     */
+    private void startPendingAsyncRuns() {
+        while (!pendingAsyncRuns.isEmpty() && runPermit.tryAcquire()) {
+            var result = pendingAsyncRuns.poll();
+            if (result == null) {
+                runPermit.release();
+                continue;
+            }
+
+            try {
+                CommandExecutors.getDefaultExecutor().execute(() -> startRunAsync(result));
+                return;
+            }
+            catch (Throwable e) {
+                runPermit.release();
+                result.completeExceptionally(e);
             }
         }
-        return leaves;
+    }
+
+    /**
+     * Start asynchronous execution of the command (the run permit must be acquired)
+     * @param result        Future to complete with the final state of the command
+     */
+    private void startRunAsync(CompletableFuture<State> result) {
+        CompletableFuture<Void> execution;
+        try {
+            startRun();
+            execution = executeAsync();
+        }
+        catch (Throwable e) {
+            execution = CompletableFuture.failedFuture(e);
+        }
+
+        execution.whenComplete((v, t) -> {
+            Throwable fatalException = null;
+            State finalState;
+            try {
+                var e = AsyncExecution.unwrap(t);
+                if (e instanceof ExtensibleCommandsException) {
+                    setState(State.Failed);
+                    exception = (ExtensibleCommandsException) e;
+                }
+                else if (e != null) {
+                    // This case is not handled by Extensible Commands!
+                    setState(State.Failed);
+                    fatalException = e;
+                }
+
+                if (fatalException == null) {
+                    checkErrors();
+                    signalCompletion();
+                }
+            }
+            catch (Throwable e) {
+                fatalException = e;
+            }
+            finally {
+                finishRun();
+                // The next pending run may start as soon as the permit is released
+                finalState = getState();
+                releaseRunPermit();
+            }
+
+            if (fatalException != null)
+                result.completeExceptionally(fatalException);
+            else
+                result.complete(finalState);
+        });
+    }
+
+    /**
+     * Set the current state of the command
+     * @param state         Current state of the command
+     */
+    protected final void setState(State state) {
+        Logger.log(Logger.LogLevel.Info, "Command %s : %s -> %s", name, this.state, state);
+
+        // Record stop time before publishing the final state, so that the elapsed time is never read before it is set
+        if (state != State.Idle && state != State.Executing)
+            stopTimeNsec = System.nanoTime();
+        this.state = state;
+        currentStateObservable.onNext(this.state);
+
+        // Only successfully completed "leaf" commands count, failed or aborted ones are considered not completed
+        if (state == State.Completed && getTreeIndex().getChildren().isEmpty())
+            notifyAncestorsOfLeafCompletion(this);
     }
 
     /**
      * Make sure the state is set correctly in case of Abort or Pause
      */
     protected final void processAbortAndPauseEvents() throws InterruptedException {
-        if (aborted && getState() != State.Failed) {
+        // Fast path: no Abort, Pause or Resume request anywhere since the last check has found nothing to do
+        var epoch = controlEpoch.get();
+        if (epoch == quietControlEpoch)
+            return;
+
+        if (isAborted() && getState() != State.Failed) {
             setState(State.Aborted);
             return;  // Do not care about Pause if Abort has been issued
         }
@@ -376,14 +1039,162 @@ public abstract class AbstractCommand implements Command {
         if (getState() == State.Failed)
             return;
 
-        if (paused) {
-            eventResuming.waitOne(0);
+        if (!isPaused()) {
+            quietControlEpoch = epoch;
+            return;
         }
-        if (aborted && getState() != State.Failed) {
+
+        waitUntilResumed();
+        if (isAborted() && getState() != State.Failed) {
             setState(State.Aborted);
         }
     }
 
+    /**
+     * Checkpoint for long operations executed by the command: waits while the command is paused,
+     * throws if it is aborted. The fast path (no Abort, Pause or Resume request since the last check) is a single volatile read.
+     * Does nothing if the command is not running (e.g. after an aborted run).
+     * @throws ExtensibleCommandsAbortedException   If the command is aborted
+     */
+    protected final void processCheckpoint() throws InterruptedException {
+        var epoch = controlEpoch.get();
+        if (epoch == quietControlEpoch || getState() != State.Executing)
+            return;
+
+        if (!isAborted()) {
+            if (!isPaused()) {
+                quietControlEpoch = epoch;
+                return;
+            }
+            waitUntilResumed();
+        }
+
+        if (isAborted())
+            throw new ExtensibleCommandsAbortedException(name);
+    }
+
+    /**
+     * Wait until the command is resumed or aborted (a worker of a fork-join pool waits as a managed blocker)
+     */
+    private void waitUntilResumed() throws InterruptedException {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+            CommandExecutors.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    awaitResume();
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return !isPaused() || isAborted();
+                }
+            });
+            return;
+        }
+
+        awaitResume();
+    }
+
+    /**
+     * Block the current thread until the command is resumed or aborted
+     */
+    private void awaitResume() throws InterruptedException {
+        controlLock.lock();
+        numberOfControlWaiters.incrementAndGet();
+        try {
+            while (isPaused() && !isAborted())
+                controlChanged.await();
+        }
+        finally {
+            numberOfControlWaiters.decrementAndGet();
+            controlLock.unlock();
+        }
+    }
+
+    /**
+     * Record a Pause or Resume request (the request is made visible before the control epoch changes)
+     * @param isPaused      Is the command paused?
+     */
+    private void setPauseStamp(boolean isPaused) {
+        pauseStamp = (controlEpoch.incrementAndGet() << 1) | (isPaused ? 1 : 0);
+        signalControlChange();
+    }
+
+    /**
+     * @return      Running parent command (NULL if there is none)
+     */
+    private AbstractCommand findRunningParent() {
+        for (var reference : parents) {
+            var parent = reference.get();
+            if (parent != null && parent.isTrackingProgress)
+                return parent;
+        }
+        return null;
+    }
+
+    /**
+     * Asynchronous version of processAbortAndPauseEvents() to be used by asynchronous command bodies
+     * @return      Future completed when Abort and Pause events are processed
+     */
+    protected final CompletableFuture<Void> processAbortAndPauseEventsAsync() {
+        var epoch = controlEpoch.get();
+        if (epoch == quietControlEpoch)
+            return CompletableFuture.completedFuture(null);
+
+        if (isAborted() && getState() != State.Failed) {
+            setState(State.Aborted);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (getState() == State.Failed)
+            return CompletableFuture.completedFuture(null);
+
+        if (!isPaused()) {
+            quietControlEpoch = epoch;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Suspend the run at this child boundary: the thread is released, the run continues on Resume or Abort
+        var suspendedRun = new SuspendedRun(this);
+        numberOfSuspendedRuns.incrementAndGet();
+        suspendedRuns.add(suspendedRun);
+
+        // Resume may have been requested before the run was registered
+        resumeSuspendedRuns();
+
+        return suspendedRun.resumed.thenRun(() -> {
+            if (isAborted() && getState() != State.Failed)
+                setState(State.Aborted);
+        });
+    }
+
+    /**
+     * Reschedule the suspended runs whose commands are no longer paused (or have been aborted)
+     */
+    private static void resumeSuspendedRuns() {
+        for (var suspendedRun : suspendedRuns) {
+            var command = suspendedRun.command;
+            if ((!command.isPaused() || command.isAborted()) && suspendedRuns.remove(suspendedRun)) {
+                numberOfSuspendedRuns.decrementAndGet();
+                // Continue on a worker thread, not on the thread requesting Resume or Abort
+                CommandExecutors.getDefaultExecutor().execute(() -> suspendedRun.resumed.complete(null));
+            }
+        }
+    }
+
+    /**
+     * Asynchronous run suspended while its command is paused
+     */
+    private static final class SuspendedRun {
+        private final AbstractCommand command;
+        private final CompletableFuture<Void> resumed = new CompletableFuture<>();
+
+        SuspendedRun(AbstractCommand command) {
+            this.command = command;
+        }
+    }
+
     /**
      * Generate appropriate events on command completion
      */
@@ -394,36 +1205,170 @@ public abstract class AbstractCommand implements Command {
     }
 
     /**
-     * Recalculate the fraction completed
+     * Weight leaf descendants by their estimated times, so that the fraction completed reflects the expected duration.
+     * Leaves without estimated time weigh as much as an average leaf with estimated time,
+     * if no leaf has an estimated time every leaf weighs 1 (i.e. the fraction completed is the fraction of completed leaves).
+     * The weights are captured by the structural index: the root of a run refreshes them only if an estimate may have changed,
+     * the commands it runs use the weights it has captured.
+     * @param estimates     Estimates of the command tree
      */
-    private void updateFractionCompleted() {
-        synchronized (leafUpdateLock) {
-            numberOfLeavesCompleted++;
-            String progressMessage;
+    private void initLeafWeights(CommandTreeIndex.Estimates estimates) {
+        isWeightedByTime = estimates.isWeightedByTime();
+        defaultLeafWeight = estimates.getDefaultLeafWeight();
+        totalLeafWeight = estimates.getTotalLeafWeight();
+        completedLeafWeight.set(0);
+    }
 
-            if (numberOfLeaves > 0) {
-                fractionCompleted = (double) numberOfLeavesCompleted / numberOfLeaves;
-                progressMessage = String.format("%s percent complete", getPercentCompleted());
-            }
-            else {
-                fractionCompleted = 1.0;
-                progressMessage = "Complete";
-            }
+    /**
+     * Every unit of work weighs 1 (i.e. the fraction completed is the fraction of completed units)
+     * @param numberOfUnits     Number of units of work
+     */
+    private void initUnitWeights(int numberOfUnits) {
+        isWeightedByTime = false;
+        defaultLeafWeight = 1;
+        totalLeafWeight = numberOfUnits;
+        completedLeafWeight.set(0);
+    }
+
+    /**
+     * @param leaf      Leaf descendant
+     * @return          Weight of the leaf
+     */
+    private long getLeafWeight(Command leaf) {
+        if (!isWeightedByTime)
+            return 1;
+
+        var estimate = CommandTreeIndex.of(leaf).getEstimates(leaf).getEstimatedTimeNsec(leaf);
+        return estimate > 0 ? estimate : defaultLeafWeight;
+    }
+
+    /**
+     * @param leavesCompleted       Number of completed leaf descendants (positive)
+     * @param completedWeight       Total weight of completed leaf descendants
+     * @return                      Fraction of command completed
+     */
+    private double calculateFractionCompleted(int leavesCompleted, long completedWeight) {
+        var leaves = numberOfLeaves;
+        // The number of units of work is not known yet
+        if (leaves < 0)
+            return 0.0;
+        if (leaves == 0)
+            return 1.0;
+        if (isCountingProgressUnits)
+            return Math.min((double) leavesCompleted / leaves, 1.0);
+        if (!isWeightedByTime)
+            return (double) leavesCompleted / leaves;
+
+        // Repeated leaves (e.g. in cyclic commands) may complete more weight than the total, never report completion before the last leaf
+        return leavesCompleted >= leaves ? 1.0 : Math.min((double) completedWeight / totalLeafWeight, 0.999);
+    }
+
+    /**
+     * Estimate remaining execution time from the estimated time of the command (captured by the structural index),
+     * or if it is unknown, by extrapolating the elapsed time
+     * @param fraction      Fraction of command completed
+     * @return              Estimated remaining time (nsec, negative if unknown)
+     */
+    private long estimateRemainingTimeNsec(double fraction) {
+        if (fraction >= 1.0)
+            return 0;
+
+        var estimate = getTreeIndex().getEstimates(this).getEstimatedTimeNsec(this);
+        if (estimate > 0)
+            return (long) (estimate * (1.0 - fraction));
+
+        return fraction > 0 ? (long) (getElapsedTimeNsec() * (1.0 - fraction) / fraction) : -1;
+    }
 
-            progressUpdateObservable.onNext(new ProgressUpdate(getPercentCompleted(), fractionCompleted, progressMessage));
+    /**
+     * Count a completed leaf and publish a progress update (unless it is coalesced with the other updates)
+     * @param leaf      Completed leaf descendant
+     */
+    private void onLeafCompleted(Command leaf) {
+        // The leaves are not counted if the command counts its progress in units of work
+        if (isCountingProgressUnits)
+            return;
+
+        publishProgress(numberOfLeavesCompleted.incrementAndGet(), completedLeafWeight.addAndGet(getLeafWeight(leaf)));
+    }
+
+    /**
+     * Publish a progress update (unless it is coalesced with the other updates)
+     * @param leavesCompleted       Number of completed leaf descendants (or units of work)
+     * @param completedWeight       Total weight of completed leaf descendants (or units of work)
+     */
+    private void publishProgress(int leavesCompleted, long completedWeight) {
+        var leaves = numberOfLeaves;
+        var fraction = calculateFractionCompleted(leavesCompleted, completedWeight);
+        var percent = (int)(100* fraction);
+
+        // Fast path (without the lock): the percent has already been published
+        if (percent <= lastPublishedPercent.get())
+            return;
+
+        progressLock.lock();
+        try {
+            if (!isProgressUpdateDue(percent, leavesCompleted >= leaves))
+                return;
+
+            var progressMessage = leaves > 0 ? String.format("%s percent complete", percent) : "Complete";
+            progressUpdateEmitter.onNext(new ProgressUpdate(percent, fraction, progressMessage,
+                    estimateRemainingTimeNsec(fraction)));
+        }
+        finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * Decide whether a progress update must be published: at most one update is published per percent change
+     * and per progress update interval, the final update is published regardless of the interval.
+     * Must be called under the progress lock.
+     * @param percent       Percent completed
+     * @param isFinal       Is this the update reporting the completion of the last leaf?
+     * @return              Must the update be published?
+     */
+    private boolean isProgressUpdateDue(int percent, boolean isFinal) {
+        if (percent <= lastPublishedPercent.get())
+            return false;
+
+        var intervalNsec = progressUpdateIntervalNsec;
+        var now = intervalNsec > 0 ? System.nanoTime() : 0;
+        if (!isFinal && intervalNsec > 0 && now - lastPublishedTimeNsec.get() < intervalNsec)
+            return false;
+
+        lastPublishedPercent.set(percent);
+        if (intervalNsec > 0)
+            lastPublishedTimeNsec.set(now);
+        return true;
+    }
+
+    /**
+     * Notify the running ancestors that a leaf descendant has completed (walking up the parent links)
+     * @param leaf      Completed leaf descendant
+     */
+    private void notifyAncestorsOfLeafCompletion(Command leaf) {
+        for (var reference : parents) {
+            var parent = reference.get();
+            if (parent != null) {
+                if (parent.isTrackingProgress)
+                    parent.onLeafCompleted(leaf);
+                parent.notifyAncestorsOfLeafCompletion(leaf);
+            }
         }
     }
 
     /**
-     * Subscribe for progress updates from "leaf" descendants
+     * Subscribe for progress updates from "leaf" descendants that cannot notify their completion through parent links
+     * @param leaves        Leaf descendants
      */
-    private void subscribeForLeafProgressUpdates() {
+    private void subscribeForLeafProgressUpdates(List<Command> leaves) {
         // We are only interested in updates from "leaf" commands, not complex commands aggregating other commands
-        for (var leaf : getLeaves())
+        for (var leaf : leaves)
             // Only subscribe to successfully completed "leaf" sub-commands.
             // Consider failed or aborted sub-commands not completed.
             // Update fraction completed when any of the descendant commands complete.
-            leafSubscriptions.add(leaf.getCurrentStateObservable().filter(s->s == State.Completed).subscribe(s -> updateFractionCompleted()));
+            leafSubscriptions.add(leaf.getCurrentStateObservable().filter(s->s == State.Completed).subscribe(s -> onLeafCompleted(leaf)));
     }
 
     /**
@@ -0,0 +1,125 @@
+package org.extensiblecommands;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Helper functions for the asynchronous execution of commands
+ */
+final class AsyncExecution {
+    /**
+     * Type of delegate executing one step of an asynchronous loop
+     */
+    interface Step {
+        /**
+         * @return          Future completed with TRUE if the loop must continue, or FALSE if the loop must stop
+         */
+        CompletableFuture<Boolean> execute() throws Exception;
+    }
+
+    /**
+     * Type of delegate executing a continuation of an asynchronous execution
+     */
+    interface Continuation {
+        void execute() throws Exception;
+    }
+
+    private AsyncExecution() { }
+
+    /**
+     * Execute asynchronous steps one after another until a step signals the end of the loop.
+     * Steps completed synchronously are iterated without growing the stack.
+     * @param step          Step of the loop
+     * @return              Future completed when the loop is over
+     */
+    static CompletableFuture<Void> loop(Step step) {
+        var loop = new Loop(step);
+        loop.iterate();
+        return loop.result;
+    }
+
+    /**
+     * Execute a continuation once the future is completed, propagating the failures
+     * @param future            Future to wait for
+     * @param continuation      Continuation to execute
+     * @return                  Future completed when the continuation is executed
+     */
+    static CompletableFuture<Void> then(CompletableFuture<?> future, Continuation continuation) {
+        return future.thenApply(v -> {
+            try {
+                continuation.execute();
+                return null;
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Remove the wrappers added by the CompletableFuture machinery
+     * @param throwable     Exception (possibly wrapped)
+     * @return              Underlying exception (NULL if none)
+     */
+    static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null)
+            throwable = throwable.getCause();
+        return throwable;
+    }
+
+    /**
+     * State of an asynchronous loop
+     */
+    private static final class Loop implements BiConsumer<Boolean, Throwable> {
+        private final Step step;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Loop(Step step) {
+            this.step = step;
+        }
+
+        /**
+         * Execute steps until one of them is completed asynchronously or the loop is over
+         */
+        void iterate() {
+            try {
+                while (true) {
+                    var next = step.execute();
+                    if (!next.isDone()) {
+                        next.whenComplete(this);
+                        return;
+                    }
+                    if (next.isCompletedExceptionally()) {
+                        next.whenComplete(this);
+                        return;
+                    }
+                    if (!next.join()) {
+                        result.complete(null);
+                        return;
+                    }
+                }
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Continue the loop once an asynchronous step is completed
+         * @param isContinued   Must the loop continue?
+         * @param throwable     Exception thrown by the step (if any)
+         */
+        @Override
+        public void accept(Boolean isContinued, Throwable throwable) {
+            if (throwable != null)
+                result.completeExceptionally(unwrap(throwable));
+            else if (isContinued)
+                iterate();
+            else
+                result.complete(null);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package org.extensiblecommands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements asynchronous logging to a file. Log entries are put into a bounded ring buffer
+ * (preallocated at construction), and a background writer thread drains them in batches to the file,
+ * so that the threads executing commands never wait for the file system.
+ * When the buffer is full, the overflow policy decides whether the logging thread waits or entries are dropped.
+ * The entries of a batch that fails to be written are dropped, the next batch is written again.
+ */
+public class AsyncFileLog implements Log, AutoCloseable {
+    /**
+     * Enumeration for policies applied when the ring buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the writer frees a slot (no entry is lost)
+         */
+        Block,
+        /**
+         * Drop the oldest entry not written yet
+         */
+        DropOldest,
+        /**
+         * Drop Info entries, wait until the writer frees a slot for Error entries
+         */
+        DropInfo
+    }
+
+    /**
+     * Default capacity of the ring buffer (number of entries)
+     */
+    public static final int DefaultCapacity = 8192;
+
+    /**
+     * Maximum number of entries written in one batch
+     */
+    private static final int MaxBatchSize = 1024;
+
+    private final WritableByteChannel channel;
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Ring buffer of entries (timestamp, level and message of each entry are stored in parallel arrays)
+     */
+    private final String[] timestamps;
+    private final String[] levels;
+    private final String[] messages;
+
+    /**
+     * Ring buffer state (guarded by lock): index of the oldest entry and number of entries
+     */
+    private int head;
+    private int size;
+
+    /**
+     * Number of entries accepted into the buffer, and number of accepted entries written or dropped (guarded by lock)
+     */
+    private long acceptedCount;
+    private long processedCount;
+
+    private boolean isClosed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition processed = lock.newCondition();
+
+    private final LongAdder droppedInfoCount = new LongAdder();
+    private final LongAdder droppedErrorCount = new LongAdder();
+
+    /**
+     * Exception thrown by the last write (NULL if it succeeded)
+     */
+    private volatile IOException writeException;
+
+    private final Thread writerThread;
+
+    /**
+     * Constructor (entries are appended to the file, Info entries are dropped if the buffer is full)
+     * @param file              File to write log entries to (created if it does not exist)
+     * @throws IOException      Failed to open the file
+     */
+    public AsyncFileLog(Path file) throws IOException {
+        this(file, DefaultCapacity, OverflowPolicy.DropInfo);
+    }
+
+    /**
+     * Constructor (entries are appended to the file)
+     * @param file              File to write log entries to (created if it does not exist)
+     * @param capacity          Capacity of the ring buffer (number of entries)
+     * @param overflowPolicy    Policy applied when the ring buffer is full
+     * @throws IOException      Failed to open the file
+     */
+    public AsyncFileLog(Path file, int capacity, OverflowPolicy overflowPolicy) throws IOException {
+        this(FileChannel.open(requireNonNull(file, "Log file is NULL"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), capacity, overflowPolicy);
+    }
+
+    /**
+     * Constructor
+     * @param channel           Channel to write log entries to (closed when the log is closed)
+     * @param capacity          Capacity of the ring buffer (number of entries)
+     * @param overflowPolicy    Policy applied when the ring buffer is full
+     */
+    AsyncFileLog(WritableByteChannel channel, int capacity, OverflowPolicy overflowPolicy) {
+        requireNonNull(channel, "Log channel is NULL");
+        requireNonNull(overflowPolicy, "Overflow policy is NULL");
+        if (capacity <= 0)
+            throw new RuntimeException(String.format("Log buffer capacity %s is not positive", capacity));
+
+        this.channel = channel;
+        this.overflowPolicy = overflowPolicy;
+        timestamps = new String[capacity];
+        levels = new String[capacity];
+        messages = new String[capacity];
+
+        writerThread = CommandExecutors.newThreadFactory("ExtensibleCommands-log").newThread(this::write);
+        writerThread.start();
+    }
+
+    /**
+     * @return      Policy applied when the ring buffer is full
+     */
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return      Capacity of the ring buffer (number of entries)
+     */
+    public final int getCapacity() {
+        return messages.length;
+    }
+
+    /**
+     * @return      Number of entries dropped (because of overflow, write failure or logging after close)
+     */
+    public final long getNumberOfDroppedEntries() {
+        return droppedInfoCount.sum() + droppedErrorCount.sum();
+    }
+
+    /**
+     * @return      Number of Error entries dropped (because of overflow, write failure or logging after close)
+     */
+    public final long getNumberOfDroppedErrors() {
+        return droppedErrorCount.sum();
+    }
+
+    /**
+     * @return      Exception thrown by the last write (NULL if it succeeded): a transient failure is cleared
+     *              once the writer manages to write a batch again
+     */
+    public final IOException getWriteException() {
+        return writeException;
+    }
+
+    /**
+     * Put the message into the ring buffer (it is written to the file asynchronously)
+     * @param timestamp         Timestamp
+     * @param level             Log level
+     * @param message           Message to log
+     */
+    @Override
+    public void log(String timestamp, String level, String message) {
+        var isError = Logger.LogLevel.Error.toString().equals(level);
+
+        lock.lock();
+        try {
+            while (!isClosed && size == messages.length) {
+                if (overflowPolicy == OverflowPolicy.DropOldest) {
+                    dropOldest();
+                }
+                else if (overflowPolicy == OverflowPolicy.DropInfo && !isError) {
+                    droppedInfoCount.increment();
+                    return;
+                }
+                else {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+
+            if (isClosed) {
+                countDropped(isError);
+                return;
+            }
+
+            var tail = (head + size) % messages.length;
+            timestamps[tail] = timestamp;
+            levels[tail] = level;
+            messages[tail] = message;
+            size++;
+            acceptedCount++;
+
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until all entries logged so far are written to the file (or dropped)
+     * @param timeoutMsec       Wait timeout (msec)
+     * @return                  Have all entries been processed before the timeout?
+     */
+    public boolean flush(int timeoutMsec) throws InterruptedException {
+        var remainingNsec = TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+        lock.lock();
+        try {
+            var target = acceptedCount;
+            while (processedCount < target) {
+                if (remainingNsec <= 0)
+                    return false;
+                remainingNsec = processed.awaitNanos(remainingNsec);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the remaining entries, stop the writer thread and close the file.
+     * Entries logged after closing are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            isClosed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            writerThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Body of the writer thread: drain the ring buffer in batches until the log is closed.
+     * If the writer dies, the log is closed, so that the logging threads never wait for it.
+     */
+    private void write() {
+        try {
+            writeBatches();
+        }
+        finally {
+            stopAccepting();
+        }
+    }
+
+    /**
+     * Drain the ring buffer in batches until the log is closed. Only the references to the entries are taken
+     * under the lock, the entries are formatted and written after releasing it.
+     */
+    private void writeBatches() {
+        var batchTimestamps = new String[MaxBatchSize];
+        var batchLevels = new String[MaxBatchSize];
+        var batchMessages = new String[MaxBatchSize];
+        var batch = new StringBuilder();
+        var encoder = StandardCharsets.UTF_8.newEncoder();
+        var buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (true) {
+            int batchSize = 0;
+            int batchErrors = 0;
+
+            lock.lock();
+            try {
+                while (size == 0 && !isClosed)
+                    notEmpty.awaitUninterruptibly();
+
+                if (size == 0)
+                    return;  // Closed and drained
+
+                while (size > 0 && batchSize < MaxBatchSize) {
+                    batchTimestamps[batchSize] = timestamps[head];
+                    batchLevels[batchSize] = levels[head];
+                    batchMessages[batchSize] = messages[head];
+                    clear(head);
+                    head = (head + 1) % messages.length;
+                    size--;
+                    batchSize++;
+                }
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+
+            batch.setLength(0);
+            for (int i = 0; i < batchSize; i++) {
+                if (Logger.LogLevel.Error.toString().equals(batchLevels[i]))
+                    batchErrors++;
+                batch.append(batchTimestamps[i]).append(" - ").append(batchLevels[i]).append(" - ")
+                        .append(batchMessages[i]).append(System.lineSeparator());
+                batchTimestamps[i] = null;
+                batchLevels[i] = null;
+                batchMessages[i] = null;
+            }
+
+            try {
+                writeBatch(batch, encoder, buffer);
+                writeException = null;
+            }
+            catch (IOException | RuntimeException e) {
+                writeException = e instanceof IOException ? (IOException) e : new IOException(e);
+                droppedErrorCount.add(batchErrors);
+                droppedInfoCount.add(batchSize - batchErrors);
+            }
+
+            lock.lock();
+            try {
+                processedCount += batchSize;
+                processed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting entries when the writer stops (normally after close, or because it died):
+     * the entries that are not written are dropped and the waiting threads are released
+     */
+    private void stopAccepting() {
+        lock.lock();
+        try {
+            isClosed = true;
+            while (size > 0) {
+                countDropped(Logger.LogLevel.Error.toString().equals(levels[head]));
+                clear(head);
+                head = (head + 1) % messages.length;
+                size--;
+            }
+            processedCount = acceptedCount;
+            notFull.signalAll();
+            processed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encode a batch of entries and write it to the channel
+     * @param batch             Batch of formatted entries
+     * @param encoder           Character encoder
+     * @param buffer            Buffer to encode the batch into (reused between batches)
+     * @throws IOException      Failed to write the batch
+     */
+    private void writeBatch(CharSequence batch, CharsetEncoder encoder, ByteBuffer buffer) throws IOException {
+        var chars = CharBuffer.wrap(batch);
+        // Discard the bytes left by a failed write
+        buffer.clear();
+        encoder.reset();
+        while (true) {
+            var result = chars.hasRemaining() ? encoder.encode(chars, buffer, true) : encoder.flush(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+
+            if (result.isError())
+                result.throwException();
+            if (!chars.hasRemaining() && result == CoderResult.UNDERFLOW)
+                return;
+        }
+    }
+
+    /**
+     * Drop the oldest entry of the ring buffer (the lock must be held)
+     */
+    private void dropOldest() {
+        countDropped(Logger.LogLevel.Error.toString().equals(levels[head]));
+        clear(head);
+        head = (head + 1) % messages.length;
+        size--;
+        processedCount++;
+        processed.signalAll();
+    }
+
+    /**
+     * Release the references held by a slot of the ring buffer (the lock must be held)
+     * @param index         Index of the slot
+     */
+    private void clear(int index) {
+        timestamps[index] = null;
+        levels[index] = null;
+        messages[index] = null;
+    }
+
+    /**
+     * Count a dropped entry
+     * @param isError       Is it an Error entry?
+     */
+    private void countDropped(boolean isError) {
+        if (isError)
+            droppedErrorCount.increment();
+        else
+            droppedInfoCount.increment();
+    }
+}
@@ -0,0 +1,9 @@
+package org.extensiblecommands;
+
+/**
+ * Type of delegate to execute a command that observes the abort of the command through its cancellation token
+ * (and that may call the checkpoint of the command through the token, see CancellationToken.checkpoint())
+ */
+public interface CancellableExecutionDelegate {
+    void execute(CancellationToken cancellationToken) throws Exception;
+}
@@ -0,0 +1,193 @@
+package org.extensiblecommands;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Signals the abort of a command run to the code executed by the command.
+ * Long operations can poll the token, wait on it instead of sleeping, or register callbacks
+ * to stop blocking operations (e.g. close a socket) as soon as the command is aborted.
+ * The token is re-armed at the start of every run, callbacks are registered for the current run only.
+ * The token of a command also gives the code executed by the command access to its cooperative checkpoint.
+ */
+public final class CancellationToken {
+    /**
+     * Type of the checkpoint of the command owning a token
+     */
+    interface Checkpoint {
+        void check() throws InterruptedException;
+    }
+
+    /**
+     * Event signaling the cancellation (armed until the cancellation is requested)
+     */
+    private final ManualResetEvent eventCancelled = new ManualResetEvent(true);
+
+    /**
+     * Lock protecting the callbacks against concurrent registration and cancellation
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Callbacks to invoke on cancellation
+     */
+    private List<Runnable> callbacks = new ArrayList<>();
+
+    private volatile boolean cancellationRequested;
+
+    /**
+     * Checkpoint of the command owning the token (NULL if the token is not owned by a command)
+     */
+    private final Checkpoint checkpoint;
+
+    /**
+     * Constructor (token not owned by a command)
+     */
+    public CancellationToken() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     * @param checkpoint    Checkpoint of the command owning the token (NULL if none)
+     */
+    CancellationToken(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return      Has the cancellation been requested?
+     */
+    public boolean isCancellationRequested() {
+        return cancellationRequested;
+    }
+
+    /**
+     * Cooperative checkpoint to be called by long operations (e.g. in every iteration of a loop):
+     * waits while the command owning the token is paused, and throws if it is aborted
+     * (the command then ends in Aborted state). Does nothing if the command is not running.
+     * As long as no Abort, Pause or Resume request is issued, the checkpoint costs a single volatile read.
+     * @throws ExtensibleCommandsAbortedException   If the command is aborted
+     */
+    public void checkpoint() throws InterruptedException {
+        if (checkpoint != null)
+            checkpoint.check();
+    }
+
+    /**
+     * Register a callback to invoke when the cancellation is requested (on the thread requesting it).
+     * If the cancellation has already been requested, the callback is invoked immediately on the calling thread.
+     * @param callback      Callback to invoke
+     * @return              Disposable to unregister the callback
+     */
+    public Disposable register(Runnable callback) {
+        requireNonNull(callback, "Cancellation callback is NULL");
+
+        lock.lock();
+        try {
+            if (!cancellationRequested) {
+                callbacks.add(callback);
+                return Disposables.fromRunnable(() -> unregister(callback));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        callback.run();
+        return Disposables.disposed();
+    }
+
+    /**
+     * Wait until the cancellation is requested or the timeout expires (to be used instead of Thread.sleep())
+     * @param timeout       Wait timeout
+     * @param unit          Time unit of the timeout
+     * @return              Has the cancellation been requested?
+     */
+    public boolean waitForCancellation(long timeout, TimeUnit unit) throws InterruptedException {
+        return eventCancelled.waitOne(timeout, unit);
+    }
+
+    /**
+     * Asynchronous version of waitForCancellation(): no thread is blocked while waiting
+     * @param timeout       Wait timeout
+     * @param unit          Time unit of the timeout
+     * @return              Future completed with true if the cancellation has been requested, false if the timeout expired
+     */
+    public CompletableFuture<Boolean> waitForCancellationAsync(long timeout, TimeUnit unit) {
+        var result = new CompletableFuture<Boolean>();
+        var registration = register(() -> result.complete(true));
+        if (!result.isDone()) {
+            CompletableFuture.delayedExecutor(timeout, unit, CommandExecutors.getDefaultExecutor())
+                    .execute(() -> result.complete(false));
+        }
+        result.whenComplete((cancelled, e) -> registration.dispose());
+        return result;
+    }
+
+    /**
+     * Request the cancellation and invoke the registered callbacks (only the first request invokes them)
+     */
+    void cancel() {
+        List<Runnable> toInvoke;
+        lock.lock();
+        try {
+            if (cancellationRequested)
+                return;
+            cancellationRequested = true;
+            toInvoke = callbacks;
+            callbacks = new ArrayList<>();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        eventCancelled.set();
+        for (var callback : toInvoke) {
+            // A failing callback must not prevent the others from stopping their operations
+            try {
+                callback.run();
+            }
+            catch (RuntimeException e) {
+                Logger.log(Logger.LogLevel.Error, "Cancellation callback failed: %s", e);
+            }
+        }
+    }
+
+    /**
+     * Re-arm the token for a new run (callbacks of the previous run are dropped)
+     */
+    void reset() {
+        lock.lock();
+        try {
+            cancellationRequested = false;
+            callbacks = new ArrayList<>();
+            eventCancelled.reset();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregister a callback
+     * @param callback      Callback to unregister
+     */
+    private void unregister(Runnable callback) {
+        lock.lock();
+        try {
+            callbacks.remove(callback);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
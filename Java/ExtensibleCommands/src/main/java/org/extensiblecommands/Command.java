@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import io.reactivex.subjects.PublishSubject;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Command state enumeration
@@ -60,6 +62,36 @@ public interface Command {
      */
     long getElapsedTimeMsec();
 
+    /**
+     * @return      Current elapsed time of command execution (in nsec). Can be queried before command completion.
+     *              By default, derived from the elapsed time in msec.
+     */
+    default long getElapsedTimeNsec() {
+        return TimeUnit.MILLISECONDS.toNanos(getElapsedTimeMsec());
+    }
+
+    /**
+     * @return      Estimated execution time of the command (zero if unknown)
+     */
+    default Duration getEstimatedTime() {
+        return Duration.ofNanos(getEstimatedTimeNsec());
+    }
+
+    /**
+     * @return      Estimated execution time of the command (in msec, 0 if unknown). By default, the time is unknown.
+     */
+    default long getEstimatedTimeMsec() {
+        return 0;
+    }
+
+    /**
+     * @return      Estimated execution time of the command (in nsec, 0 if unknown).
+     *              By default, derived from the estimated time in msec.
+     */
+    default long getEstimatedTimeNsec() {
+        return TimeUnit.MILLISECONDS.toNanos(getEstimatedTimeMsec());
+    }
+
     /**
      * @return      Fraction of command completed (between 0 and 1)
      */
@@ -75,6 +107,25 @@ public interface Command {
      */
     void run() throws Exception;
 
+    /**
+     * Run the command asynchronously. By default, the command is run on a worker thread of the default executor.
+     * @return      Future completed with the final state of the command,
+     *              or completed exceptionally if an exception not handled by Extensible Commands is thrown
+     */
+    default CompletableFuture<State> runAsync() {
+        var result = new CompletableFuture<State>();
+        CommandExecutors.getDefaultExecutor().execute(() -> {
+            try {
+                run();
+                result.complete(getState());
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
     /**
      * Pause command execution
      */
@@ -0,0 +1,322 @@
+package org.extensiblecommands;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements the library-wide facade for executors used by commands that fan out their sub-commands
+ * (e.g. ParallelCommand). By default, sub-commands are executed by a shared pool of named daemon worker threads.
+ * The default pool is not bounded: a parent command blocks while waiting for its sub-commands,
+ * so a bounded pool could be exhausted by nested Parallel commands.
+ * On Java 21 and later an opt-in virtual thread mode is available: it is enabled either by calling
+ * useVirtualThreads() or by setting the system property "extensiblecommands.virtualThreads" to "true".
+ * A work-stealing mode keeps the number of threads near the number of cores instead (see useWorkStealingPool()):
+ * a Parallel command running on a worker of the pool forks its branches into the local work queue of the worker
+ * and executes them itself while waiting, and blocking operations (operations of blocking simple commands,
+ * waits for events, pauses) let the pool activate a spare worker for their duration (see runBlocking()).
+ */
+public class CommandExecutors {
+    /**
+     * Name prefix of the default worker threads
+     */
+    public static final String DefaultThreadNamePrefix = "ExtensibleCommands-worker";
+
+    /**
+     * System property enabling the virtual thread mode for the default executor
+     */
+    public static final String VirtualThreadsProperty = "extensiblecommands.virtualThreads";
+
+    private static volatile Executor defaultExecutor;
+
+    /**
+     * Default executor created by the library (NULL if the default executor is supplied by the application):
+     * it is shut down when the default executor is replaced
+     */
+    private static ExecutorService ownedExecutor;
+
+    /**
+     * Is the current worker thread of a fork-join pool executing a managed blocking operation?
+     * (nested blocking operations must not activate more spare workers)
+     */
+    private static final ThreadLocal<Boolean> isInManagedBlock = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Handle of Executors.newVirtualThreadPerTaskExecutor() (NULL if virtual threads are not supported by the runtime)
+     */
+    private static final MethodHandle virtualThreadExecutorFactory = findVirtualThreadPerTaskExecutor();
+
+    /**
+     * Set default executor used by commands that have no executor of their own.
+     * The previous default executor is shut down if it was created by the library (the tasks already submitted
+     * are still executed), so the default executor should be replaced while no command is running on it.
+     * An executor supplied by the application is never shut down by the library.
+     * @param executor      Executor to use (NULL restores the default worker pool)
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        replaceDefaultExecutor(executor, false);
+    }
+
+    /**
+     * Replace the default executor, shutting down the previous one if it was created by the library
+     * @param executor      Executor to use (NULL restores the default worker pool)
+     * @param isOwned       Has the executor been created by the library?
+     */
+    private static void replaceDefaultExecutor(Executor executor, boolean isOwned) {
+        ExecutorService previousExecutor;
+        synchronized (CommandExecutors.class) {
+            if (executor != null && executor == ownedExecutor)
+                return;
+
+            previousExecutor = ownedExecutor;
+
+            ownedExecutor = isOwned ? (ExecutorService) executor : null;
+            defaultExecutor = executor;
+        }
+
+        if (previousExecutor != null)
+            previousExecutor.shutdown();
+    }
+
+    /**
+     * @return              Default executor used by commands that have no executor of their own
+     */
+    public static Executor getDefaultExecutor() {
+        var executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (CommandExecutors.class) {
+                if (defaultExecutor == null) {
+                    ownedExecutor = Boolean.getBoolean(VirtualThreadsProperty) ?
+                            newVirtualThreadPerTaskExecutor() : newCachedThreadPool(DefaultThreadNamePrefix);
+                    defaultExecutor = ownedExecutor;
+                }
+                executor = defaultExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return              Are virtual threads supported by the Java runtime (Java 21 or later)?
+     */
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadExecutorFactory != null;
+    }
+
+    /**
+     * Switch the default executor to the virtual thread mode: every sub-command runs on its own virtual thread.
+     * The previous default executor is shut down if it was created by the library (see setDefaultExecutor()).
+     */
+    public static void useVirtualThreads() {
+        replaceDefaultExecutor(newVirtualThreadPerTaskExecutor(), true);
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for every task
+     * @return              Executor service
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (virtualThreadExecutorFactory == null)
+            throw new UnsupportedOperationException(String.format("Virtual threads are not supported by Java %s",
+                    System.getProperty("java.version")));
+        try {
+            return (ExecutorService) virtualThreadExecutorFactory.invokeExact();
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new UnsupportedOperationException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Switch the default executor to a work-stealing pool with one worker per available processor.
+     * The previous default executor is shut down if it was created by the library (see setDefaultExecutor()).
+     */
+    public static void useWorkStealingPool() {
+        var pool = newWorkStealingPool(Runtime.getRuntime().availableProcessors(), DefaultThreadNamePrefix);
+        replaceDefaultExecutor(pool, true);
+    }
+
+    /**
+     * Create a work-stealing pool: a waiting Parallel command executes its branches instead of blocking its worker,
+     * and blocking operations are compensated by spare workers, so the pool keeps about one active worker per processor
+     * @param parallelism           Target number of active workers
+     * @param threadNamePrefix      Name prefix of the worker threads
+     * @return                      Executor service
+     */
+    public static ForkJoinPool newWorkStealingPool(int parallelism, String threadNamePrefix) {
+        requireNonNull(threadNamePrefix, "Thread name prefix is NULL");
+        if (parallelism <= 0)
+            throw new RuntimeException(String.format("Invalid parallelism of work-stealing pool: %s", parallelism));
+
+        var threadNumber = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(String.format("%s-%s", threadNamePrefix, threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+        // Local queues are processed in LIFO order: a waiting parent finds the branches it has just forked on top
+        return new ForkJoinPool(parallelism, threadFactory, null, false);
+    }
+
+    /**
+     * Execute a blocking operation. On a worker of a fork-join pool (e.g. a work-stealing pool) the pool may activate
+     * a spare worker while the operation is blocked, so that the work queued in the pool keeps being executed.
+     * Elsewhere the operation is just executed.
+     * @param operation     Blocking operation
+     */
+    public static void runBlocking(ExecutionDelegate operation) throws Exception {
+        requireNonNull(operation, "Blocking operation is NULL");
+
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread) || isInManagedBlock.get()) {
+            operation.execute();
+            return;
+        }
+
+        var blocker = new BlockingOperation(operation);
+        managedBlock(blocker);
+        if (blocker.exception != null)
+            throw blocker.exception;
+    }
+
+    /**
+     * Run a top-level command asynchronously on the default executor
+     * (i.e. on a virtual thread if the virtual thread mode is enabled)
+     * @param command       Command to run
+     * @return              Future signaling the end of the command execution
+     */
+    public static Future<?> submit(Command command) {
+        requireNonNull(command, "Attempt to submit NULL command");
+
+        var task = new FutureTask<Void>(() -> {
+            command.run();
+            return null;
+        });
+        getDefaultExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Create a pool that reuses idle threads and spawns new ones when all threads are busy
+     * @param threadNamePrefix      Name prefix of the worker threads
+     * @return                      Executor service
+     */
+    public static ExecutorService newCachedThreadPool(String threadNamePrefix) {
+        return Executors.newCachedThreadPool(newThreadFactory(threadNamePrefix));
+    }
+
+    /**
+     * @return              Executor spawning a new thread for every task (behavior of the earlier library versions)
+     */
+    public static Executor threadPerTask() {
+        return runnable -> new Thread(runnable).start();
+    }
+
+    /**
+     * Create a factory of named daemon threads
+     * @param threadNamePrefix      Name prefix of the threads
+     * @return                      Thread factory
+     */
+    public static ThreadFactory newThreadFactory(String threadNamePrefix) {
+        requireNonNull(threadNamePrefix, "Thread name prefix is NULL");
+
+        var threadNumber = new AtomicInteger();
+        return runnable -> {
+            var thread = new Thread(runnable, String.format("%s-%s", threadNamePrefix, threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Execute a task with the executor. On a worker of the executor (if it is a fork-join pool) the task is forked
+     * into the local work queue of the worker instead, so that the caller can execute it itself while joining it.
+     * @param executor      Executor
+     * @param task          Task to execute
+     * @return              Forked task to join (NULL if the task is handed over to the executor)
+     */
+    static ForkJoinTask<?> fork(Executor executor, Runnable task) {
+        if (executor instanceof ForkJoinPool && ForkJoinTask.getPool() == executor)
+            return ForkJoinTask.adapt(task).fork();
+
+        executor.execute(task);
+        return null;
+    }
+
+    /**
+     * Block until the blocker is released. On a worker of a fork-join pool the pool may activate a spare worker meanwhile
+     * (unless the worker is already executing a managed blocking operation).
+     * @param blocker       Blocker
+     */
+    static void managedBlock(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread) || isInManagedBlock.get()) {
+            while (!blocker.isReleasable() && !blocker.block()) {
+                // Blocker is not released yet
+            }
+            return;
+        }
+
+        isInManagedBlock.set(true);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        }
+        finally {
+            isInManagedBlock.set(false);
+        }
+    }
+
+    /**
+     * @return              Handle of Executors.newVirtualThreadPerTaskExecutor() (NULL if not supported by the runtime)
+     */
+    private static MethodHandle findVirtualThreadPerTaskExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Blocking operation executed by a fork-join pool worker: the exception of the operation is rethrown by the caller
+     */
+    private static final class BlockingOperation implements ForkJoinPool.ManagedBlocker {
+        private final ExecutionDelegate operation;
+        private boolean isDone;
+        private Exception exception;
+
+        BlockingOperation(ExecutionDelegate operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                operation.execute();
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                exception = e;
+            }
+            finally {
+                isDone = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return isDone;
+        }
+    }
+}
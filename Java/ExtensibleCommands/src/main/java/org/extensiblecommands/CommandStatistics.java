@@ -0,0 +1,341 @@
+package org.extensiblecommands;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rolling execution statistics of the commands sharing a key (command name or path) in ExecutionStatistics.
+ * The outcomes and execution times of the last runs are kept in a lock-free ring buffer (one slot per run),
+ * so recording a run is a few atomic operations on the executing thread.
+ * Statistics are calculated on demand from the ring buffer, except for the anomaly window
+ * (mean and standard deviation of execution time) that is refreshed periodically while recording,
+ * in a single pass over the ring buffer that does not allocate.
+ */
+public class CommandStatistics {
+    /**
+     * Outcome of a run encoded in the lowest bits of a ring buffer slot
+     */
+    private static final int OutcomeBits = 2;
+    private static final long OutcomeMask = (1 << OutcomeBits) - 1;
+    private static final long Completed = 0;
+    private static final long Failed = 1;
+    private static final long Aborted = 2;
+
+    /**
+     * Value of a ring buffer slot not written yet
+     */
+    private static final long EmptySlot = -1;
+
+    private final String key;
+
+    /**
+     * Ring buffer of the last runs: (execution time in nsec << OutcomeBits) | outcome
+     */
+    private final AtomicLongArray samples;
+
+    /**
+     * Number of runs recorded (the next slot to write is writeCount % window size)
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder abortedCount = new LongAdder();
+
+    /**
+     * Number of recorded runs between two refreshes of the anomaly window
+     */
+    private final int refreshInterval;
+
+    /**
+     * Half-width of the anomaly window (in standard deviations of execution time)
+     */
+    private final double anomalyThresholdSigmas;
+
+    /**
+     * Minimum number of completed runs in the window to detect anomalies
+     */
+    private final int minimumSamples;
+
+    /**
+     * Anomaly window: range of normal execution times (nsec), refreshed periodically.
+     * The range is empty (low > high) until enough runs are recorded.
+     */
+    private volatile long normalTimeLowNsec = Long.MAX_VALUE;
+    private volatile long normalTimeHighNsec = Long.MIN_VALUE;
+
+    /**
+     * Constructor
+     * @param key                       Key of the statistics (command name or path)
+     * @param windowSize                Number of last runs the statistics are calculated from
+     * @param anomalyThresholdSigmas    Half-width of the anomaly window (in standard deviations of execution time)
+     * @param minimumSamples            Minimum number of completed runs in the window to detect anomalies
+     */
+    CommandStatistics(String key, int windowSize, double anomalyThresholdSigmas, int minimumSamples) {
+        this.key = key;
+        this.anomalyThresholdSigmas = anomalyThresholdSigmas;
+        this.minimumSamples = minimumSamples;
+        samples = new AtomicLongArray(windowSize);
+        for (int i = 0; i < windowSize; i++)
+            samples.set(i, EmptySlot);
+        refreshInterval = Math.max(1, windowSize / 8);
+    }
+
+    /**
+     * @return      Key of the statistics (command name or path)
+     */
+    public final String getKey() {
+        return key;
+    }
+
+    /**
+     * @return      Number of last runs the statistics are calculated from
+     */
+    public final int getWindowSize() {
+        return samples.length();
+    }
+
+    /**
+     * @return      Total number of runs recorded (not limited by the window)
+     */
+    public final long getCount() {
+        return completedCount.sum() + failedCount.sum() + abortedCount.sum();
+    }
+
+    /**
+     * @return      Total number of successfully completed runs (not limited by the window)
+     */
+    public final long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * @return      Total number of failed runs (not limited by the window)
+     */
+    public final long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * @return      Total number of aborted runs (not limited by the window)
+     */
+    public final long getAbortedCount() {
+        return abortedCount.sum();
+    }
+
+    /**
+     * @return      Fraction of failed runs among completed and failed runs in the window (aborted runs are ignored)
+     */
+    public final double getFailureRate() {
+        int completed = 0;
+        int failed = 0;
+        for (int i = 0; i < samples.length(); i++) {
+            var sample = samples.get(i);
+            if (sample == EmptySlot)
+                continue;
+            if ((sample & OutcomeMask) == Completed)
+                completed++;
+            else if ((sample & OutcomeMask) == Failed)
+                failed++;
+        }
+        return completed + failed > 0 ? (double) failed / (completed + failed) : 0.0;
+    }
+
+    /**
+     * @return      Mean execution time of completed runs in the window (nsec, 0 if none)
+     */
+    public final double getMeanNsec() {
+        var times = getCompletedTimes();
+        return times.length > 0 ? mean(times) : 0.0;
+    }
+
+    /**
+     * @return      Standard deviation of execution time of completed runs in the window (nsec, 0 if none)
+     */
+    public final double getStandardDeviationNsec() {
+        var times = getCompletedTimes();
+        return times.length > 0 ? standardDeviation(times, mean(times)) : 0.0;
+    }
+
+    /**
+     * Get execution time at a given percentile of completed runs in the window
+     * @param percentile    Percentile (between 0 and 100)
+     * @return              Execution time (nsec, 0 if there are no completed runs)
+     */
+    public final long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new RuntimeException(String.format("Percentile %s is out of range [0, 100]", percentile));
+
+        var times = getCompletedTimes();
+        if (times.length == 0)
+            return 0;
+
+        Arrays.sort(times);
+        var rank = (int) Math.ceil(percentile / 100 * times.length);
+        return times[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * @return      Lower bound of the range of normal execution times (nsec), derived from the window periodically
+     */
+    public final long getNormalTimeLowNsec() {
+        return normalTimeLowNsec;
+    }
+
+    /**
+     * @return      Upper bound of the range of normal execution times (nsec), derived from the window periodically
+     */
+    public final long getNormalTimeHighNsec() {
+        return normalTimeHighNsec;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%s, mean=%.0f, p50=%s, p99=%s (nsec), failure rate=%.3f", key, getCount(),
+                getMeanNsec(), getValueAtPercentile(50), getValueAtPercentile(99), getFailureRate());
+    }
+
+    /**
+     * Check the execution time of a completed run against the range of normal execution times
+     * @param command           Command
+     * @param elapsedTimeNsec   Execution time (nsec)
+     * @return                  Anomaly if the execution time is out of the normal range (NULL otherwise)
+     */
+    ExecutionAnomaly detectAnomaly(Command command, long elapsedTimeNsec) {
+        var low = normalTimeLowNsec;
+        var high = normalTimeHighNsec;
+        if (low > high || (elapsedTimeNsec >= low && elapsedTimeNsec <= high))
+            return null;
+
+        return new ExecutionAnomaly(command, key, elapsedTimeNsec, low, high);
+    }
+
+    /**
+     * Record a run (called on the executing thread)
+     * @param state             Final state of the run
+     * @param elapsedTimeNsec   Execution time (nsec)
+     * @return                  Index of the run (to correct it if the final state changes)
+     */
+    long record(State state, long elapsedTimeNsec) {
+        count(state, 1);
+
+        var index = writeCount.getAndIncrement();
+        samples.set((int) (index % samples.length()), encode(state, elapsedTimeNsec));
+
+        // The cost of refreshing the window is spread over the refresh interval
+        if ((index + 1) % refreshInterval == 0)
+            refreshAnomalyWindow();
+        return index;
+    }
+
+    /**
+     * Fill the window with completed runs spread over the distribution of a histogram of previous execution times
+     * (the runs are not counted in the totals)
+     * @param histogram         Histogram of previous execution times
+     */
+    void seed(LatencyHistogram histogram) {
+        for (var value : histogram.getQuantiles((int) Math.min(samples.length(), histogram.getTotalCount()))) {
+            var index = writeCount.getAndIncrement();
+            samples.set((int) (index % samples.length()), encode(State.Completed, value));
+        }
+        refreshAnomalyWindow();
+    }
+
+    /**
+     * Correct a recorded run whose final state has changed (e.g. Completed changed to Failed by error checks)
+     * @param index                     Index of the run
+     * @param previousState             Final state recorded previously
+     * @param previousElapsedTimeNsec   Execution time recorded previously (nsec)
+     * @param state                     New final state of the run
+     * @param elapsedTimeNsec           New execution time (nsec)
+     */
+    void correct(long index, State previousState, long previousElapsedTimeNsec, State state, long elapsedTimeNsec) {
+        count(previousState, -1);
+        count(state, 1);
+
+        // The slot may have been reused by a later run in the meantime
+        samples.compareAndSet((int) (index % samples.length()), encode(previousState, previousElapsedTimeNsec),
+                encode(state, elapsedTimeNsec));
+    }
+
+    /**
+     * @param state             Final state of a run
+     * @param delta             Change of the number of runs with the state
+     */
+    private void count(State state, int delta) {
+        if (state == State.Completed)
+            completedCount.add(delta);
+        else if (state == State.Failed)
+            failedCount.add(delta);
+        else
+            abortedCount.add(delta);
+    }
+
+    /**
+     * @param state             Final state of a run
+     * @param elapsedTimeNsec   Execution time (nsec)
+     * @return                  Value of the ring buffer slot
+     */
+    private static long encode(State state, long elapsedTimeNsec) {
+        var outcome = state == State.Completed ? Completed : state == State.Failed ? Failed : Aborted;
+        return (Math.max(elapsedTimeNsec, 0) << OutcomeBits) | outcome;
+    }
+
+    /**
+     * Refresh the anomaly window from the completed runs in the ring buffer (called on the executing thread,
+     * so the mean and the variance are accumulated in a single pass, without copying the execution times)
+     */
+    private void refreshAnomalyWindow() {
+        int count = 0;
+        double mean = 0;
+        double sumOfSquares = 0;
+        for (int i = 0; i < samples.length(); i++) {
+            var sample = samples.get(i);
+            if (sample == EmptySlot || (sample & OutcomeMask) != Completed)
+                continue;
+
+            // Welford's online algorithm
+            double time = sample >>> OutcomeBits;
+            count++;
+            var delta = time - mean;
+            mean += delta / count;
+            sumOfSquares += delta * (time - mean);
+        }
+        if (count < minimumSamples || count == 0)
+            return;
+
+        var tolerance = anomalyThresholdSigmas * Math.sqrt(sumOfSquares / count);
+        normalTimeLowNsec = (long) Math.floor(mean - tolerance);
+        normalTimeHighNsec = (long) Math.ceil(mean + tolerance);
+    }
+
+    /**
+     * @return      Execution times of completed runs in the window (nsec)
+     */
+    private long[] getCompletedTimes() {
+        var times = new long[samples.length()];
+        int count = 0;
+        for (int i = 0; i < samples.length(); i++) {
+            var sample = samples.get(i);
+            if (sample != EmptySlot && (sample & OutcomeMask) == Completed)
+                times[count++] = sample >>> OutcomeBits;
+        }
+        return Arrays.copyOf(times, count);
+    }
+
+    private static double mean(long[] values) {
+        double sum = 0;
+        for (var value : values)
+            sum += value;
+        return sum / values.length;
+    }
+
+    private static double standardDeviation(long[] values, double mean) {
+        double sum = 0;
+        for (var value : values)
+            sum += (value - mean) * (value - mean);
+        return Math.sqrt(sum / values.length);
+    }
+}
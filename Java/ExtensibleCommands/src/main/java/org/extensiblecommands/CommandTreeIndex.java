@@ -0,0 +1,346 @@
+package org.extensiblecommands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable structural index of a command tree (children, descendants, leaves, depth, weights of the leaves).
+ * The index of a command is cached and rebuilt only when the structure of its own tree changes,
+ * i.e. when a sub-command is added to the command or to one of its descendants.
+ * Every command keeps a structure version, incremented by a structural change of the command and of its descendants:
+ * the change is propagated to the ancestors through the parent links (a sub-command shared between several trees
+ * invalidates all of them). The index records the version of the command it has been built for, and is rebuilt lazily
+ * (from the indexes of its children) the next time it is requested after the version has changed.
+ * Commands not derived from AbstractCommand have no parent links: their index is built on every request,
+ * but a structural change below them is not propagated to their ancestors.
+ * The estimated times used to weigh the leaves (and to estimate the remaining time of a run) are captured by the index
+ * for a library-wide version of the estimates, incremented when an estimate may have changed (estimated time set explicitly,
+ * execution times measured, branch probabilities learned). The root of a run refreshes the estimates of its tree
+ * only if the version has changed since they were captured, the commands it runs use the captured estimates.
+ */
+final class CommandTreeIndex {
+    /**
+     * Structure version of the command the index has been built for
+     */
+    private final long version;
+
+    /**
+     * Child commands (1st level only)
+     */
+    private final List<Command> children;
+
+    /**
+     * Descendant commands (all levels, in pre-order)
+     */
+    private final List<Command> descendants;
+
+    /**
+     * Descendants that do not have their own descendants (i.e. leaves on the tree)
+     */
+    private final List<Command> leaves;
+
+    /**
+     * Leaves that cannot notify the command of their completion through parent links
+     * (i.e. leaves not derived from AbstractCommand, or below a command not derived from AbstractCommand)
+     */
+    private final List<Command> unlinkedLeaves;
+
+    /**
+     * Topmost descendants handling Abort, Pause and Resume requests themselves (the requests are delivered to them explicitly,
+     * and they deliver the requests to their own descendants)
+     */
+    private final List<Command> customControlDescendants;
+
+    /**
+     * Resources used by the descendants (sorted)
+     */
+    private final Set<String> resources;
+
+    /**
+     * Number of levels below the command (0 for a command without children)
+     */
+    private final int depth;
+
+    /**
+     * Estimates captured by the index (NULL until requested)
+     */
+    private volatile Estimates estimates;
+
+    /**
+     * Library-wide version of the estimates (incremented when an estimate may have changed)
+     */
+    private static final AtomicLong estimatesVersion = new AtomicLong();
+
+    private CommandTreeIndex(long version, List<Command> children, List<Command> descendants, List<Command> leaves,
+                             List<Command> unlinkedLeaves, List<Command> customControlDescendants, Set<String> resources,
+                             int depth) {
+        this.version = version;
+        this.children = Collections.unmodifiableList(children);
+        this.descendants = Collections.unmodifiableList(descendants);
+        this.leaves = Collections.unmodifiableList(leaves);
+        this.unlinkedLeaves = unlinkedLeaves.isEmpty() ? List.of() : Collections.unmodifiableList(unlinkedLeaves);
+        this.customControlDescendants = customControlDescendants.isEmpty() ? List.of() :
+                Collections.unmodifiableList(customControlDescendants);
+        this.resources = resources.isEmpty() ? Set.of() : Collections.unmodifiableSet(resources);
+        this.depth = depth;
+    }
+
+    /**
+     * Build the index of a command from the indexes of its children
+     * @param version       Structure version of the command (read before its children are collected,
+     *                      so that a concurrent change invalidates the new index)
+     * @param children      Child commands (1st level only)
+     * @return              Index of the command
+     */
+    static CommandTreeIndex build(long version, List<Command> children) {
+        var descendants = new ArrayList<Command>();
+        var leaves = new ArrayList<Command>();
+        var unlinkedLeaves = new ArrayList<Command>();
+        var customControlDescendants = new ArrayList<Command>();
+        var resources = new TreeSet<String>();
+        int depth = 0;
+        for (var child : children) {
+            var childIndex = of(child);
+
+            descendants.add(child);
+            descendants.addAll(childIndex.descendants);
+
+            var childLeaves = childIndex.children.isEmpty() ? List.of(child) : childIndex.leaves;
+            leaves.addAll(childLeaves);
+
+            if (child instanceof AbstractCommand)
+                unlinkedLeaves.addAll(childIndex.unlinkedLeaves);
+            else
+                unlinkedLeaves.addAll(childLeaves);
+
+            if (AbstractCommand.hasCustomControl(child))
+                customControlDescendants.add(child);
+            else
+                customControlDescendants.addAll(childIndex.customControlDescendants);
+
+            if (child instanceof AbstractCommand)
+                resources.addAll(((AbstractCommand) child).getResources());
+
+            depth = Math.max(depth, childIndex.depth + 1);
+        }
+        return new CommandTreeIndex(version, children, descendants, leaves, unlinkedLeaves, customControlDescendants, resources,
+                depth);
+    }
+
+    /**
+     * @param command       Command
+     * @return              Index of the command (built on the fly for commands not derived from AbstractCommand)
+     */
+    static CommandTreeIndex of(Command command) {
+        if (command instanceof AbstractCommand)
+            return ((AbstractCommand) command).getTreeIndex();
+
+        var children = new ArrayList<Command>();
+        command.getChildren().forEach(children::add);
+        return build(0, children);
+    }
+
+    /**
+     * @param currentVersion    Current structure version of the command
+     * @return                  Is the index up to date with the structure of the command tree?
+     */
+    boolean isValid(long currentVersion) {
+        return version == currentVersion;
+    }
+
+    /**
+     * @return      Read-only list of child commands (1st level only)
+     */
+    List<Command> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return      Read-only list of descendant commands (all levels, in pre-order)
+     */
+    List<Command> getDescendants() {
+        return descendants;
+    }
+
+    /**
+     * @return      Read-only list of descendants that do not have their own descendants (i.e. leaves on the tree)
+     */
+    List<Command> getLeaves() {
+        return leaves;
+    }
+
+    /**
+     * @return      Read-only list of leaves that cannot notify the command of their completion through parent links
+     */
+    List<Command> getUnlinkedLeaves() {
+        return unlinkedLeaves;
+    }
+
+    /**
+     * @return      Read-only list of the topmost descendants handling Abort, Pause and Resume requests themselves
+     */
+    List<Command> getCustomControlDescendants() {
+        return customControlDescendants;
+    }
+
+    /**
+     * @return      Read-only sorted set of resources used by the descendants
+     */
+    Set<String> getResources() {
+        return resources;
+    }
+
+    /**
+     * @return      Number of levels below the command (0 for a command without children)
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Signal that an estimate may have changed: the estimates captured by the indexes are refreshed by the next run
+     */
+    static void invalidateEstimates() {
+        estimatesVersion.incrementAndGet();
+    }
+
+    /**
+     * Get the estimates of the command tree, refreshed (with the estimates of the subtrees) if an estimate may have changed
+     * since they were captured
+     * @param command       Command the index belongs to
+     * @return              Estimates
+     */
+    Estimates refreshEstimates(Command command) {
+        var current = estimates;
+        // Read the version before estimating, so that a concurrent change invalidates the new estimates
+        var version = estimatesVersion.get();
+        if (current == null || current.version != version) {
+            current = estimate(command, version, true);
+            estimates = current;
+        }
+        return current;
+    }
+
+    /**
+     * @param command       Command the index belongs to
+     * @return              Estimates of the command tree as captured (captured now if they have never been)
+     */
+    Estimates getEstimates(Command command) {
+        var current = estimates;
+        if (current == null) {
+            current = estimate(command, estimatesVersion.get(), false);
+            estimates = current;
+        }
+        return current;
+    }
+
+    /**
+     * Estimate the command tree from the estimates of its children
+     * @param command       Command the index belongs to
+     * @param version       Version of the estimates
+     * @param isRefreshing  Refresh the estimates of the children if they are outdated?
+     * @return              Estimates
+     */
+    private Estimates estimate(Command command, long version, boolean isRefreshing) {
+        // A leaf weighs its own estimated time
+        if (children.isEmpty()) {
+            var estimate = Math.max(0, command.getEstimatedTimeNsec());
+            return new Estimates(version, estimate, estimate > 0 ? 1 : 0, 1, estimate);
+        }
+
+        long estimatedLeafTimeNsec = 0;
+        int numberOfEstimatedLeaves = 0;
+        for (var child : children) {
+            var childIndex = of(child);
+            var childEstimates = isRefreshing ? childIndex.refreshEstimates(child) : childIndex.getEstimates(child);
+            estimatedLeafTimeNsec += childEstimates.estimatedLeafTimeNsec;
+            numberOfEstimatedLeaves += childEstimates.numberOfEstimatedLeaves;
+        }
+        return new Estimates(version, estimatedLeafTimeNsec, numberOfEstimatedLeaves, leaves.size(), -1);
+    }
+
+    /**
+     * Estimated times of a command tree, captured for a version of the estimates
+     */
+    static final class Estimates {
+        /**
+         * Version of the estimates they have been captured for
+         */
+        private final long version;
+
+        /**
+         * Total estimated time of the leaves with estimated time (nsec)
+         */
+        private final long estimatedLeafTimeNsec;
+
+        /**
+         * Number of leaves with estimated time
+         */
+        private final int numberOfEstimatedLeaves;
+
+        /**
+         * Weight of a leaf without estimated time: as much as an average leaf with estimated time,
+         * or 1 if no leaf has an estimated time (i.e. every leaf weighs 1)
+         */
+        private final long defaultLeafWeight;
+
+        /**
+         * Total weight of the leaves
+         */
+        private final long totalLeafWeight;
+
+        /**
+         * Estimated execution time of the command (nsec, negative until requested)
+         */
+        private volatile long estimatedTimeNsec;
+
+        private Estimates(long version, long estimatedLeafTimeNsec, int numberOfEstimatedLeaves, int numberOfLeaves,
+                          long estimatedTimeNsec) {
+            this.version = version;
+            this.estimatedLeafTimeNsec = estimatedLeafTimeNsec;
+            this.numberOfEstimatedLeaves = numberOfEstimatedLeaves;
+            this.defaultLeafWeight = numberOfEstimatedLeaves > 0 ? Math.max(1, estimatedLeafTimeNsec / numberOfEstimatedLeaves) : 1;
+            this.totalLeafWeight = estimatedLeafTimeNsec + (numberOfLeaves - numberOfEstimatedLeaves) * defaultLeafWeight;
+            this.estimatedTimeNsec = estimatedTimeNsec;
+        }
+
+        /**
+         * @return      Are the leaves weighted by their estimated times (otherwise every leaf weighs 1)?
+         */
+        boolean isWeightedByTime() {
+            return numberOfEstimatedLeaves > 0;
+        }
+
+        /**
+         * @return      Weight of a leaf without estimated time
+         */
+        long getDefaultLeafWeight() {
+            return defaultLeafWeight;
+        }
+
+        /**
+         * @return      Total weight of the leaves
+         */
+        long getTotalLeafWeight() {
+            return totalLeafWeight;
+        }
+
+        /**
+         * @param command       Command the estimates belong to
+         * @return              Estimated execution time of the command, captured the first time it is requested
+         *                      (nsec, 0 if unknown)
+         */
+        long getEstimatedTimeNsec(Command command) {
+            var estimate = estimatedTimeNsec;
+            if (estimate < 0) {
+                estimate = Math.max(0, command.getEstimatedTimeNsec());
+                estimatedTimeNsec = estimate;
+            }
+            return estimate;
+        }
+    }
+}
@@ -17,22 +17,12 @@ public abstract class CompositeCommand extends AbstractCommand implements Comman
     }
 
     /**
-     * @return      List of all child command objects (1st level only)
+     * Collect child command objects (1st level only)
+     * @param children      List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        return new ArrayList<>(subCommands);
-    }
-
-    /**
-     * @return      List of all descendant command objects (all levels)
-     */
-    @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<>(subCommands);
-        for (var subCommand : subCommands)
-            subCommand.getDescendants().forEach(c -> descendants.add(c));
-        return descendants;
+    protected void collectChildren(List<Command> children) {
+        children.addAll(subCommands);
     }
 
     /**
@@ -49,6 +39,8 @@ public abstract class CompositeCommand extends AbstractCommand implements Comman
             throw new RuntimeException(String.format("Attempt to add sub-command %s to executing command %s", subCommand.getName(), name));
 
         subCommands.add(subCommand);
+        linkChild(subCommand);
+        onStructureChanged();
         return this;
     }
 
@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
@@ -23,6 +24,17 @@ public class ConditionalCommand extends AbstractCommand implements Command {
      */
     private final PredicateDelegate predicate;
 
+    /**
+     * Probability of the conditional flag being true set explicitly (negative if not set)
+     */
+    private volatile double trueProbability = -1;
+
+    /**
+     * Number of times the conditional flag has been evaluated to true/false
+     */
+    private volatile int trueCount;
+    private volatile int falseCount;
+
     /**
      * Constructor
      * @param predicate         Predicate to evaluate to decide which sub-command to run
@@ -49,6 +61,8 @@ public class ConditionalCommand extends AbstractCommand implements Command {
         this.predicate = predicate;
         this.trueCommand = trueCommand;
         this.falseCommand = falseCommand;
+        linkChild(trueCommand);
+        linkChild(falseCommand);
     }
 
     /**
@@ -66,37 +80,87 @@ public class ConditionalCommand extends AbstractCommand implements Command {
     }
 
     /**
-     * @return      List of all child command objects (1st level only)
+     * @return      Probability of the conditional flag being true: either set explicitly,
+     *              or learned from the previous evaluations (0.5 if there were none)
+     */
+    public final double getTrueProbability() {
+        var probability = trueProbability;
+        if (probability >= 0)
+            return probability;
+
+        var trues = trueCount;
+        var total = trues + falseCount;
+        return total > 0 ? (double) trues / total : 0.5;
+    }
+
+    /**
+     * Set probability of the conditional flag being true (used to estimate execution time)
+     * @param trueProbability   Probability (between 0 and 1, negative to learn it from the previous evaluations)
+     * @return                  This command
+     */
+    public final ConditionalCommand setTrueProbability(double trueProbability) {
+        if (trueProbability > 1)
+            throw new RuntimeException(String.format("Probability %s is greater than 1 in ConditionalCommand %s",
+                    trueProbability, name));
+
+        this.trueProbability = trueProbability;
+        CommandTreeIndex.invalidateEstimates();
+        return this;
+    }
+
+    /**
+     * Collect child command objects (1st level only)
+     * @param children      List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        var children = new ArrayList<Command>();
+    protected void collectChildren(List<Command> children) {
         children.add(trueCommand);
         children.add(falseCommand);
-        return children;
     }
 
     /**
-     * @return      List of all descendant command objects (all levels)
+     * Estimate execution time: estimated times of the branches weighted by the probability of their execution
+     * @return      Estimated execution time (nsec, 0 if unknown)
      */
     @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<Command>();
-        descendants.add(trueCommand);
-        trueCommand.getDescendants().forEach(c -> descendants.add(c));
-        descendants.add(falseCommand);
-        falseCommand.getDescendants().forEach(c -> descendants.add(c));
-        return descendants;
+    protected long estimateTimeNsec() {
+        var probability = getTrueProbability();
+        return Math.round(probability * trueCommand.getEstimatedTimeNsec() +
+                (1 - probability) * falseCommand.getEstimatedTimeNsec());
     }
 
     @Override
     protected void execute() throws Exception {
-        if (predicate.evaluateCondition())
+        if (evaluateCondition())
             trueCommand.run();
         else
             falseCommand.run();
     }
 
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        var command = evaluateCondition() ? trueCommand : falseCommand;
+        return command.runAsync().thenAccept(s -> { });
+    }
+
+    /**
+     * Evaluate the predicate and count the outcome (runs of the same command do not overlap)
+     * @return      Conditional flag
+     */
+    private boolean evaluateCondition() {
+        var condition = predicate.evaluateCondition();
+        if (condition)
+            trueCount++;
+        else
+            falseCount++;
+
+        // The learned probability changes the estimated times (refreshed when the number of evaluations doubles)
+        var total = trueCount + falseCount;
+        if (trueProbability < 0 && (total & (total - 1)) == 0)
+            CommandTreeIndex.invalidateEstimates();
+        return condition;
+    }
+
     /**
      * Set the main command state based on the child commands states
      */
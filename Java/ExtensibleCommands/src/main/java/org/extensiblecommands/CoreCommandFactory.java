@@ -0,0 +1,10 @@
+package org.extensiblecommands;
+
+/**
+ * Type of delegate to create the core command of a worker of a parallel generic cyclic command
+ * @param <T>           Type of collection element
+ * @param <R>           Type of result produced for an element
+ */
+public interface CoreCommandFactory<T, R> {
+    Command create(ParallelGenericCyclicCommand<T, R>.Worker worker);
+}
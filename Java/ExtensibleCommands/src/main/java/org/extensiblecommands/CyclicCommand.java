@@ -1,5 +1,7 @@
 package org.extensiblecommands;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Implements command to be repeated a specified number of times
  */
@@ -48,6 +50,15 @@ public class CyclicCommand extends DecoratorCommand {
         return currentCycle;
     }
 
+    /**
+     * Estimate execution time: the core command is executed the specified number of times
+     * @return      Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        return Math.max(0, numberOfRepeats) * coreCommand.getEstimatedTimeNsec();
+    }
+
     @Override
     protected void execute() throws Exception {
         currentCycle = 0;
@@ -63,4 +74,20 @@ public class CyclicCommand extends DecoratorCommand {
                 break;
         }
     }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        currentCycle = 0;
+
+        return AsyncExecution.loop(() -> {
+            if (currentCycle >= numberOfRepeats)
+                return CompletableFuture.completedFuture(false);
+
+            currentCycle++;
+            return coreCommand.runAsync()
+                    .thenCompose(s -> processAbortAndPauseEventsAsync())
+                    .thenApply(v -> !(getState() == State.Failed || getState() == State.Aborted ||
+                            coreCommand.getState() == State.Failed || coreCommand.getState() == State.Aborted));
+        });
+    }
 }
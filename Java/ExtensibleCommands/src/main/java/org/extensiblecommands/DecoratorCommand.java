@@ -1,6 +1,6 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import static java.util.Objects.requireNonNull;
 
@@ -23,6 +23,7 @@ public abstract class DecoratorCommand extends AbstractCommand implements Comman
 
         this.name = name;
         this.coreCommand = coreCommand;
+        linkChild(coreCommand);
     }
 
     /**
@@ -33,24 +34,12 @@ public abstract class DecoratorCommand extends AbstractCommand implements Comman
     }
 
     /**
-     * @return      List of all child command objects (1st level only)
+     * Collect child command objects (1st level only)
+     * @param children      List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        var children = new ArrayList<Command>();
+    protected void collectChildren(List<Command> children) {
         children.add(coreCommand);
-        return children;
-    }
-
-    /**
-     * @return      List of all descendant command objects (all levels)
-     */
-    @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<Command>();
-        descendants.add(coreCommand);
-        coreCommand.getDescendants().forEach(c -> descendants.add(c));
-        return descendants;
     }
 
     /**
@@ -0,0 +1,442 @@
+package org.extensiblecommands;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements execution of commands ordered by dependencies instead of nesting.
+ * Every sub-command declares the sub-commands it depends on (they must be added before it, so the graph has no cycles),
+ * and starts as soon as all of them are completed. Independent sub-commands run simultaneously, like the branches
+ * of a Parallel command, unless they use a common resource (see SimpleCommand.setResources()).
+ * When more sub-commands are ready than can be started (because of the maximum degree of parallelism or the resources),
+ * the ones on the critical path are started first: a sub-command is prioritized by the longest estimated time
+ * from its start to the end of the graph (see Command.getEstimatedTimeNsec(), which falls back to the measured durations).
+ * If a sub-command fails or is aborted, no more sub-commands are started and the command finishes
+ * once the running ones are finished.
+ */
+public class DependencyGraphCommand extends CompositeCommand {
+    /**
+     * Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    private volatile Executor executor;
+
+    /**
+     * Maximum number of simultaneously executing sub-commands (0 means no limit)
+     */
+    private volatile int maxDegreeOfParallelism;
+
+    /**
+     * Dependencies of the sub-commands (sub-commands without dependencies are not listed)
+     */
+    private final Map<Command, List<Command>> dependencies = new IdentityHashMap<>();
+
+    public DependencyGraphCommand() {
+        this("DependencyGraph");
+    }
+
+    /**
+     * Constructor
+     * @param name      Command name
+     */
+    public DependencyGraphCommand(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Constructor
+     * @param name          Command name
+     * @param executor      Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    public DependencyGraphCommand(String name, Executor executor) {
+        super(name);
+        this.executor = executor;
+    }
+
+    /**
+     * @return              Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set executor running the sub-commands
+     * @param executor      Executor running the sub-commands (NULL means the library-wide default executor)
+     * @return              This command
+     */
+    public final DependencyGraphCommand setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return              Maximum number of simultaneously executing sub-commands (0 means no limit)
+     */
+    public final int getMaxDegreeOfParallelism() {
+        return maxDegreeOfParallelism;
+    }
+
+    /**
+     * Set maximum number of simultaneously executing sub-commands
+     * @param maxDegreeOfParallelism    Maximum number of simultaneously executing sub-commands (0 means no limit)
+     * @return                          This command
+     */
+    public final DependencyGraphCommand setMaxDegreeOfParallelism(int maxDegreeOfParallelism) {
+        if (maxDegreeOfParallelism < 0)
+            throw new RuntimeException(String.format("For command %s maximum degree of parallelism %s cannot be negative",
+                    name, maxDegreeOfParallelism));
+
+        this.maxDegreeOfParallelism = maxDegreeOfParallelism;
+        return this;
+    }
+
+    /**
+     * Adds a sub-command started once the sub-commands it depends on are completed
+     * @param subCommand        Sub-command to add
+     * @param dependsOn         Sub-commands to complete before the sub-command is started (must be added already)
+     * @return                  This command
+     */
+    public final DependencyGraphCommand add(Command subCommand, Command... dependsOn) {
+        requireNonNull(subCommand, String.format("Attempt to add NULL sub-command to command %s", name));
+
+        for (var dependency : dependsOn) {
+            requireNonNull(dependency, String.format("NULL dependency of sub-command %s in command %s", subCommand.getName(), name));
+            if (!containsSubCommand(dependency))
+                throw new RuntimeException(String.format("Sub-command %s of command %s depends on %s, which is not added to the command",
+                        subCommand.getName(), name, dependency.getName()));
+        }
+
+        add(subCommand);
+        if (dependsOn.length > 0) {
+            synchronized (dependencies) {
+                dependencies.put(subCommand, List.of(dependsOn));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param subCommand    Sub-command
+     * @return              Sub-commands the sub-command depends on
+     */
+    public final List<Command> getDependencies(Command subCommand) {
+        synchronized (dependencies) {
+            return dependencies.getOrDefault(subCommand, List.of());
+        }
+    }
+
+    /**
+     * @return              Sub-commands on the critical path, i.e. the chain of dependent sub-commands
+     *                      with the longest total estimated time (in the order of execution)
+     */
+    public final List<Command> getCriticalPath() {
+        var graph = new Graph();
+        var criticalPath = new ArrayList<Command>();
+        if (subCommands.isEmpty())
+            return criticalPath;
+
+        var pathTimes = graph.getPathTimesNsec(false);
+        int node = 0;
+        for (int i = 1; i < pathTimes.length; i++) {
+            if (pathTimes[i] > pathTimes[node] && graph.predecessors.get(i).isEmpty())
+                node = i;
+        }
+
+        while (true) {
+            criticalPath.add(subCommands.get(node));
+            int next = -1;
+            for (var successor : graph.successors.get(node)) {
+                if (next < 0 || pathTimes[successor] > pathTimes[next])
+                    next = successor;
+            }
+            if (next < 0)
+                return criticalPath;
+            node = next;
+        }
+    }
+
+    /**
+     * Estimate execution time: the estimated time of the critical path
+     * (assuming the sub-commands are not delayed by the maximum degree of parallelism or by the resources)
+     * @return              Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        long longest = 0;
+        for (var pathTime : new Graph().getPathTimesNsec(false))
+            longest = Math.max(longest, pathTime);
+        return longest;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        var graphRun = new GraphRun(false);
+        graphRun.dispatch();
+        graphRun.finished.waitOne(0);
+
+        if (!graphRun.fatalExceptions.isEmpty())
+            throw createFatalException(graphRun.fatalExceptions);
+
+        processAbortAndPauseEvents();
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        var graphRun = new GraphRun(true);
+        graphRun.dispatch();
+        return graphRun.result;
+    }
+
+    /**
+     * @param command       Command
+     * @return              Is the command one of the sub-commands?
+     */
+    private boolean containsSubCommand(Command command) {
+        for (var subCommand : subCommands) {
+            if (subCommand == command)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create exception reporting fatal exceptions in the sub-commands.
+     * The first fatal exception is the cause, the other ones are attached as suppressed exceptions.
+     * @param fatalExceptions   Fatal exceptions thrown by the sub-commands
+     * @return                  Exception to throw
+     */
+    private static Exception createFatalException(Collection<? extends Throwable> fatalExceptions) {
+        var iterator = fatalExceptions.iterator();
+        var exception = new Exception("Fatal error in one of the sub-commands of a DependencyGraph command", iterator.next());
+        iterator.forEachRemaining(exception::addSuppressed);
+        return exception;
+    }
+
+    /**
+     * Dependency graph of the sub-commands, indexed in the order of addition (which is a topological order)
+     */
+    private final class Graph {
+        private final List<List<Integer>> predecessors = new ArrayList<>();
+        private final List<List<Integer>> successors = new ArrayList<>();
+
+        Graph() {
+            var indices = new IdentityHashMap<Command, Integer>();
+            for (int i = 0; i < subCommands.size(); i++) {
+                indices.put(subCommands.get(i), i);
+                predecessors.add(new ArrayList<>());
+                successors.add(new ArrayList<>());
+            }
+
+            for (int i = 0; i < subCommands.size(); i++) {
+                for (var dependency : getDependencies(subCommands.get(i))) {
+                    int predecessor = indices.get(dependency);
+                    predecessors.get(i).add(predecessor);
+                    successors.get(predecessor).add(i);
+                }
+            }
+        }
+
+        /**
+         * Calculate for every sub-command the longest estimated time from its start to the end of the graph
+         * @param isUnknownCounted      Count sub-commands without estimated time as 1 nsec, so that longer chains
+         *                              of such sub-commands are still prioritized?
+         * @return                      Longest estimated times (nsec, by sub-command index)
+         */
+        long[] getPathTimesNsec(boolean isUnknownCounted) {
+            var pathTimes = new long[subCommands.size()];
+            // Successors are always added after their predecessors, so the reverse order of addition visits them first
+            for (int i = subCommands.size() - 1; i >= 0; i--) {
+                long longestSuccessor = 0;
+                for (var successor : successors.get(i))
+                    longestSuccessor = Math.max(longestSuccessor, pathTimes[successor]);
+
+                var estimate = subCommands.get(i).getEstimatedTimeNsec();
+                pathTimes[i] = (isUnknownCounted ? Math.max(1, estimate) : estimate) + longestSuccessor;
+            }
+            return pathTimes;
+        }
+    }
+
+    /**
+     * State of an execution: sub-commands are started when their predecessors are completed,
+     * in the order of priority, as long as the maximum degree of parallelism and the resources allow it
+     */
+    private final class GraphRun {
+        private final boolean isAsync;
+        private final Graph graph = new Graph();
+        private final long[] priorities = graph.getPathTimesNsec(true);
+        private final Executor currentExecutor = executor != null ? executor : CommandExecutors.getDefaultExecutor();
+        private final int maxRunning = maxDegreeOfParallelism > 0 ? maxDegreeOfParallelism : Integer.MAX_VALUE;
+        private final ConcurrentLinkedQueue<Throwable> fatalExceptions = new ConcurrentLinkedQueue<>();
+        private final ManualResetEvent finished = new ManualResetEvent(true);
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int[] remainingPredecessors = new int[subCommands.size()];
+        /**
+         * Sub-commands ready to start (by descending priority, then in the order of addition)
+         */
+        private final TreeSet<Integer> ready = new TreeSet<>(
+                Comparator.<Integer>comparingLong(i -> -priorities[i]).thenComparingInt(i -> i));
+        private final Set<String> busyResources = new HashSet<>();
+        private int running;
+        private boolean isStopped;
+        private boolean isFinished;
+
+        GraphRun(boolean isAsync) {
+            this.isAsync = isAsync;
+            for (int i = 0; i < subCommands.size(); i++) {
+                remainingPredecessors[i] = graph.predecessors.get(i).size();
+                if (remainingPredecessors[i] == 0)
+                    ready.add(i);
+            }
+        }
+
+        /**
+         * Start the ready sub-commands allowed to run, or finish the execution if nothing is running anymore
+         */
+        void dispatch() {
+            var toStart = new ArrayList<Integer>();
+            boolean isDone;
+
+            lock.lock();
+            try {
+                // Once the command is aborted or a sub-command has failed, stop starting new sub-commands
+                if (isAborted())
+                    isStopped = true;
+
+                if (!isStopped) {
+                    for (var iterator = ready.iterator(); iterator.hasNext() && running < maxRunning; ) {
+                        var node = iterator.next();
+                        var resources = getResources(node);
+                        if (!Collections.disjoint(resources, busyResources))
+                            continue;
+
+                        iterator.remove();
+                        busyResources.addAll(resources);
+                        running++;
+                        toStart.add(node);
+                    }
+                }
+
+                isDone = running == 0 && (isStopped || ready.isEmpty()) && !isFinished;
+                if (isDone)
+                    isFinished = true;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            for (var node : toStart)
+                start(node);
+
+            if (isDone)
+                complete();
+        }
+
+        /**
+         * Start a sub-command
+         * @param node      Index of the sub-command
+         */
+        private void start(int node) {
+            var subCommand = subCommands.get(node);
+            try {
+                currentExecutor.execute(() -> {
+                    if (isAsync) {
+                        subCommand.runAsync().whenComplete((s, t) -> {
+                            if (t != null)
+                                fatalExceptions.add(AsyncExecution.unwrap(t));
+                            onFinished(node, t != null);
+                        });
+                        return;
+                    }
+
+                    var isFatal = false;
+                    try {
+                        subCommand.run();
+                    }
+                    catch (Exception e) {
+                        // If there is a fatal exception, don't throw it here.
+                        // Store it and process after all running sub-commands are finished.
+                        fatalExceptions.add(e);
+                        isFatal = true;
+                    }
+                    finally {
+                        onFinished(node, isFatal);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                // The executor rejected the sub-command, it will never run
+                fatalExceptions.add(e);
+                onFinished(node, true);
+            }
+        }
+
+        /**
+         * Release the resources of a finished sub-command, make its successors ready if it is completed, and dispatch
+         * @param node          Index of the finished sub-command
+         * @param isFatal       Has the sub-command terminated with a fatal (not handled) exception?
+         */
+        private void onFinished(int node, boolean isFatal) {
+            var state = subCommands.get(node).getState();
+
+            lock.lock();
+            try {
+                running--;
+                busyResources.removeAll(getResources(node));
+
+                if (isFatal || state == State.Failed || state == State.Aborted) {
+                    isStopped = true;
+                }
+                else {
+                    for (var successor : graph.successors.get(node)) {
+                        if (--remainingPredecessors[successor] == 0)
+                            ready.add(successor);
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+
+            dispatch();
+        }
+
+        /**
+         * @param node      Index of the sub-command
+         * @return          Resources used by the sub-command
+         */
+        private Set<String> getResources(int node) {
+            var subCommand = subCommands.get(node);
+            return subCommand instanceof AbstractCommand ? ((AbstractCommand) subCommand).getResources() : Set.of();
+        }
+
+        /**
+         * Complete the execution once no sub-command is running anymore
+         */
+        private void complete() {
+            if (!isAsync) {
+                finished.set();
+                return;
+            }
+
+            if (!fatalExceptions.isEmpty()) {
+                result.completeExceptionally(createFatalException(fatalExceptions));
+                return;
+            }
+
+            processAbortAndPauseEventsAsync().whenComplete((v, t) -> {
+                if (t != null)
+                    result.completeExceptionally(t);
+                else
+                    result.complete(null);
+            });
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.extensiblecommands;
+
+/**
+ * Carries information about a command run whose execution time is outside of the range of normal execution times
+ */
+public class ExecutionAnomaly {
+    private final Command command;
+    private final String key;
+    private final long elapsedTimeNsec;
+    private final long normalTimeLowNsec;
+    private final long normalTimeHighNsec;
+
+    /**
+     * Constructor
+     * @param command               Command
+     * @param key                   Key of the command statistics (command name or path)
+     * @param elapsedTimeNsec       Execution time of the run (nsec)
+     * @param normalTimeLowNsec     Lower bound of the range of normal execution times (nsec)
+     * @param normalTimeHighNsec    Upper bound of the range of normal execution times (nsec)
+     */
+    public ExecutionAnomaly(Command command, String key, long elapsedTimeNsec,
+                            long normalTimeLowNsec, long normalTimeHighNsec) {
+        this.command = command;
+        this.key = key;
+        this.elapsedTimeNsec = elapsedTimeNsec;
+        this.normalTimeLowNsec = normalTimeLowNsec;
+        this.normalTimeHighNsec = normalTimeHighNsec;
+    }
+
+    /**
+     * @return      Command
+     */
+    public final Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return      Key of the command statistics (command name or path)
+     */
+    public final String getKey() {
+        return key;
+    }
+
+    /**
+     * @return      Execution time of the run (nsec)
+     */
+    public final long getElapsedTimeNsec() {
+        return elapsedTimeNsec;
+    }
+
+    /**
+     * @return      Lower bound of the range of normal execution times (nsec)
+     */
+    public final long getNormalTimeLowNsec() {
+        return normalTimeLowNsec;
+    }
+
+    /**
+     * @return      Upper bound of the range of normal execution times (nsec)
+     */
+    public final long getNormalTimeHighNsec() {
+        return normalTimeHighNsec;
+    }
+
+    /**
+     * @return      Is the run slower than normal (otherwise it is faster)?
+     */
+    public final boolean isSlow() {
+        return elapsedTimeNsec > normalTimeHighNsec;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s took %s nsec, normal range is [%s, %s] nsec", key, elapsedTimeNsec,
+                normalTimeLowNsec, normalTimeHighNsec);
+    }
+}
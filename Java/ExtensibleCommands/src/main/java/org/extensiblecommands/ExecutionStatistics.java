@@ -0,0 +1,290 @@
+package org.extensiblecommands;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements a centralized component collecting execution statistics of commands.
+ * It subscribes to state changes of the tracked commands and keeps rolling statistics
+ * (counts, mean, percentiles, failure rate) per key, which is either the command name or the command path
+ * (names of the commands from the root of the tracked tree, separated by "/").
+ * When a completed run takes longer or shorter than the range of normal execution times derived from the window
+ * of the previous runs, an anomaly is published.
+ * The work done on the executing thread is limited to recording the run into a lock-free ring buffer.
+ */
+public class ExecutionStatistics implements AutoCloseable {
+    /**
+     * Enumeration for keys statistics are collected by
+     */
+    public enum KeyMode {
+        /**
+         * Command name (runs of all commands with the same name are aggregated)
+         */
+        Name,
+        /**
+         * Command path (names of the commands from the root of the tracked tree, separated by "/")
+         */
+        Path
+    }
+
+    /**
+     * Default number of last runs statistics are calculated from
+     */
+    public static final int DefaultWindowSize = 256;
+
+    /**
+     * Default half-width of the range of normal execution times (in standard deviations)
+     */
+    public static final double DefaultAnomalyThresholdSigmas = 3.0;
+
+    /**
+     * Default minimum number of completed runs in the window to detect anomalies
+     */
+    public static final int DefaultMinimumSamples = 16;
+
+    private final KeyMode keyMode;
+    private final int windowSize;
+    private final double anomalyThresholdSigmas;
+    private final int minimumSamples;
+
+    private final Map<String, CommandStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * Subscriptions to state changes of tracked commands, by command and key (guarded by itself)
+     */
+    private final Map<Command, Map<String, Disposable>> subscriptions = new IdentityHashMap<>();
+
+    private final PublishSubject<ExecutionAnomaly> anomalyObservable = PublishSubject.create();
+
+    /**
+     * Serialized view of the anomaly observable (anomalies are published on the executing threads)
+     */
+    private final Subject<ExecutionAnomaly> anomalyEmitter = anomalyObservable.toSerialized();
+
+    /**
+     * Constructor (statistics by command name, default window and anomaly detection settings)
+     */
+    public ExecutionStatistics() {
+        this(KeyMode.Name, DefaultWindowSize, DefaultAnomalyThresholdSigmas, DefaultMinimumSamples);
+    }
+
+    /**
+     * Constructor
+     * @param keyMode                   Keys statistics are collected by
+     * @param windowSize                Number of last runs statistics are calculated from
+     * @param anomalyThresholdSigmas    Half-width of the range of normal execution times (in standard deviations)
+     * @param minimumSamples            Minimum number of completed runs in the window to detect anomalies
+     */
+    public ExecutionStatistics(KeyMode keyMode, int windowSize, double anomalyThresholdSigmas, int minimumSamples) {
+        requireNonNull(keyMode, "Key mode is NULL");
+        if (windowSize <= 0)
+            throw new RuntimeException(String.format("Statistics window size %s is not positive", windowSize));
+        if (anomalyThresholdSigmas <= 0)
+            throw new RuntimeException(String.format("Anomaly threshold %s is not positive", anomalyThresholdSigmas));
+        if (minimumSamples < 2 || minimumSamples > windowSize)
+            throw new RuntimeException(String.format("Minimum number of samples %s is out of range [2, %s]",
+                    minimumSamples, windowSize));
+
+        this.keyMode = keyMode;
+        this.windowSize = windowSize;
+        this.anomalyThresholdSigmas = anomalyThresholdSigmas;
+        this.minimumSamples = minimumSamples;
+    }
+
+    /**
+     * @return      Keys statistics are collected by
+     */
+    public final KeyMode getKeyMode() {
+        return keyMode;
+    }
+
+    /**
+     * @return      Observable signaling runs with execution time out of the normal range
+     *              (signaled on the thread executing the command)
+     */
+    public final PublishSubject<ExecutionAnomaly> getAnomalyObservable() {
+        return anomalyObservable;
+    }
+
+    /**
+     * Start tracking a command (its key is its name in both key modes)
+     * @param command       Command to track
+     * @return              This object
+     */
+    public ExecutionStatistics track(Command command) {
+        requireNonNull(command, "Attempt to track NULL command");
+
+        subscribe(command, command.getName());
+        return this;
+    }
+
+    /**
+     * Start tracking a command and all its descendants
+     * @param command       Root of the command tree to track
+     * @return              This object
+     */
+    public ExecutionStatistics trackTree(Command command) {
+        requireNonNull(command, "Attempt to track NULL command");
+
+        trackTree(command, command.getName());
+        return this;
+    }
+
+    /**
+     * Seed the statistics of a key with a histogram of previous execution times (e.g. loaded by LatencyHistogramStore),
+     * so that anomalies are detected from the first run instead of after the window is filled
+     * @param key           Command name or path
+     * @param histogram     Histogram of previous execution times
+     * @return              This object
+     */
+    public ExecutionStatistics seed(String key, LatencyHistogram histogram) {
+        requireNonNull(key, "Statistics key is NULL");
+        requireNonNull(histogram, "Histogram is NULL");
+
+        statistics.computeIfAbsent(key, this::createStatistics).seed(histogram);
+        return this;
+    }
+
+    /**
+     * Seed the statistics of all command names with the histograms of LatencyHistograms (key mode Name only)
+     * @return              This object
+     */
+    public ExecutionStatistics seedFromLatencyHistograms() {
+        if (keyMode != KeyMode.Name)
+            throw new RuntimeException("Latency histograms can only seed statistics collected by command name");
+
+        for (var name : LatencyHistograms.getNames())
+            seed(name, LatencyHistograms.get(name));
+        return this;
+    }
+
+    /**
+     * Stop tracking a command (statistics collected so far are kept)
+     * @param command       Command to stop tracking
+     */
+    public void untrack(Command command) {
+        Map<String, Disposable> commandSubscriptions;
+        synchronized (subscriptions) {
+            commandSubscriptions = subscriptions.remove(command);
+        }
+        if (commandSubscriptions != null)
+            commandSubscriptions.values().forEach(Disposable::dispose);
+    }
+
+    /**
+     * @param key       Command name or path
+     * @return          Statistics of the key (NULL if no run has been recorded for it)
+     */
+    public CommandStatistics getStatistics(String key) {
+        return statistics.get(key);
+    }
+
+    /**
+     * @return          Read-only set of keys that have statistics
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(statistics.keySet());
+    }
+
+    /**
+     * Stop tracking all commands (statistics collected so far are kept)
+     */
+    @Override
+    public void close() {
+        List<Map<String, Disposable>> allSubscriptions;
+        synchronized (subscriptions) {
+            allSubscriptions = new ArrayList<>(subscriptions.values());
+            subscriptions.clear();
+        }
+        for (var commandSubscriptions : allSubscriptions)
+            commandSubscriptions.values().forEach(Disposable::dispose);
+    }
+
+    /**
+     * Track a command and its descendants recursively
+     * @param command       Command to track
+     * @param path          Path of the command
+     */
+    private void trackTree(Command command, String path) {
+        subscribe(command, keyMode == KeyMode.Path ? path : command.getName());
+        for (var child : command.getChildren())
+            trackTree(child, String.format("%s/%s", path, child.getName()));
+    }
+
+    /**
+     * Subscribe to state changes of a command (unless it is already tracked with the same key)
+     * @param command       Command to track
+     * @param key           Key of the command statistics
+     */
+    private void subscribe(Command command, String key) {
+        if (key == null)
+            throw new RuntimeException("Cannot collect statistics of a command without name");
+
+        synchronized (subscriptions) {
+            var commandSubscriptions = subscriptions.computeIfAbsent(command, c -> new HashMap<>());
+            if (commandSubscriptions.containsKey(key))
+                return;
+
+            var commandStatistics = statistics.computeIfAbsent(key, this::createStatistics);
+
+            var run = new RunRecord();
+            commandSubscriptions.put(key, command.getCurrentStateObservable().subscribe(state -> {
+                if (state == State.Executing)
+                    run.index = -1;
+                else if (state != State.Idle)
+                    onFinalState(commandStatistics, command, state, run);
+            }));
+        }
+    }
+
+    /**
+     * @param key           Command name or path
+     * @return              New statistics of the key
+     */
+    private CommandStatistics createStatistics(String key) {
+        return new CommandStatistics(key, windowSize, anomalyThresholdSigmas, minimumSamples);
+    }
+
+    /**
+     * Record the final state of a run (called on the executing thread).
+     * Several final states can be signaled by a run (e.g. Completed changed to Failed by error checks),
+     * the run recorded for the first one is corrected on the next ones.
+     * @param commandStatistics     Statistics of the command key
+     * @param command               Command
+     * @param state                 Final state
+     * @param run                   Record of the current run of the command
+     */
+    private void onFinalState(CommandStatistics commandStatistics, Command command, State state, RunRecord run) {
+        // Stop time is recorded before the final state is signaled
+        var elapsedTimeNsec = command.getElapsedTimeNsec();
+        if (run.index >= 0) {
+            commandStatistics.correct(run.index, run.state, run.elapsedTimeNsec, state, elapsedTimeNsec);
+        }
+        else {
+            var anomaly = state == State.Completed ? commandStatistics.detectAnomaly(command, elapsedTimeNsec) : null;
+            run.index = commandStatistics.record(state, elapsedTimeNsec);
+            if (anomaly != null)
+                anomalyEmitter.onNext(anomaly);
+        }
+        run.state = state;
+        run.elapsedTimeNsec = elapsedTimeNsec;
+    }
+
+    /**
+     * Record of the current run of a tracked command (runs of the same command do not overlap)
+     */
+    private static final class RunRecord {
+        /**
+         * Index of the run in the command statistics (negative until the first final state is recorded)
+         */
+        private volatile long index = -1;
+        private volatile State state;
+        private volatile long elapsedTimeNsec;
+    }
+}
@@ -0,0 +1,15 @@
+package org.extensiblecommands;
+
+/**
+ * Exception thrown by the checkpoint of a command when the command has been aborted.
+ * It is not a failure: the command catching it ends in Aborted state.
+ */
+public class ExtensibleCommandsAbortedException extends RuntimeException {
+    /**
+     * Constructor
+     * @param commandName   Name of the aborted command
+     */
+    public ExtensibleCommandsAbortedException(String commandName) {
+        super(String.format("Command %s is aborted", commandName), null, false, false);
+    }
+}
@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
@@ -67,6 +68,15 @@ public class GenericCyclicCommand<T> extends DecoratorCommand {
         return currentElement;
     }
 
+    /**
+     * Estimate execution time: the core command is executed once for every element of the collection
+     * @return          Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        return collection.size() * coreCommand.getEstimatedTimeNsec();
+    }
+
     @Override
     protected void execute() throws Exception {
         currentCycle = 0;
@@ -85,4 +95,23 @@ public class GenericCyclicCommand<T> extends DecoratorCommand {
                 break;
         }
     }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        currentCycle = 0;
+        var iterator = collection.iterator();
+
+        return AsyncExecution.loop(() -> {
+            if (!iterator.hasNext())
+                return CompletableFuture.completedFuture(false);
+
+            currentElement = iterator.next();
+            currentCycle++;
+
+            return coreCommand.runAsync()
+                    .thenCompose(s -> processAbortAndPauseEventsAsync())
+                    .thenApply(v -> !(getState() == State.Failed || getState() == State.Aborted ||
+                            coreCommand.getState() == State.Failed || coreCommand.getState() == State.Aborted));
+        });
+    }
 }
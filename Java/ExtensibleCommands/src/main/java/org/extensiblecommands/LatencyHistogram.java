@@ -0,0 +1,230 @@
+package org.extensiblecommands;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implements a histogram of latencies (in nsec) with logarithmic buckets, in the style of HdrHistogram.
+ * Values below 128 nsec are counted exactly, above that every power of 2 is split into 64 linear sub-buckets,
+ * so that any recorded value is reported with a relative error below 1/64 (about 1.6%).
+ * Recording is lock-free and can be performed concurrently with other recordings and queries.
+ * Queries performed during concurrent recording see a consistent-enough, but not atomic, snapshot.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of bits of the sub-bucket index (i.e. 128 sub-buckets in the first bucket)
+     */
+    private static final int SubBucketBits = 7;
+
+    /**
+     * Number of sub-buckets in every bucket except the first one
+     */
+    private static final int SubBucketHalfCount = 1 << (SubBucketBits - 1);
+
+    /**
+     * Number of buckets needed to cover all positive long values
+     */
+    private static final int BucketCount = Long.SIZE - SubBucketBits;
+
+    /**
+     * Counts of recorded values per sub-bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(getNumberOfBuckets());
+
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final LongAccumulator minValue = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency
+     * @param valueNsec     Latency (nsec, negative values are recorded as 0)
+     */
+    public void record(long valueNsec) {
+        var value = Math.max(valueNsec, 0);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalValue.add(value);
+        minValue.accumulate(value);
+        maxValue.accumulate(value);
+    }
+
+    /**
+     * @return      Number of recorded values
+     */
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return      Smallest recorded value (nsec, 0 if no value has been recorded)
+     */
+    public long getMinNsec() {
+        var min = minValue.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * @return      Largest recorded value (nsec, 0 if no value has been recorded)
+     */
+    public long getMaxNsec() {
+        return maxValue.get();
+    }
+
+    /**
+     * @return      Mean of recorded values (nsec, 0 if no value has been recorded)
+     */
+    public double getMeanNsec() {
+        var count = totalCount.sum();
+        return count > 0 ? (double) totalValue.sum() / count : 0.0;
+    }
+
+    /**
+     * Get the value at a given percentile, i.e. the largest value that is not exceeded by the given percentage of
+     * recorded values (reported as the highest value equivalent to it within the histogram precision)
+     * @param percentile    Percentile (between 0 and 100)
+     * @return              Value at the percentile (nsec, 0 if no value has been recorded)
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new RuntimeException(String.format("Percentile %s is out of range [0, 100]", percentile));
+
+        var total = 0L;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        var target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        var cumulative = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target)
+                return Math.min(highestEquivalentValue(i), getMaxNsec());
+        }
+        return getMaxNsec();
+    }
+
+    /**
+     * @return      Median of recorded values (nsec)
+     */
+    public long getP50Nsec() {
+        return getValueAtPercentile(50);
+    }
+
+    /**
+     * @return      99th percentile of recorded values (nsec)
+     */
+    public long getP99Nsec() {
+        return getValueAtPercentile(99);
+    }
+
+    /**
+     * Clear all recorded values (values recorded concurrently may or may not be cleared)
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        totalCount.reset();
+        totalValue.reset();
+        minValue.reset();
+        maxValue.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%s, min=%s, p50=%s, p99=%s, max=%s (nsec)",
+                getTotalCount(), getMinNsec(), getP50Nsec(), getP99Nsec(), getMaxNsec());
+    }
+
+    /**
+     * @return          Number of sub-buckets
+     */
+    static int getNumberOfBuckets() {
+        return (BucketCount + 1) * SubBucketHalfCount;
+    }
+
+    /**
+     * @param index     Index of a sub-bucket
+     * @return          Number of recorded values counted by the sub-bucket
+     */
+    long getBucketCount(int index) {
+        return counts.get(index);
+    }
+
+    /**
+     * Get values evenly spread over the distribution of recorded values (at percentiles 100 * (i + 0.5) / n)
+     * @param n         Number of values
+     * @return          Values in ascending order (nsec, empty if no value has been recorded)
+     */
+    long[] getQuantiles(int n) {
+        var total = 0L;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        if (total == 0 || n <= 0)
+            return new long[0];
+
+        var quantiles = new long[n];
+        var max = getMaxNsec();
+        var cumulative = 0L;
+        int bucket = -1;
+        for (int q = 0; q < n; q++) {
+            var rank = Math.max(1, (long) Math.ceil((q + 0.5) / n * total));
+            while (cumulative < rank && bucket < counts.length() - 1)
+                cumulative += counts.get(++bucket);
+            quantiles[q] = Math.min(highestEquivalentValue(bucket), max);
+        }
+        return quantiles;
+    }
+
+    /**
+     * @return          Sum of recorded values (nsec)
+     */
+    long getTotalValueNsec() {
+        return totalValue.sum();
+    }
+
+    /**
+     * Add values counted by a sub-bucket (e.g. restored from persisted statistics)
+     * @param index     Index of the sub-bucket
+     * @param count     Number of values
+     */
+    void addToBucket(int index, long count) {
+        counts.addAndGet(index, count);
+        totalCount.add(count);
+    }
+
+    /**
+     * Add aggregates of values added with addToBucket()
+     * @param totalValueNsec    Sum of the values (nsec)
+     * @param minNsec           Smallest value (nsec)
+     * @param maxNsec           Largest value (nsec)
+     */
+    void addAggregates(long totalValueNsec, long minNsec, long maxNsec) {
+        totalValue.add(totalValueNsec);
+        minValue.accumulate(minNsec);
+        maxValue.accumulate(maxNsec);
+    }
+
+    /**
+     * @param value     Non-negative value
+     * @return          Index of the sub-bucket counting the value
+     */
+    static int indexOf(long value) {
+        // Bucket 0 counts values [0, 128) exactly, bucket b > 0 counts values [64 << b, 128 << b) with step 1 << b
+        var bucket = Math.max(0, (Long.SIZE - Long.numberOfLeadingZeros(value)) - SubBucketBits);
+        var subBucket = (int) (value >>> bucket);
+        return bucket * SubBucketHalfCount + subBucket;
+    }
+
+    /**
+     * @param index     Index of a sub-bucket
+     * @return          Highest value counted by the sub-bucket
+     */
+    static long highestEquivalentValue(int index) {
+        var bucket = Math.max(0, index / SubBucketHalfCount - 1);
+        var subBucket = (long) (index - bucket * SubBucketHalfCount);
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,411 @@
+package org.extensiblecommands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements an append-only binary file store of the latency histograms of LatencyHistograms,
+ * so that execution time estimates and statistics survive application restarts.
+ * On opening, the histograms stored in the file are merged into LatencyHistograms.
+ * Afterwards, histograms changed since the last flush are appended to the file periodically by a background thread
+ * (the last record of a histogram supersedes the previous ones), and the file is compacted when superseded records
+ * accumulate. Each record holds the non-empty buckets of one histogram and is protected by a checksum,
+ * so that a record truncated by a crash is ignored on loading.
+ * Note that execution times are only recorded (and used for estimates) if LatencyHistograms is enabled.
+ */
+public class LatencyHistogramStore implements AutoCloseable {
+    /**
+     * Default interval between two flushes (msec)
+     */
+    public static final long DefaultFlushIntervalMsec = 10_000;
+
+    /**
+     * File signature ("ECLH") and format version
+     */
+    private static final int Magic = 0x45434C48;
+    private static final int Version = 1;
+    private static final int HeaderSize = 8;
+
+    /**
+     * Number of superseded records tolerated before the file is compacted
+     */
+    private static final int MaxSupersededRecords = 256;
+
+    private final Path file;
+    private FileChannel channel;
+
+    /**
+     * Total number of values of every histogram as of its last record in the file (guarded by lock)
+     */
+    private final Map<String, Long> storedCounts = new HashMap<>();
+
+    /**
+     * Number of records in the file (guarded by lock)
+     */
+    private int numberOfRecords;
+
+    /**
+     * Length of the valid part of the file read on loading (a record truncated by a crash may follow it)
+     */
+    private long validLength = HeaderSize;
+
+    private boolean isClosed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Exception thrown by the last failed background flush (NULL if none)
+     */
+    private volatile IOException flushException;
+
+    /**
+     * Constructor (histograms are flushed every DefaultFlushIntervalMsec)
+     * @param file              File to store histograms in (created if it does not exist)
+     * @throws IOException      Failed to read or create the file
+     */
+    public LatencyHistogramStore(Path file) throws IOException {
+        this(file, DefaultFlushIntervalMsec);
+    }
+
+    /**
+     * Constructor
+     * @param file                  File to store histograms in (created if it does not exist)
+     * @param flushIntervalMsec     Interval between two flushes (msec)
+     * @throws IOException          Failed to read or create the file
+     */
+    public LatencyHistogramStore(Path file, long flushIntervalMsec) throws IOException {
+        requireNonNull(file, "Histogram store file is NULL");
+        if (flushIntervalMsec <= 0)
+            throw new RuntimeException(String.format("Flush interval %s msec is not positive", flushIntervalMsec));
+
+        this.file = file;
+        load();
+        if (numberOfRecords > storedCounts.size())
+            compact();
+        else
+            openForAppend();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                CommandExecutors.newThreadFactory("ExtensibleCommands-histograms"));
+        flusher.scheduleWithFixedDelay(this::flushInBackground, flushIntervalMsec, flushIntervalMsec,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return      Number of histograms stored in the file
+     */
+    public int getNumberOfStoredHistograms() {
+        lock.lock();
+        try {
+            return storedCounts.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return      Exception thrown by the last failed background flush (NULL if none)
+     */
+    public final IOException getFlushException() {
+        return flushException;
+    }
+
+    /**
+     * Append the histograms changed since the last flush to the file
+     * @throws IOException      Failed to write to the file
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (isClosed)
+                return;
+
+            var buffer = new ByteArrayOutputStream();
+            int appended = 0;
+            for (var name : LatencyHistograms.getNames()) {
+                var histogram = LatencyHistograms.get(name);
+                var count = histogram.getTotalCount();
+                if (count == storedCounts.getOrDefault(name, 0L))
+                    continue;
+
+                writeRecord(buffer, name, histogram);
+                storedCounts.put(name, count);
+                appended++;
+            }
+            if (appended == 0)
+                return;
+
+            write(channel, ByteBuffer.wrap(buffer.toByteArray()));
+            channel.force(false);
+            numberOfRecords += appended;
+
+            if (numberOfRecords - storedCounts.size() > MaxSupersededRecords)
+                compact();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush the remaining changes, stop the background thread and close the file
+     * @throws IOException      Failed to write to the file
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            flush();
+        }
+        finally {
+            try {
+                isClosed = true;
+                channel.close();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Body of the periodic background flush
+     */
+    private void flushInBackground() {
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            flushException = e;
+            Logger.log(Logger.LogLevel.Error, "Failed to flush latency histograms to %s: %s", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Read the file (if it exists) and merge the stored histograms into LatencyHistograms.
+     * The last record of every histogram is merged, reading stops at the first truncated or corrupted record.
+     */
+    private void load() throws IOException {
+        if (!Files.exists(file))
+            return;
+
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < HeaderSize)
+            return;
+        if (buffer.getInt() != Magic || buffer.getInt() != Version)
+            throw new IOException(String.format("File %s is not a latency histogram store", file));
+
+        // Find the last record of every histogram first, so that superseded records are not decoded
+        var lastRecords = new HashMap<String, ByteBuffer>();
+        var checksum = new CRC32();
+        while (buffer.remaining() >= Integer.BYTES) {
+            var length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - Long.BYTES)
+                break;
+
+            var record = buffer.slice();
+            record.limit(length);
+            buffer.position(buffer.position() + length);
+            checksum.reset();
+            checksum.update(record.duplicate());
+            if (buffer.getLong() != checksum.getValue())
+                break;
+
+            lastRecords.put(readName(record), record);
+            numberOfRecords++;
+            validLength = buffer.position();
+        }
+
+        for (var entry : lastRecords.entrySet()) {
+            try {
+                storedCounts.put(entry.getKey(), readHistogram(entry.getValue(), LatencyHistograms.get(entry.getKey())));
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException(String.format("Corrupted histogram %s in file %s", entry.getKey(), file), e);
+            }
+        }
+
+        // The loaded histograms change the learned estimated times
+        if (!lastRecords.isEmpty())
+            CommandTreeIndex.invalidateEstimates();
+    }
+
+    /**
+     * Rewrite the file with the last record of every histogram (written to a temporary file and moved atomically)
+     */
+    private void compact() throws IOException {
+        if (channel != null)
+            channel.close();
+
+        var buffer = new ByteArrayOutputStream();
+        var header = new DataOutputStream(buffer);
+        header.writeInt(Magic);
+        header.writeInt(Version);
+        for (var name : storedCounts.keySet()) {
+            var histogram = LatencyHistograms.get(name);
+            writeRecord(buffer, name, histogram);
+            storedCounts.put(name, histogram.getTotalCount());
+        }
+
+        var temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var temporaryChannel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(temporaryChannel, ByteBuffer.wrap(buffer.toByteArray()));
+            temporaryChannel.force(true);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        numberOfRecords = storedCounts.size();
+        validLength = buffer.size();
+        openForAppend();
+    }
+
+    /**
+     * Open the file for appending (writing the header if the file is new)
+     */
+    private void openForAppend() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        if (channel.size() < HeaderSize) {
+            channel.truncate(0);
+            write(channel, ByteBuffer.allocate(HeaderSize).putInt(Magic).putInt(Version).flip());
+        }
+        else if (channel.size() > validLength) {
+            // Drop a truncated record left by a crash, it would hide the records appended after it
+            channel.truncate(validLength);
+        }
+        channel.position(channel.size());
+    }
+
+    /**
+     * Write a record: length, payload (name, aggregates and non-empty buckets) and checksum of the payload
+     * @param output        Output to write the record to
+     * @param name          Command name
+     * @param histogram     Histogram
+     */
+    private static void writeRecord(ByteArrayOutputStream output, String name, LatencyHistogram histogram) {
+        var payload = new ByteArrayOutputStream();
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(payload, nameBytes.length);
+        payload.write(nameBytes, 0, nameBytes.length);
+
+        // Aggregates and buckets are read separately while values may be recorded, so the count is derived from buckets
+        var bucketsOutput = new ByteArrayOutputStream();
+        int numberOfBuckets = 0;
+        int previousIndex = 0;
+        for (int i = 0; i < LatencyHistogram.getNumberOfBuckets(); i++) {
+            var count = histogram.getBucketCount(i);
+            if (count == 0)
+                continue;
+            writeVarLong(bucketsOutput, i - previousIndex);
+            writeVarLong(bucketsOutput, count);
+            previousIndex = i;
+            numberOfBuckets++;
+        }
+        writeVarLong(payload, histogram.getTotalValueNsec());
+        writeVarLong(payload, histogram.getMinNsec());
+        writeVarLong(payload, histogram.getMaxNsec());
+        writeVarLong(payload, numberOfBuckets);
+        payload.writeBytes(bucketsOutput.toByteArray());
+
+        var checksum = new CRC32();
+        var bytes = payload.toByteArray();
+        checksum.update(bytes);
+        var data = new DataOutputStream(output);
+        try {
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            data.writeLong(checksum.getValue());
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to write histogram record to memory", e);
+        }
+    }
+
+    /**
+     * @param record    Record payload (its position is moved past the name)
+     * @return          Command name
+     */
+    private static String readName(ByteBuffer record) {
+        var nameBytes = new byte[(int) readVarLong(record)];
+        record.get(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Merge the aggregates and buckets of a record into a histogram
+     * @param record        Record payload (positioned after the name)
+     * @param histogram     Histogram to merge the record into
+     * @return              Number of values in the record
+     */
+    private static long readHistogram(ByteBuffer record, LatencyHistogram histogram) {
+        var totalValue = readVarLong(record);
+        var min = readVarLong(record);
+        var max = readVarLong(record);
+        var numberOfBuckets = readVarLong(record);
+
+        long totalCount = 0;
+        int index = 0;
+        for (long i = 0; i < numberOfBuckets; i++) {
+            index += (int) readVarLong(record);
+            var count = readVarLong(record);
+            histogram.addToBucket(index, count);
+            totalCount += count;
+        }
+        if (totalCount > 0)
+            histogram.addAggregates(totalValue, min, max);
+        return totalCount;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            var b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IndexOutOfBoundsException("Malformed variable-length number");
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
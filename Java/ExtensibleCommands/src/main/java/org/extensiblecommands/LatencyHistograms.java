@@ -0,0 +1,103 @@
+package org.extensiblecommands;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements the library-wide registry of latency histograms, one per command name.
+ * When enabled, the execution time of every successfully completed command is recorded in the histogram
+ * of its name, so that the latency distribution (e.g. p50/p99/max) of an operation can be queried
+ * regardless of how many command instances implement it.
+ * Recording is disabled by default: it is enabled either by calling setEnabled(true) or by setting
+ * the system property "extensiblecommands.latencyHistograms" to "true".
+ */
+public class LatencyHistograms {
+    /**
+     * System property enabling latency recording
+     */
+    public static final String EnabledProperty = "extensiblecommands.latencyHistograms";
+
+    private static volatile boolean isEnabled = Boolean.getBoolean(EnabledProperty);
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Enable/disable latency recording
+     * @param enabled       Should execution times of completed commands be recorded?
+     */
+    public static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+        CommandTreeIndex.invalidateEstimates();
+    }
+
+    /**
+     * @return      Are execution times of completed commands being recorded?
+     */
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Get the histogram of a command name (created if it does not exist yet)
+     * @param name      Command name
+     * @return          Latency histogram
+     */
+    public static LatencyHistogram get(String name) {
+        requireNonNull(name, "Command name is NULL");
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * @return      Read-only set of command names that have a histogram
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(histograms.keySet());
+    }
+
+    /**
+     * Get the mean execution time of the commands with the given name, as measured so far
+     * @param name      Command name
+     * @return          Mean execution time (nsec, 0 if recording is disabled or no execution has been recorded)
+     */
+    static long getMeanNsec(String name) {
+        if (!isEnabled || name == null)
+            return 0;
+
+        var histogram = histograms.get(name);
+        return histogram != null ? (long) histogram.getMeanNsec() : 0;
+    }
+
+    /**
+     * Remove all histograms
+     */
+    public static void clear() {
+        histograms.clear();
+        CommandTreeIndex.invalidateEstimates();
+    }
+
+    /**
+     * Record the execution time of a command if recording is enabled
+     * @param name              Command name (nothing is recorded for unnamed commands)
+     * @param elapsedTimeNsec   Execution time (nsec)
+     */
+    static void record(String name, long elapsedTimeNsec) {
+        if (!isEnabled || name == null)
+            return;
+
+        // Plain lookup first: computeIfAbsent may lock the map bin even if the histogram exists
+        var histogram = histograms.get(name);
+        if (histogram == null)
+            histogram = get(name);
+        histogram.record(elapsedTimeNsec);
+
+        // The estimates captured by the command trees are refreshed when the number of recorded runs doubles:
+        // the mean changes less and less as the history grows
+        var count = histogram.getTotalCount();
+        if ((count & (count - 1)) == 0)
+            CommandTreeIndex.invalidateEstimates();
+    }
+}
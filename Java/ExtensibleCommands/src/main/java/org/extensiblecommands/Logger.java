@@ -2,9 +2,12 @@ package org.extensiblecommands;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.function.Supplier;
 
 /**
  * Implements Logging facade. An external logger must be supplied to perform the actual logging.
+ * Messages can be supplied as format strings with arguments, or by a supplier: they are only formatted
+ * if the message is actually logged, so that disabled logging does not produce garbage on the hot path.
  */
 public class Logger {
     /**
@@ -14,8 +17,11 @@ public class Logger {
         Info, Error
     }
 
-    private static Log logger;
-    private static boolean isLoggingEnabled = true;
+    private static final DateTimeFormatter timeStampFormatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss:SSS");
+
+    private static volatile Log logger;
+    private static volatile boolean isLoggingEnabled = true;
+
     /**
      * Set Logger object
      * @param externalLogger    Logger object implementing Log interface
@@ -35,7 +41,7 @@ public class Logger {
      * @return              Timestamp string
      */
     public static String getTimeStamp() {
-        return DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss:SSS").format(LocalDateTime.now());
+        return timeStampFormatter.format(LocalDateTime.now());
     }
 
     /**
@@ -53,16 +59,72 @@ public class Logger {
         return isLoggingEnabled;
     }
 
+    /**
+     * @param logLevel      Log level
+     * @return              Are messages of this level logged?
+     */
+    public static boolean isEnabled(LogLevel logLevel) {
+        // Always log errors regardless of the logging enabled flag
+        return logger != null && (isLoggingEnabled || logLevel == LogLevel.Error);
+    }
+
     /**
      * Log informational or error message
      * @param logLevel      Log level
      * @param message       Message to be logged
      */
     public static void log(LogLevel logLevel, String message) {
-        if (getLogger() == null) return;
+        var currentLogger = logger;
+        if (currentLogger == null) return;
 
         // Always log errors regardless of the logging enabled flag
-        if (getIsLoggingEnabled() || logLevel == LogLevel.Error)
-            logger.log(getTimeStamp(), logLevel.toString(), message);
+        if (isLoggingEnabled || logLevel == LogLevel.Error)
+            currentLogger.log(getTimeStamp(), logLevel.toString(), message);
+    }
+
+    /**
+     * Log informational or error message (formatted only if it is logged)
+     * @param logLevel      Log level
+     * @param format        Format string of the message (see String.format())
+     * @param arg           Format argument
+     */
+    public static void log(LogLevel logLevel, String format, Object arg) {
+        if (isEnabled(logLevel))
+            log(logLevel, String.format(format, arg));
+    }
+
+    /**
+     * Log informational or error message (formatted only if it is logged)
+     * @param logLevel      Log level
+     * @param format        Format string of the message (see String.format())
+     * @param arg1          1st format argument
+     * @param arg2          2nd format argument
+     */
+    public static void log(LogLevel logLevel, String format, Object arg1, Object arg2) {
+        if (isEnabled(logLevel))
+            log(logLevel, String.format(format, arg1, arg2));
+    }
+
+    /**
+     * Log informational or error message (formatted only if it is logged)
+     * @param logLevel      Log level
+     * @param format        Format string of the message (see String.format())
+     * @param arg1          1st format argument
+     * @param arg2          2nd format argument
+     * @param arg3          3rd format argument
+     */
+    public static void log(LogLevel logLevel, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(logLevel))
+            log(logLevel, String.format(format, arg1, arg2, arg3));
+    }
+
+    /**
+     * Log informational or error message (built only if it is logged)
+     * @param logLevel          Log level
+     * @param messageSupplier   Supplier of the message to be logged
+     */
+    public static void log(LogLevel logLevel, Supplier<String> messageSupplier) {
+        if (isEnabled(logLevel))
+            log(logLevel, messageSupplier.get());
     }
 }
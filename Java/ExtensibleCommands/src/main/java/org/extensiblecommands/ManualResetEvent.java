@@ -1,58 +1,267 @@
 package org.extensiblecommands;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+import static java.util.Objects.requireNonNull;
+
 /**
  * Implements a waitable synchronized object similar to C# ManualResetEvent class.
+ * The state of the object is a single atomic word managed by an AbstractQueuedSynchronizer:
+ * setting and resetting it never blocks, and waiting threads are parked rather than blocked on a monitor,
+ * so that waiting virtual threads do not pin their carrier threads.
+ * The wait strategy decides what a waiting thread does before it is parked: parking right away saves CPU,
+ * spinning or yielding for a bounded time shortens the handoff when the object is expected to be set very soon.
+ * A worker of a fork-join pool is parked as a managed blocker, so that the pool can activate a spare worker meanwhile.
  */
 public class ManualResetEvent {
     /**
-     * The underlying waitable synchronization object
+     * Enumeration for strategies of waiting for the synchronization object
      */
-    private final Object event = new Object();
-    
+    public enum WaitStrategy {
+        /**
+         * Park the waiting thread right away
+         */
+        Park,
+        /**
+         * Yield the processor a bounded number of times, then park
+         */
+        Yield,
+        /**
+         * Busy-spin a bounded number of iterations, then park
+         */
+        Spin
+    }
+
     /**
-     * Armed state of the synchronization object
+     * Number of busy-spin iterations before parking (Spin strategy)
      */
-    private volatile boolean armed;
+    private static final int MaxSpins = 1 << 14;
 
     /**
-     * Constructor
+     * Number of yields before parking (Yield strategy)
+     */
+    private static final int MaxYields = 64;
+
+    /**
+     * Synchronizer whose state holds the armed flag (lowest bit) and the number of times the object has been set
+     * (remaining bits). The generation lets the waiters detect a signal even if the object is re-armed
+     * before they wake up: each waiter passes the state observed when it started waiting to acquireShared().
+     */
+    private static final class Sync extends AbstractQueuedSynchronizer {
+        private static final long serialVersionUID = 1L;
+
+        private static final int Armed = 1;
+        private static final int Generation = 2;
+
+        Sync(boolean armed) {
+            setState(armed ? Armed : 0);
+        }
+
+        int getSnapshot() {
+            return getState();
+        }
+
+        boolean isSignaled(int snapshot) {
+            var state = getState();
+            return (state & Armed) == 0 || (state & ~Armed) != (snapshot & ~Armed);
+        }
+
+        void arm() {
+            while (true) {
+                var state = getState();
+                if ((state & Armed) != 0 || compareAndSetState(state, state | Armed))
+                    return;
+            }
+        }
+
+        @Override
+        protected int tryAcquireShared(int snapshot) {
+            return isSignaled(snapshot) ? 1 : -1;
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int unused) {
+            while (true) {
+                var state = getState();
+                if (compareAndSetState(state, (state & ~Armed) + Generation))
+                    return true;
+            }
+        }
+    }
+
+    private final Sync sync;
+
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * Constructor (waiting threads are parked right away)
      * @param initialState      Whether Manual Reset Event is initially armed or not
      */
     public ManualResetEvent(boolean initialState) {
-        armed = initialState;
+        this(initialState, WaitStrategy.Park);
+    }
+
+    /**
+     * Constructor
+     * @param initialState      Whether Manual Reset Event is initially armed or not
+     * @param waitStrategy      Strategy of waiting for the synchronization object
+     */
+    public ManualResetEvent(boolean initialState, WaitStrategy waitStrategy) {
+        requireNonNull(waitStrategy, "Wait strategy is NULL");
+
+        sync = new Sync(initialState);
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return      Strategy of waiting for the synchronization object
+     */
+    public final WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @return      Is the synchronization object signaled (i.e. not armed)?
+     */
+    public final boolean isSet() {
+        return sync.isSignaled(sync.getSnapshot());
     }
 
     /**
      * Arm synchronization object: after calling it is ready to be waited on
      */
     public final void reset() {
-        armed = true;
+        sync.arm();
     }
 
     /**
      * Signal synchronization object: all waiting objects are notified
      */
     public final void set() {
-        synchronized (event) {
-            event.notifyAll();
-        }
-        armed = false;
+        sync.releaseShared(0);
     }
 
     /**
      * Wait for the synchronization object
-     * @param timeoutMsec               Wait timeout (in msec)
+     * @param timeoutMsec               Wait timeout (in msec, 0 means no timeout)
      */
     public final void waitOne(int timeoutMsec) throws InterruptedException {
         if (timeoutMsec < 0)
             throw new RuntimeException("Timeout value cannot be negative");
-        synchronized (event) {
-            if (armed) {
-                if (timeoutMsec == 0)
-                    event.wait();
-                else
-                    event.wait(timeoutMsec);
-            }
+
+        var snapshot = sync.getSnapshot();
+        if (sync.isSignaled(snapshot))
+            return;
+
+        if (timeoutMsec == 0) {
+            if (!spin(snapshot, Long.MAX_VALUE))
+                park(snapshot, Long.MAX_VALUE);
+        }
+        else {
+            waitNanos(snapshot, TimeUnit.MILLISECONDS.toNanos(timeoutMsec));
+        }
+    }
+
+    /**
+     * Wait for the synchronization object with a fine-grained timeout
+     * @param timeout       Wait timeout (0 returns immediately)
+     * @param unit          Time unit of the timeout
+     * @return              Has the synchronization object been signaled before the timeout?
+     */
+    public final boolean waitOne(long timeout, TimeUnit unit) throws InterruptedException {
+        if (timeout < 0)
+            throw new RuntimeException("Timeout value cannot be negative");
+
+        var snapshot = sync.getSnapshot();
+        if (sync.isSignaled(snapshot))
+            return true;
+
+        return waitNanos(snapshot, unit.toNanos(timeout));
+    }
+
+    /**
+     * Wait for the synchronization object to be signaled after the snapshot has been observed
+     * @param snapshot          State observed when the wait started
+     * @param timeoutNsec       Wait timeout (nsec)
+     * @return                  Has the synchronization object been signaled before the timeout?
+     */
+    private boolean waitNanos(int snapshot, long timeoutNsec) throws InterruptedException {
+        // Keep the deadline away from overflow (and from the "no deadline" value) for very long timeouts
+        var deadline = System.nanoTime() + Math.min(timeoutNsec, Long.MAX_VALUE / 4);
+        if (spin(snapshot, deadline))
+            return true;
+
+        park(snapshot, deadline);
+        return sync.isSignaled(snapshot);
+    }
+
+    /**
+     * Park the waiting thread until the synchronization object is signaled or the deadline is reached
+     * @param snapshot          State observed when the wait started
+     * @param deadline          Time to stop waiting at (nsec, as returned by System.nanoTime(), Long.MAX_VALUE if none)
+     */
+    private void park(int snapshot, long deadline) throws InterruptedException {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+            CommandExecutors.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    acquire(snapshot, deadline);
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return sync.isSignaled(snapshot) || deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+                }
+            });
+            return;
+        }
+
+        acquire(snapshot, deadline);
+    }
+
+    /**
+     * Acquire the synchronizer, i.e. wait until the synchronization object is signaled or the deadline is reached
+     * @param snapshot          State observed when the wait started
+     * @param deadline          Time to stop waiting at (nsec, as returned by System.nanoTime(), Long.MAX_VALUE if none)
+     */
+    private void acquire(int snapshot, long deadline) throws InterruptedException {
+        if (deadline == Long.MAX_VALUE) {
+            sync.acquireSharedInterruptibly(snapshot);
+            return;
+        }
+
+        var remainingNsec = deadline - System.nanoTime();
+        if (remainingNsec > 0)
+            sync.tryAcquireSharedNanos(snapshot, remainingNsec);
+    }
+
+    /**
+     * Spin or yield according to the wait strategy, before the waiting thread is parked
+     * @param snapshot          State observed when the wait started
+     * @param deadline          Time to stop waiting at (nsec, as returned by System.nanoTime(), Long.MAX_VALUE if none)
+     * @return                  Has the synchronization object been signaled while spinning?
+     */
+    private boolean spin(int snapshot, long deadline) throws InterruptedException {
+        var iterations = waitStrategy == WaitStrategy.Spin ? MaxSpins : waitStrategy == WaitStrategy.Yield ? MaxYields : 0;
+        for (int i = 0; i < iterations; i++) {
+            if (sync.isSignaled(snapshot))
+                return true;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            // While busy-spinning, check the clock only every so often: it costs more than a spin iteration
+            var isClockCheckDue = waitStrategy == WaitStrategy.Yield || (i & 0xFF) == 0xFF;
+            if (isClockCheckDue && deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0)
+                return false;
+
+            if (waitStrategy == WaitStrategy.Spin)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
         }
+        return sync.isSignaled(snapshot);
     }
 }
@@ -1,13 +1,63 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
 
 /**
  * Implements parallel execution of multiple commands using threads.
  * Failure in one of the branches leads to the failure of the Parallel command.
  * If more than one branch fails, only the first one will be registered, and others ignored.
+ * Sub-commands are executed by the supplied executor or, if none is supplied,
+ * by the library-wide default executor (see CommandExecutors).
+ * In the fail-fast mode the first failed branch aborts all its siblings, so that the command
+ * does not have to wait for the slowest branch to complete.
+ * The number of simultaneously executing branches can be limited by the maximum degree of parallelism:
+ * the branches are then admitted through a bounded window in the order of their priorities.
+ * When the command runs on a worker of its executor and the executor is a fork-join pool (see CommandExecutors.useWorkStealingPool()),
+ * the branches are forked into the local work queue of the worker, and the command executes them itself
+ * while waiting for them, instead of blocking the worker.
  */
 public class ParallelCommand extends CompositeCommand {
+    /**
+     * Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    private volatile Executor executor;
+
+    /**
+     * Fail-fast flag: abort sibling branches as soon as one of the branches fails
+     */
+    private volatile boolean isFailFast;
+
+    /**
+     * Exceptions of the failed branches (in the order of failure)
+     */
+    private final ConcurrentLinkedQueue<ExtensibleCommandsException> failures = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Has the fail-fast policy been triggered during the current execution?
+     */
+    private final AtomicBoolean isFailFastTriggered = new AtomicBoolean();
+
+    /**
+     * Maximum number of simultaneously executing branches (0 means no limit)
+     */
+    private volatile int maxDegreeOfParallelism;
+
+    /**
+     * Strategy of waiting for the branches to finish
+     */
+    private volatile ManualResetEvent.WaitStrategy waitStrategy = ManualResetEvent.WaitStrategy.Park;
+
+    /**
+     * Priorities of the sub-commands (sub-commands with higher priority are admitted first)
+     */
+    private final Map<Command, Integer> priorities = new IdentityHashMap<>();
+
     public ParallelCommand() {
         this ("Parallel");
     }
@@ -17,43 +67,446 @@ public class ParallelCommand extends CompositeCommand {
      * @param name      Command name
      */
     public ParallelCommand(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Constructor
+     * @param name          Command name
+     * @param executor      Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    public ParallelCommand(String name, Executor executor) {
         super(name);
+        this.executor = executor;
+    }
+
+    /**
+     * @return              Executor running the sub-commands (NULL means the library-wide default executor)
+     */
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set executor running the sub-commands
+     * @param executor      Executor running the sub-commands (NULL means the library-wide default executor)
+     * @return              This command
+     */
+    public final ParallelCommand setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return              Fail-fast flag: abort sibling branches as soon as one of the branches fails
+     */
+    public final boolean getIsFailFast() {
+        return isFailFast;
+    }
+
+    /**
+     * Set fail-fast flag
+     * @param isFailFast    Abort sibling branches as soon as one of the branches fails?
+     * @return              This command
+     */
+    public final ParallelCommand setIsFailFast(boolean isFailFast) {
+        this.isFailFast = isFailFast;
+        return this;
+    }
+
+    /**
+     * @return              Maximum number of simultaneously executing branches (0 means no limit)
+     */
+    public final int getMaxDegreeOfParallelism() {
+        return maxDegreeOfParallelism;
+    }
+
+    /**
+     * Set maximum number of simultaneously executing branches
+     * @param maxDegreeOfParallelism    Maximum number of simultaneously executing branches (0 means no limit)
+     * @return                          This command
+     */
+    public final ParallelCommand setMaxDegreeOfParallelism(int maxDegreeOfParallelism) {
+        if (maxDegreeOfParallelism < 0)
+            throw new RuntimeException(String.format("For command %s maximum degree of parallelism %s cannot be negative",
+                    name, maxDegreeOfParallelism));
+
+        this.maxDegreeOfParallelism = maxDegreeOfParallelism;
+        return this;
+    }
+
+    /**
+     * @return              Strategy of waiting for the branches to finish
+     */
+    public final ManualResetEvent.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Set strategy of waiting for the branches to finish. Spinning or yielding before parking shortens the handoff
+     * from the last branch to the command when branches are short, at the cost of keeping the waiting thread busy.
+     * @param waitStrategy      Strategy of waiting for the branches to finish
+     * @return                  This command
+     */
+    public final ParallelCommand setWaitStrategy(ManualResetEvent.WaitStrategy waitStrategy) {
+        requireNonNull(waitStrategy, String.format("Wait strategy is NULL in ParallelCommand %s", name));
+
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * Adds a sub-command with a priority to the execution list.
+     * Priority only matters if the maximum degree of parallelism is set: sub-commands with higher priority are admitted first,
+     * sub-commands with equal priority are admitted in the order of addition.
+     * @param subCommand    Sub-command to add
+     * @param priority      Sub-command priority (default is 0)
+     * @return              This command
+     */
+    public final ParallelCommand add(Command subCommand, int priority) {
+        add(subCommand);
+        synchronized (priorities) {
+            priorities.put(subCommand, priority);
+        }
+        return this;
+    }
+
+    /**
+     * @return              Exceptions of all branches failed during the last execution (in the order of failure)
+     */
+    public final List<ExtensibleCommandsException> getFailures() {
+        return List.copyOf(failures);
+    }
+
+    /**
+     * Estimate execution time: sub-commands run simultaneously, so the estimate is the largest estimated time
+     * of a sub-command (or the total estimated time spread over the allowed number of branches, if it is larger)
+     * @return              Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        long longest = 0;
+        long total = 0;
+        for (var subCommand : subCommands) {
+            var estimate = subCommand.getEstimatedTimeNsec();
+            longest = Math.max(longest, estimate);
+            total += estimate;
+        }
+
+        var maxDegree = maxDegreeOfParallelism;
+        return maxDegree > 0 ? Math.max(longest, total / maxDegree) : longest;
     }
 
     @Override
     protected void execute() throws Exception {
-        var exceptions = new ArrayList<Exception>();
+        var fatalExceptions = new ConcurrentLinkedQueue<Exception>();
+        var currentExecutor = executor != null ? executor : CommandExecutors.getDefaultExecutor();
+        var branchesFinished = new BranchCountdown(subCommands.size(), waitStrategy);
+        var window = maxDegreeOfParallelism > 0 ? new Semaphore(maxDegreeOfParallelism) : null;
+        var forkedBranches = new ArrayList<ForkJoinTask<?>>();
 
-        // Make sure we arm Finished events in all sub-commands so that we can reliably wait for them
-        // in a different thread
-        for (var subCommand : subCommands)
-            subCommand.resetFinished();
+        failures.clear();
+        isFailFastTriggered.set(false);
 
         // Launch parallel sub-commands
-        for (var subCommand : subCommands) {
-            // Spawn threads to execute sub-commands
-            new Thread(() -> {
+        for (var subCommand : getAdmissionOrder()) {
+            // Wait for a free slot in the window. Once the command is aborted or has failed fast, stop admitting new branches.
+            if (window != null && !window.tryAcquire())
+                CommandExecutors.runBlocking(window::acquire);
+            if (window != null && (isAborted() || isFailFastTriggered.get())) {
+                window.release();
+                branchesFinished.countDown();
+                continue;
+            }
+
+            try {
+                var forkedBranch = CommandExecutors.fork(currentExecutor, () -> {
+                    // Branches that have not started yet are skipped once the fail-fast policy is triggered
+                    if (isFailFastTriggered.get()) {
+                        releaseWindow(window);
+                        branchesFinished.countDown();
+                        return;
+                    }
+
+                    var isFatal = false;
+                    try {
+                        subCommand.run();
+                    }
+                    catch (Exception e) {
+                        // If there is a fatal exception, don't throw it here.
+                        // Store it and process after all sub-commands are completed.
+                        fatalExceptions.add(e);
+                        isFatal = true;
+                    }
+                    finally {
+                        onBranchFinished(subCommand, isFatal);
+                        releaseWindow(window);
+                        branchesFinished.countDown();
+                    }
+                });
+                if (forkedBranch != null)
+                    forkedBranches.add(forkedBranch);
+            }
+            catch (RuntimeException e) {
+                // The executor rejected the sub-command, it will never run and must not be waited upon
+                fatalExceptions.add(e);
+                onBranchFinished(subCommand, true);
+                releaseWindow(window);
+                branchesFinished.countDown();
+            }
+        }
+
+        // Execute the forked branches not stolen by other workers (the last forked is on top of the local queue),
+        // or help the workers executing them
+        for (int i = forkedBranches.size() - 1; i >= 0; i--)
+            forkedBranches.get(i).quietlyJoin();
+
+        // Wait until every launched sub-command is finished
+        branchesFinished.await();
+
+        if (!fatalExceptions.isEmpty())
+            throw createFatalException(fatalExceptions);
+
+        processAbortAndPauseEvents();
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        failures.clear();
+        isFailFastTriggered.set(false);
+
+        var branches = new AsyncBranches();
+        branches.admit();
+        return branches.result;
+    }
+
+    /**
+     * Set the main command state based on the child commands states
+     */
+    @Override
+    protected void checkErrors() {
+        super.checkErrors();
+
+        // Siblings aborted by the fail-fast policy must not mask the failure (unless the command itself was aborted)
+        if (isFailFastTriggered.get() && !isAborted() && !failures.isEmpty()) {
+            setState(State.Failed);
+            exception = failures.peek();
+        }
+    }
+
+    /**
+     * @return              Are the running sub-commands aborted by the fail-fast policy?
+     */
+    @Override
+    protected boolean isAbortingSubCommands() {
+        return isFailFastTriggered.get();
+    }
+
+    /**
+     * @return              Sub-commands in the order of admission (by descending priority, then in the order of addition)
+     */
+    private List<Command> getAdmissionOrder() {
+        if (maxDegreeOfParallelism == 0)
+            return subCommands;
+
+        synchronized (priorities) {
+            if (priorities.isEmpty())
+                return subCommands;
+
+            var admissionOrder = new ArrayList<>(subCommands);
+            // List sort is stable, so sub-commands with equal priority keep the order of addition
+            admissionOrder.sort(Comparator.comparingInt(c -> -priorities.getOrDefault(c, 0)));
+            return admissionOrder;
+        }
+    }
+
+    /**
+     * Create exception reporting fatal exceptions in the sub-commands.
+     * The first fatal exception is the cause, the other ones are attached as suppressed exceptions.
+     * @param fatalExceptions   Fatal exceptions thrown by the sub-commands
+     * @return                  Exception to throw
+     */
+    private static Exception createFatalException(Collection<? extends Throwable> fatalExceptions) {
+        var iterator = fatalExceptions.iterator();
+        var exception = new Exception("Fatal error in one of the sub-commands of a Parallel command", iterator.next());
+        iterator.forEachRemaining(exception::addSuppressed);
+        return exception;
+    }
+
+    /**
+     * Release a slot in the admission window
+     * @param window        Admission window (NULL if the degree of parallelism is not limited)
+     */
+    private static void releaseWindow(Semaphore window) {
+        if (window != null)
+            window.release();
+    }
+
+    /**
+     * Register the outcome of a branch and apply the fail-fast policy if necessary
+     * @param subCommand        Finished sub-command
+     * @param isFatal           Has the sub-command terminated with a fatal (not handled) exception?
+     */
+    private void onBranchFinished(Command subCommand, boolean isFatal) {
+        var isFailed = isFatal || subCommand.getState() == State.Failed;
+        if (isFailed && subCommand.getException() != null)
+            failures.add(subCommand.getException());
+
+        if (!isFailFast || isAborted())
+            return;
+
+        if (isFailed && isFailFastTriggered.compareAndSet(false, true)) {
+            Logger.log(Logger.LogLevel.Info,
+                    "Command %s : sub-command %s failed, aborting other sub-commands", name, subCommand.getName());
+
+            // Branches starting from now on find the abort through their invoker, running ones are aborted explicitly
+            signalControlChange();
+
+            for (var sibling : subCommands) {
+                if (sibling != subCommand)
+                    sibling.abort();
+            }
+        }
+    }
+
+    /**
+     * Countdown of the branches left to finish, signaling an event when the last one is finished
+     */
+    private static final class BranchCountdown {
+        private final AtomicInteger remainingBranches;
+        private final ManualResetEvent allFinished;
+
+        BranchCountdown(int numberOfBranches, ManualResetEvent.WaitStrategy waitStrategy) {
+            remainingBranches = new AtomicInteger(numberOfBranches);
+            allFinished = new ManualResetEvent(numberOfBranches > 0, waitStrategy);
+        }
+
+        void countDown() {
+            if (remainingBranches.decrementAndGet() == 0)
+                allFinished.set();
+        }
+
+        void await() throws InterruptedException {
+            allFinished.waitOne(0);
+        }
+    }
+
+    /**
+     * State of an asynchronous execution: branches are admitted as the slots of the window become free,
+     * and the command body is completed when the last branch is finished
+     */
+    private final class AsyncBranches {
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private final ConcurrentLinkedQueue<Throwable> fatalExceptions = new ConcurrentLinkedQueue<>();
+        private final Executor currentExecutor = executor != null ? executor : CommandExecutors.getDefaultExecutor();
+        private final Iterator<Command> pendingCommands = getAdmissionOrder().iterator();
+        private final AtomicInteger remainingCommands = new AtomicInteger(subCommands.size());
+        private final ReentrantLock admissionLock = new ReentrantLock();
+        private int freeSlots = maxDegreeOfParallelism > 0 ? maxDegreeOfParallelism : Integer.MAX_VALUE;
+
+        /**
+         * Launch pending branches while there are free slots in the window
+         */
+        void admit() {
+            if (subCommands.isEmpty()) {
+                complete();
+                return;
+            }
+
+            while (true) {
+                Command subCommand;
+                boolean isSkipped;
+
+                admissionLock.lock();
                 try {
-                    subCommand.run();
+                    if (freeSlots == 0 || !pendingCommands.hasNext())
+                        return;
+
+                    subCommand = pendingCommands.next();
+                    // Once the command is aborted or has failed fast, stop admitting new branches
+                    isSkipped = isAborted() || isFailFastTriggered.get();
+                    if (!isSkipped)
+                        freeSlots--;
                 }
-                catch (Exception e) {
-                    // If there is a fatal exception, don't throw it here.
-                    // Store it and process after all sub-commands are completed.
-                    exceptions.add(e);
+                finally {
+                    admissionLock.unlock();
                 }
-            }).start();
+
+                if (isSkipped)
+                    countDown();
+                else
+                    launch(subCommand);
+            }
         }
 
-        // Wait until every sub-command is finished
-        for (var subCommand : subCommands) {
-            subCommand.waitUntilFinished(0);
+        /**
+         * Launch a branch
+         * @param subCommand    Sub-command to run
+         */
+        private void launch(Command subCommand) {
+            try {
+                currentExecutor.execute(() -> {
+                    // Branches that have not started yet are skipped once the fail-fast policy is triggered
+                    if (isFailFastTriggered.get()) {
+                        finishBranch();
+                        return;
+                    }
+
+                    subCommand.runAsync().whenComplete((s, t) -> {
+                        if (t != null)
+                            fatalExceptions.add(AsyncExecution.unwrap(t));
+                        onBranchFinished(subCommand, t != null);
+                        finishBranch();
+                    });
+                });
+            }
+            catch (RuntimeException e) {
+                // The executor rejected the sub-command, it will never run and must not be waited upon
+                fatalExceptions.add(e);
+                onBranchFinished(subCommand, true);
+                finishBranch();
+            }
         }
 
-        // If there were fatal exceptions in any of the sub-commands, throw the first one in the list.
-        // The information about the other fatal exceptions is ignored.
-        if (!exceptions.isEmpty())
-            throw new Exception("Fatal error in one of the sub-commands of a Parallel command", exceptions.get(0));
+        /**
+         * Free the slot of a finished branch and admit the next pending branch
+         */
+        private void finishBranch() {
+            admissionLock.lock();
+            try {
+                freeSlots++;
+            }
+            finally {
+                admissionLock.unlock();
+            }
 
-        processAbortAndPauseEvents();
+            admit();
+            countDown();
+        }
+
+        /**
+         * Count down the remaining branches and complete the command body after the last one
+         */
+        private void countDown() {
+            if (remainingCommands.decrementAndGet() == 0)
+                complete();
+        }
+
+        /**
+         * Complete the command body
+         */
+        private void complete() {
+            if (!fatalExceptions.isEmpty()) {
+                result.completeExceptionally(createFatalException(fatalExceptions));
+                return;
+            }
+
+            processAbortAndPauseEventsAsync().whenComplete((v, t) -> {
+                if (t != null)
+                    result.completeExceptionally(t);
+                else
+                    result.complete(null);
+            });
+        }
     }
 }
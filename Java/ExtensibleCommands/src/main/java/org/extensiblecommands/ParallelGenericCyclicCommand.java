@@ -0,0 +1,577 @@
+package org.extensiblecommands;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements parallel version of the generic cyclic command: the core command is executed for every element
+ * of the collection, by several workers simultaneously.
+ * Every worker has its own instance of the core command (created by the factory when the command is constructed)
+ * and its own current element, so the core commands must not share mutable state.
+ * The collection is split into chunks of consecutive elements (using its spliterator), the workers take the chunks
+ * one after another until all elements are processed. The outcome of every element is recorded, and the core command
+ * may produce a result for its element: the results are available in the order of the collection.
+ * A failed element does not stop the other elements, unless the fail-fast mode is set.
+ * The progress of the command counts processed elements.
+ * @param <T>           Type of collection element
+ * @param <R>           Type of result produced for an element
+ */
+public class ParallelGenericCyclicCommand<T, R> extends AbstractCommand {
+    /**
+     * Number of chunks per worker the collection is split into (more chunks balance the load better)
+     */
+    private static final int ChunksPerWorker = 4;
+
+    /**
+     * Collection to iterate through
+     */
+    private final Collection<T> collection;
+
+    /**
+     * Workers (each with its own core command)
+     */
+    private final List<Worker> workers = new ArrayList<>();
+
+    /**
+     * Executor running the workers (NULL means the library-wide default executor)
+     */
+    private volatile Executor executor;
+
+    /**
+     * Fail-fast flag: stop processing the elements as soon as one of them fails
+     */
+    private volatile boolean isFailFast;
+
+    /**
+     * Has the fail-fast policy been triggered during the current execution?
+     */
+    private final AtomicBoolean isFailFastTriggered = new AtomicBoolean();
+
+    /**
+     * Outcomes of the elements in the last execution (NULL for the elements not processed)
+     */
+    private volatile AtomicReferenceArray<State> elementStates = new AtomicReferenceArray<>(0);
+
+    /**
+     * Exceptions of the failed elements in the last execution
+     */
+    private volatile AtomicReferenceArray<ExtensibleCommandsException> elementExceptions = new AtomicReferenceArray<>(0);
+
+    /**
+     * Results of the elements in the last execution
+     */
+    private volatile AtomicReferenceArray<R> results = new AtomicReferenceArray<>(0);
+
+    /**
+     * Constructor (one worker per available processor)
+     * @param coreCommandFactory    Factory creating the core command of every worker
+     * @param collection            Collection to iterate through
+     */
+    public ParallelGenericCyclicCommand(CoreCommandFactory<T, R> coreCommandFactory, Collection<T> collection) {
+        this(coreCommandFactory, collection, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     * @param coreCommandFactory    Factory creating the core command of every worker
+     * @param collection            Collection to iterate through
+     * @param numberOfWorkers       Number of workers processing the elements simultaneously
+     */
+    public ParallelGenericCyclicCommand(CoreCommandFactory<T, R> coreCommandFactory, Collection<T> collection,
+                                       int numberOfWorkers) {
+        this(coreCommandFactory, collection, numberOfWorkers, "Parallel Generic Cyclic");
+    }
+
+    /**
+     * Constructor
+     * @param coreCommandFactory    Factory creating the core command of every worker
+     * @param collection            Collection to iterate through
+     * @param numberOfWorkers       Number of workers processing the elements simultaneously
+     * @param name                  Command name
+     */
+    public ParallelGenericCyclicCommand(CoreCommandFactory<T, R> coreCommandFactory, Collection<T> collection,
+                                       int numberOfWorkers, String name) {
+        requireNonNull(coreCommandFactory, String.format("Core command factory is NULL in ParallelGenericCyclicCommand %s", name));
+        requireNonNull(collection, String.format("Collection is NULL in ParallelGenericCyclicCommand %s", name));
+        if (numberOfWorkers <= 0)
+            throw new RuntimeException(String.format("For command %s number of workers %s must be positive", name, numberOfWorkers));
+
+        this.name = name;
+        this.collection = collection;
+
+        for (int i = 0; i < numberOfWorkers; i++) {
+            var worker = new Worker(i);
+            worker.coreCommand = requireNonNull(coreCommandFactory.create(worker),
+                    String.format("Core Command is NULL in ParallelGenericCyclicCommand %s", name));
+            workers.add(worker);
+            linkChild(worker.coreCommand);
+        }
+    }
+
+    /**
+     * @return              Number of workers processing the elements simultaneously
+     */
+    public final int getNumberOfWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * @param index         0-based index of the worker
+     * @return              Worker
+     */
+    public final Worker getWorker(int index) {
+        if (index < 0 || index >= workers.size())
+            throw new RuntimeException(String.format("For command %s worker index %s is out of the allowed range [%s - %s]",
+                    name, index, 0, workers.size()));
+
+        return workers.get(index);
+    }
+
+    /**
+     * @return              Executor running the workers (NULL means the library-wide default executor)
+     */
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set executor running the workers
+     * @param executor      Executor running the workers (NULL means the library-wide default executor)
+     * @return              This command
+     */
+    public final ParallelGenericCyclicCommand<T, R> setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return              Fail-fast flag: stop processing the elements as soon as one of them fails
+     */
+    public final boolean getIsFailFast() {
+        return isFailFast;
+    }
+
+    /**
+     * Set fail-fast flag
+     * @param isFailFast    Stop processing the elements (aborting the ones being processed) as soon as one of them fails?
+     * @return              This command
+     */
+    public final ParallelGenericCyclicCommand<T, R> setIsFailFast(boolean isFailFast) {
+        this.isFailFast = isFailFast;
+        return this;
+    }
+
+    /**
+     * @param index         0-based index of the element (in the order of the collection)
+     * @return              Outcome of the element in the last execution (Idle if the element has not been processed)
+     */
+    public final State getElementState(int index) {
+        var state = elementStates.get(index);
+        return state != null ? state : State.Idle;
+    }
+
+    /**
+     * @param index         0-based index of the element (in the order of the collection)
+     * @return              Exception of the element in the last execution (NULL if the element has not failed)
+     */
+    public final ExtensibleCommandsException getElementException(int index) {
+        return elementExceptions.get(index);
+    }
+
+    /**
+     * @return              Results of the elements in the last execution, in the order of the collection
+     *                      (NULL for the elements without result)
+     */
+    public final List<R> getResults() {
+        var currentResults = results;
+        var orderedResults = new ArrayList<R>(currentResults.length());
+        for (int i = 0; i < currentResults.length(); i++)
+            orderedResults.add(currentResults.get(i));
+        return Collections.unmodifiableList(orderedResults);
+    }
+
+    /**
+     * Collect child command objects (1st level only)
+     * @param children      List to add child commands to
+     */
+    @Override
+    protected void collectChildren(List<Command> children) {
+        for (var worker : workers)
+            children.add(worker.coreCommand);
+    }
+
+    /**
+     * Estimate execution time: the core command is executed once for every element of the collection,
+     * the elements are spread over the workers
+     * @return              Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        var numberOfRounds = (collection.size() + workers.size() - 1) / workers.size();
+        return numberOfRounds * workers.get(0).coreCommand.getEstimatedTimeNsec();
+    }
+
+    /**
+     * @return              Number of elements: the progress counts processed elements
+     */
+    @Override
+    protected int getNumberOfProgressUnits() {
+        return collection.size();
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        var chunks = startCollectionRun();
+        var fatalExceptions = new ConcurrentLinkedQueue<Exception>();
+        var currentExecutor = executor != null ? executor : CommandExecutors.getDefaultExecutor();
+        var remainingWorkers = new AtomicInteger(workers.size());
+        var workersFinished = new ManualResetEvent(true);
+        var forkedWorkers = new ArrayList<ForkJoinTask<?>>();
+
+        for (var worker : workers) {
+            Runnable task = () -> {
+                try {
+                    worker.process(chunks);
+                }
+                catch (Exception e) {
+                    // If there is a fatal exception, don't throw it here.
+                    // Store it and process after all workers are finished.
+                    fatalExceptions.add(e);
+                    chunks.clear();
+                }
+                finally {
+                    if (remainingWorkers.decrementAndGet() == 0)
+                        workersFinished.set();
+                }
+            };
+
+            try {
+                var forkedWorker = CommandExecutors.fork(currentExecutor, task);
+                if (forkedWorker != null)
+                    forkedWorkers.add(forkedWorker);
+            }
+            catch (RuntimeException e) {
+                // The executor rejected the worker, it will never run and must not be waited upon
+                fatalExceptions.add(e);
+                if (remainingWorkers.decrementAndGet() == 0)
+                    workersFinished.set();
+            }
+        }
+
+        // Execute the forked workers not stolen by other workers of the pool, or help the workers executing them
+        for (int i = forkedWorkers.size() - 1; i >= 0; i--)
+            forkedWorkers.get(i).quietlyJoin();
+
+        workersFinished.waitOne(0);
+
+        if (!fatalExceptions.isEmpty())
+            throw createFatalException(fatalExceptions);
+
+        processAbortAndPauseEvents();
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        var chunks = startCollectionRun();
+        var fatalExceptions = new ConcurrentLinkedQueue<Throwable>();
+        var currentExecutor = executor != null ? executor : CommandExecutors.getDefaultExecutor();
+        var workerFutures = new ArrayList<CompletableFuture<Void>>();
+
+        for (var worker : workers) {
+            var workerFuture = new CompletableFuture<Void>();
+            workerFutures.add(workerFuture);
+            try {
+                currentExecutor.execute(() -> worker.processAsync(chunks).whenComplete((v, t) -> {
+                    if (t != null) {
+                        fatalExceptions.add(AsyncExecution.unwrap(t));
+                        chunks.clear();
+                    }
+                    workerFuture.complete(null);
+                }));
+            }
+            catch (RuntimeException e) {
+                // The executor rejected the worker, it will never run and must not be waited upon
+                fatalExceptions.add(e);
+                workerFuture.complete(null);
+            }
+        }
+
+        return CompletableFuture.allOf(workerFutures.toArray(new CompletableFuture<?>[0])).thenCompose(v -> {
+            if (!fatalExceptions.isEmpty())
+                return CompletableFuture.failedFuture(createFatalException(fatalExceptions));
+            return processAbortAndPauseEventsAsync();
+        });
+    }
+
+    /**
+     * Set the main command state based on the outcomes of the elements: a failed element fails the command
+     * (the first failed element in the order of the collection supplies the exception)
+     */
+    @Override
+    protected void checkErrors() {
+        if (getState() == State.Aborted || getState() == State.Failed)
+            return;
+
+        var isElementAborted = false;
+        var states = elementStates;
+        for (int i = 0; i < states.length(); i++) {
+            var state = states.get(i);
+            if (state == State.Failed) {
+                setState(State.Failed);
+                exception = elementExceptions.get(i);
+                return;
+            }
+            isElementAborted |= state == State.Aborted;
+        }
+
+        if (isElementAborted)
+            setState(State.Aborted);
+    }
+
+    /**
+     * @return              Are the running core commands aborted by the fail-fast policy?
+     */
+    @Override
+    protected boolean isAbortingSubCommands() {
+        return isFailFastTriggered.get();
+    }
+
+    /**
+     * Reset the outcomes of the elements and split the collection into chunks
+     * @return              Chunks to process (in the order of the collection)
+     */
+    private ConcurrentLinkedQueue<Chunk<T>> startCollectionRun() {
+        isFailFastTriggered.set(false);
+
+        var spliterator = collection.spliterator();
+        // Element indices are derived from the exact sizes of the chunks, otherwise split a snapshot of the collection
+        if (!spliterator.hasCharacteristics(Spliterator.SUBSIZED | Spliterator.ORDERED)) {
+            @SuppressWarnings("unchecked")
+            var snapshot = (T[]) collection.toArray();
+            spliterator = Arrays.spliterator(snapshot);
+        }
+
+        var size = (int) spliterator.getExactSizeIfKnown();
+        elementStates = new AtomicReferenceArray<>(size);
+        elementExceptions = new AtomicReferenceArray<>(size);
+        results = new AtomicReferenceArray<>(size);
+
+        var chunks = new ConcurrentLinkedQueue<Chunk<T>>();
+        split(spliterator, 0, Math.max(1, size / (workers.size() * ChunksPerWorker)), chunks);
+        return chunks;
+    }
+
+    /**
+     * Split the elements into chunks (prefixes are split off first, so the chunks are in the order of the collection)
+     * @param spliterator       Spliterator of the elements
+     * @param startIndex        Index of the first element
+     * @param chunkSize         Target number of elements per chunk
+     * @param chunks            Chunks to add the chunks to
+     */
+    private static <T> void split(Spliterator<T> spliterator, int startIndex, int chunkSize, Collection<Chunk<T>> chunks) {
+        while (spliterator.estimateSize() > chunkSize) {
+            var prefix = spliterator.trySplit();
+            if (prefix == null)
+                break;
+
+            var prefixSize = (int) prefix.getExactSizeIfKnown();
+            split(prefix, startIndex, chunkSize, chunks);
+            startIndex += prefixSize;
+        }
+        chunks.add(new Chunk<>(spliterator, startIndex));
+    }
+
+    /**
+     * Record the outcome of an element processed by a worker and apply the fail-fast policy if necessary
+     * @param worker        Worker
+     * @param chunks        Chunks left to process
+     */
+    private void onElementFinished(Worker worker, Queue<Chunk<T>> chunks) {
+        var index = worker.currentIndex;
+        var state = worker.coreCommand.getState();
+        elementStates.set(index, state);
+
+        if (state == State.Completed) {
+            completeProgressUnit();
+            return;
+        }
+
+        if (state == State.Failed) {
+            elementExceptions.set(index, worker.coreCommand.getException());
+            if (!isFailFast)
+                return;
+        }
+
+        // An aborted core command stops the processing, as in the generic cyclic command (so does a failed one in the fail-fast mode)
+        chunks.clear();
+        if (state != State.Failed || isAborted())
+            return;
+
+        if (isFailFastTriggered.compareAndSet(false, true)) {
+            Logger.log(Logger.LogLevel.Info,
+                    "Command %s : element %s failed, aborting other elements", name, index);
+
+            // Core commands starting from now on find the abort through their invoker, running ones are aborted explicitly
+            signalControlChange();
+
+            for (var other : workers) {
+                if (other != worker)
+                    other.coreCommand.abort();
+            }
+        }
+    }
+
+    /**
+     * Create exception reporting fatal exceptions in the workers.
+     * The first fatal exception is the cause, the other ones are attached as suppressed exceptions.
+     * @param fatalExceptions   Fatal exceptions thrown by the core commands
+     * @return                  Exception to throw
+     */
+    private static Exception createFatalException(Collection<? extends Throwable> fatalExceptions) {
+        var iterator = fatalExceptions.iterator();
+        var exception = new Exception("Fatal error in one of the core commands of a ParallelGenericCyclic command", iterator.next());
+        iterator.forEachRemaining(exception::addSuppressed);
+        return exception;
+    }
+
+    /**
+     * Chunk of consecutive elements of the collection
+     * @param <T>           Type of collection element
+     */
+    private static final class Chunk<T> {
+        private final Spliterator<T> spliterator;
+        private int nextIndex;
+
+        Chunk(Spliterator<T> spliterator, int startIndex) {
+            this.spliterator = spliterator;
+            this.nextIndex = startIndex;
+        }
+    }
+
+    /**
+     * Worker processing the elements with its own core command.
+     * The core command reads the current element of its worker, and may set the result produced for it.
+     */
+    public final class Worker {
+        private final int index;
+        private Command coreCommand;
+        private volatile T currentElement;
+        private volatile int currentIndex = -1;
+
+        private Worker(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return      0-based index of the worker
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return      Core command of the worker
+         */
+        public Command getCoreCommand() {
+            return coreCommand;
+        }
+
+        /**
+         * @return      Current element of the worker (valid during iteration)
+         */
+        public T getCurrentElement() {
+            return currentElement;
+        }
+
+        /**
+         * @return      0-based index of the current element in the collection (negative before the first element)
+         */
+        public int getCurrentIndex() {
+            return currentIndex;
+        }
+
+        /**
+         * Set the result produced for the current element
+         * @param result    Result
+         */
+        public void setResult(R result) {
+            var elementIndex = currentIndex;
+            if (elementIndex < 0)
+                throw new RuntimeException(String.format("Worker %s of command %s has no current element", index, name));
+
+            results.set(elementIndex, result);
+        }
+
+        /**
+         * Process the chunks until all of them are processed or the processing is stopped
+         * @param chunks    Chunks to process
+         */
+        private void process(Queue<Chunk<T>> chunks) throws Exception {
+            Chunk<T> chunk;
+            while ((chunk = chunks.poll()) != null) {
+                while (advance(chunk)) {
+                    try {
+                        processCheckpoint();
+                    }
+                    catch (ExtensibleCommandsAbortedException e) {
+                        chunks.clear();
+                        return;
+                    }
+
+                    coreCommand.run();
+                    onElementFinished(this, chunks);
+                }
+            }
+        }
+
+        /**
+         * Asynchronous version of process(): the processing is suspended (without holding a thread) while the command is paused
+         * @param chunks    Chunks to process
+         * @return          Future completed when the worker is finished
+         */
+        private CompletableFuture<Void> processAsync(Queue<Chunk<T>> chunks) {
+            var chunkHolder = new ArrayList<Chunk<T>>(1);
+            return AsyncExecution.loop(() -> {
+                if (isAborted()) {
+                    chunks.clear();
+                    return CompletableFuture.completedFuture(false);
+                }
+                if (isPaused())
+                    return processAbortAndPauseEventsAsync().thenApply(v -> true);
+
+                while (chunkHolder.isEmpty() || !advance(chunkHolder.get(0))) {
+                    chunkHolder.clear();
+                    var chunk = chunks.poll();
+                    if (chunk == null)
+                        return CompletableFuture.completedFuture(false);
+                    chunkHolder.add(chunk);
+                }
+
+                return coreCommand.runAsync().thenApply(s -> {
+                    onElementFinished(this, chunks);
+                    return true;
+                });
+            });
+        }
+
+        /**
+         * Move to the next element of the chunk
+         * @param chunk     Chunk
+         * @return          Is there a next element (it is then the current element of the worker)?
+         */
+        private boolean advance(Chunk<T> chunk) {
+            return chunk.spliterator.tryAdvance(element -> {
+                currentElement = element;
+                currentIndex = chunk.nextIndex++;
+            });
+        }
+    }
+}
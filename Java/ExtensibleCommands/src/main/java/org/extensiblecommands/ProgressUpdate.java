@@ -1,5 +1,7 @@
 package org.extensiblecommands;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Carries command state information
  */
@@ -7,17 +9,31 @@ public class ProgressUpdate {
     private final int percentCompleted;
     private final double fractionCompleted;
     private final String progressMessage;
+    private final long estimatedRemainingTimeNsec;
 
     /**
-     * Constructor
+     * Constructor (remaining time unknown)
      * @param percentCompleted      Percent complete (0-100)
      * @param fractionCompleted     Fraction complete (0-1)
      * @param progressMessage       Progress description
      */
     public ProgressUpdate(int percentCompleted, double fractionCompleted, String progressMessage) {
+        this(percentCompleted, fractionCompleted, progressMessage, -1);
+    }
+
+    /**
+     * Constructor
+     * @param percentCompleted              Percent complete (0-100)
+     * @param fractionCompleted             Fraction complete (0-1)
+     * @param progressMessage               Progress description
+     * @param estimatedRemainingTimeNsec    Estimated remaining time (nsec, negative if unknown)
+     */
+    public ProgressUpdate(int percentCompleted, double fractionCompleted, String progressMessage,
+                          long estimatedRemainingTimeNsec) {
         this.percentCompleted = percentCompleted;
         this.fractionCompleted = fractionCompleted;
         this.progressMessage = progressMessage;
+        this.estimatedRemainingTimeNsec = estimatedRemainingTimeNsec;
     }
 
     /**
@@ -40,4 +56,25 @@ public class ProgressUpdate {
     public final String getProgressMessage() {
         return progressMessage;
     }
+
+    /**
+     * @return      Is the remaining time estimated?
+     */
+    public final boolean isRemainingTimeEstimated() {
+        return estimatedRemainingTimeNsec >= 0;
+    }
+
+    /**
+     * @return      Estimated remaining time (nsec, negative if unknown)
+     */
+    public final long getEstimatedRemainingTimeNsec() {
+        return estimatedRemainingTimeNsec;
+    }
+
+    /**
+     * @return      Estimated remaining time (msec, negative if unknown)
+     */
+    public final long getEstimatedRemainingTimeMsec() {
+        return estimatedRemainingTimeNsec >= 0 ? TimeUnit.NANOSECONDS.toMillis(estimatedRemainingTimeNsec) : -1;
+    }
 }
@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
@@ -35,6 +36,7 @@ public class RecoverableCommand extends DecoratorCommand {
         requireNonNull(recoveryCommand, String.format("Recovery Command is NULL in RecoverableCommand %s", name));
 
         this.recoveryCommand = recoveryCommand;
+        linkChild(recoveryCommand);
     }
 
     /**
@@ -45,26 +47,22 @@ public class RecoverableCommand extends DecoratorCommand {
     }
 
     /**
-     * @return          List of all child command objects (1st level only)
+     * Collect child command objects (1st level only)
+     * @param children          List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        var children = new ArrayList<Command>();
-        super.getChildren().forEach(c -> children.add(c));
+    protected void collectChildren(List<Command> children) {
+        super.collectChildren(children);
         children.add(recoveryCommand);
-        return children;
     }
 
     /**
-     * @return          List of all descendant command objects (all levels)
+     * Estimate execution time: the recovery command is only executed on failure, so only the core command counts
+     * @return                  Estimated execution time (nsec, 0 if unknown)
      */
     @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<Command>();
-        super.getDescendants().forEach(c -> descendants.add(c));
-        descendants.add(recoveryCommand);
-        recoveryCommand.getDescendants().forEach(c -> descendants.add(c));
-        return descendants;
+    protected long estimateTimeNsec() {
+        return coreCommand.getEstimatedTimeNsec();
     }
 
     @Override
@@ -90,6 +88,31 @@ public class RecoverableCommand extends DecoratorCommand {
         }
     }
 
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        // Run core command
+        return coreCommand.runAsync()
+                .thenCompose(s -> processAbortAndPauseEventsAsync())
+                .thenCompose(v -> {
+                    if (coreCommand.getState() == State.Aborted || getState() == State.Aborted ||
+                            coreCommand.getState() != State.Failed)
+                        return CompletableFuture.completedFuture(null);
+
+                    // Post the error
+                    exception = coreCommand.getException();
+
+                    // Execute recovery command in case of failure (if error allows continuing)
+                    if (!(exception instanceof ExtensibleCommandsAllowRecoveryException))
+                        return CompletableFuture.completedFuture(null);
+
+                    return recoveryCommand.runAsync().thenAccept(s -> {
+                        if (recoveryCommand.getState() == State.Failed) {
+                            exception = recoveryCommand.getException();
+                        }
+                    });
+                });
+    }
+
     /**
      * Set the main command state based on the child commands states
      */
@@ -116,9 +139,8 @@ public class RecoverableCommand extends DecoratorCommand {
 
             // Make sure we log the fact that the error was recovered
             if (coreCommand.getException() instanceof ExtensibleCommandsAllowRecoveryException)
-                Logger.log(Logger.LogLevel.Error,
-                        String.format("ERROR (RECOVERED)[%s] - %s", getCoreCommand().getException().getId(),
-                                getCoreCommand().getException().getText()));
+                Logger.log(Logger.LogLevel.Error, "ERROR (RECOVERED)[%s] - %s", getCoreCommand().getException().getId(),
+                        getCoreCommand().getException().getText());
         }
     }
 }
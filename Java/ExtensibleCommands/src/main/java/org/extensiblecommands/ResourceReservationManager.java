@@ -0,0 +1,428 @@
+package org.extensiblecommands;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reserves the resources used by commands, so that operations using a common resource never execute simultaneously,
+ * while the operations using different resources execute concurrently.
+ * A command (usually the root of a command tree) is admitted only when all the resources used by its descendants are free.
+ * Resources are mapped to a fixed number of stripes, each protected by a semaphore: the stripes of a command
+ * are always acquired in ascending order, so reservations never deadlock. Asynchronous reservations never block
+ * a thread: they wait in the queue of the busy stripe and resume when it is released. Resources sharing a stripe conflict
+ * with each other, so the number of stripes should be much larger than the number of resources used simultaneously.
+ * Reservations are not re-entrant: a thread reserving a stripe it already holds would wait for itself.
+ * Nested runs (see run()) reserving a stripe held by an enclosing run of the same thread are rejected,
+ * reservations made explicitly (see reserve()) must not be nested.
+ */
+public class ResourceReservationManager {
+    /**
+     * Default number of stripes
+     */
+    public static final int DefaultNumberOfStripes = 256;
+
+    private final Stripe[] stripes;
+
+    private final LongAdder numberOfReservations = new LongAdder();
+    private final LongAdder numberOfContendedReservations = new LongAdder();
+    private final AtomicInteger numberOfActiveReservations = new AtomicInteger();
+
+    /**
+     * Time spent waiting for the resources by contended reservations
+     */
+    private final LatencyHistogram waitTimeHistogram = new LatencyHistogram();
+
+    /**
+     * Innermost reservation held by a run executed by the current thread (see run())
+     */
+    private final ThreadLocal<Reservation> runReservation = new ThreadLocal<>();
+
+    /**
+     * Constructor (default number of stripes)
+     */
+    public ResourceReservationManager() {
+        this(DefaultNumberOfStripes);
+    }
+
+    /**
+     * Constructor
+     * @param numberOfStripes       Number of stripes the resources are mapped to
+     */
+    public ResourceReservationManager(int numberOfStripes) {
+        if (numberOfStripes <= 0)
+            throw new RuntimeException(String.format("Invalid number of stripes: %s", numberOfStripes));
+
+        stripes = new Stripe[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Reserve the resources used by a command, waiting until they are free
+     * @param command       Command (usually the root of a command tree)
+     * @return              Reservation to close when the command is finished
+     */
+    public Reservation reserve(Command command) throws InterruptedException {
+        var reservation = tryReserve(command, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        // Cannot happen: the wait is not limited
+        if (reservation == null)
+            throw new RuntimeException(String.format("Failed to reserve the resources of command %s", command.getName()));
+        return reservation;
+    }
+
+    /**
+     * Reserve the resources used by a command, waiting until they are free or the timeout expires
+     * @param command       Command (usually the root of a command tree)
+     * @param timeout       Wait timeout
+     * @param unit          Time unit of the timeout
+     * @return              Reservation to close when the command is finished (NULL if the timeout expired)
+     */
+    public Reservation tryReserve(Command command, long timeout, TimeUnit unit) throws InterruptedException {
+        requireNonNull(command, "Command is NULL");
+        return tryReserve(command, getStripes(command), timeout, unit);
+    }
+
+    /**
+     * Run a command once its resources are reserved, releasing them when the command is finished
+     * @param command       Command (usually the root of a command tree)
+     */
+    public void run(Command command) throws Exception {
+        requireNonNull(command, "Command is NULL");
+
+        // The stripes held by the enclosing runs of this thread would never be released
+        var commandStripes = getStripes(command);
+        var enclosingReservation = runReservation.get();
+        for (var enclosing = enclosingReservation; enclosing != null; enclosing = enclosing.enclosingReservation) {
+            if (enclosing.isConflicting(commandStripes))
+                throw new RuntimeException(String.format(
+                        "Nested reservation of the resources of command %s would deadlock: " +
+                        "they conflict with the resources of command %s reserved by the current thread",
+                        command.getName(), enclosing.getCommand().getName()));
+        }
+
+        var reservation = tryReserve(command, commandStripes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        reservation.enclosingReservation = enclosingReservation;
+        runReservation.set(reservation);
+        try {
+            command.run();
+        }
+        finally {
+            reservation.close();
+            if (enclosingReservation != null)
+                runReservation.set(enclosingReservation);
+            else
+                runReservation.remove();
+        }
+    }
+
+    /**
+     * Reserve the resources used by a command asynchronously: no thread is blocked while the resources are busy,
+     * the reservation waits in the queue of the busy stripe and resumes on the default executor when it is released
+     * @param command       Command (usually the root of a command tree)
+     * @return              Future completed with the reservation to close when the command is finished
+     */
+    public CompletableFuture<Reservation> reserveAsync(Command command) {
+        requireNonNull(command, "Command is NULL");
+        var pending = new PendingReservation(command, getStripes(command));
+        pending.proceed();
+        return pending.result;
+    }
+
+    /**
+     * Run a command asynchronously once its resources are reserved, releasing them when the command is finished.
+     * No thread is blocked while the resources are busy (see reserveAsync()).
+     * @param command       Command (usually the root of a command tree)
+     * @return              Future completed with the final state of the command
+     */
+    public CompletableFuture<State> runAsync(Command command) {
+        var result = new CompletableFuture<State>();
+        reserveAsync(command).whenComplete((reservation, reservationError) -> {
+            if (reservationError != null) {
+                result.completeExceptionally(reservationError);
+                return;
+            }
+
+            CompletableFuture<State> run;
+            try {
+                run = command.runAsync();
+            }
+            catch (Throwable e) {
+                reservation.close();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            run.whenComplete((state, e) -> {
+                reservation.close();
+                if (e != null)
+                    result.completeExceptionally(e);
+                else
+                    result.complete(state);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Reserve stripes for a command, waiting until they are free or the timeout expires
+     * @param command           Command
+     * @param commandStripes    Sorted distinct stripes of the resources used by the command
+     * @param timeout           Wait timeout (Long.MAX_VALUE nsec: no timeout)
+     * @param unit              Time unit of the timeout
+     * @return                  Reservation (NULL if the timeout expired)
+     */
+    private Reservation tryReserve(Command command, int[] commandStripes, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        var startTimeNsec = System.nanoTime();
+        var remainingNsec = unit.toNanos(timeout);
+        var isContended = false;
+
+        // Acquire the stripes in ascending order (deadlock-free), releasing the acquired ones on timeout or interrupt
+        int acquired = 0;
+        try {
+            for (; acquired < commandStripes.length; acquired++) {
+                var stripe = stripes[commandStripes[acquired]].permit;
+                if (stripe.tryAcquire())
+                    continue;
+
+                isContended = true;
+                if (remainingNsec == Long.MAX_VALUE)
+                    stripe.acquire();
+                else if (!stripe.tryAcquire(Math.max(0, remainingNsec - (System.nanoTime() - startTimeNsec)), TimeUnit.NANOSECONDS))
+                    break;
+            }
+        }
+        finally {
+            if (acquired < commandStripes.length)
+                release(commandStripes, acquired);
+        }
+
+        if (acquired < commandStripes.length)
+            return null;
+
+        return newReservation(command, commandStripes, startTimeNsec, isContended);
+    }
+
+    /**
+     * Create the reservation of acquired stripes, updating the statistics
+     * @param command           Command
+     * @param commandStripes    Acquired stripes
+     * @param startTimeNsec     Start time of the reservation
+     * @param isContended       Had the reservation to wait for a stripe?
+     * @return                  Reservation
+     */
+    private Reservation newReservation(Command command, int[] commandStripes, long startTimeNsec, boolean isContended) {
+        numberOfReservations.increment();
+        if (isContended) {
+            numberOfContendedReservations.increment();
+            waitTimeHistogram.record(System.nanoTime() - startTimeNsec);
+        }
+        numberOfActiveReservations.incrementAndGet();
+        return new Reservation(command, commandStripes);
+    }
+
+    /**
+     * @return      Number of successful reservations
+     */
+    public final long getNumberOfReservations() {
+        return numberOfReservations.sum();
+    }
+
+    /**
+     * @return      Number of successful reservations that had to wait for a resource (or for a stripe shared with one)
+     */
+    public final long getNumberOfContendedReservations() {
+        return numberOfContendedReservations.sum();
+    }
+
+    /**
+     * @return      Number of reservations that are not closed yet
+     */
+    public final int getNumberOfActiveReservations() {
+        return numberOfActiveReservations.get();
+    }
+
+    /**
+     * @return      Histogram of the time spent waiting for the resources by contended reservations
+     */
+    public final LatencyHistogram getWaitTimeHistogram() {
+        return waitTimeHistogram;
+    }
+
+    /**
+     * @param command       Command
+     * @return              Sorted distinct stripes of the resources used by the command
+     */
+    private int[] getStripes(Command command) {
+        var resources = command instanceof AbstractCommand ? ((AbstractCommand) command).getResources() : Set.<String>of();
+        var commandStripes = new int[resources.size()];
+        int i = 0;
+        for (var resource : resources) {
+            // Spread the hash code, so that similar resource names are mapped to different stripes
+            var hash = resource.hashCode();
+            commandStripes[i++] = Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+        }
+
+        Arrays.sort(commandStripes);
+        int distinct = 0;
+        for (int j = 0; j < commandStripes.length; j++) {
+            if (j == 0 || commandStripes[j] != commandStripes[j - 1])
+                commandStripes[distinct++] = commandStripes[j];
+        }
+        return distinct == commandStripes.length ? commandStripes : Arrays.copyOf(commandStripes, distinct);
+    }
+
+    /**
+     * Release the first stripes of a reservation (in reverse order of acquisition)
+     * @param commandStripes    Stripes of the reservation
+     * @param count             Number of stripes to release
+     */
+    private void release(int[] commandStripes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            var stripe = stripes[commandStripes[i]];
+            stripe.permit.release();
+            stripe.resumeWaiter();
+        }
+    }
+
+    /**
+     * Stripe of resources
+     */
+    private static final class Stripe {
+        /**
+         * Semaphore protecting the stripe (a semaphore, not a lock, so that asynchronous runs can release it on any thread)
+         */
+        private final Semaphore permit = new Semaphore(1);
+
+        /**
+         * Asynchronous reservations waiting for the stripe
+         */
+        private final Queue<PendingReservation> waiters = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Resume a waiting asynchronous reservation if the stripe is free.
+         * Called after each release and after each enqueuing, so that a free stripe never leaves a waiter behind:
+         * if another thread acquires the stripe meanwhile, the resumed reservation waits again until that thread releases it.
+         */
+        private void resumeWaiter() {
+            if (permit.availablePermits() == 0)
+                return;
+
+            var waiter = waiters.poll();
+            if (waiter != null)
+                waiter.resume();
+        }
+    }
+
+    /**
+     * Asynchronous reservation acquiring its stripes in ascending order without blocking
+     */
+    private final class PendingReservation {
+        private final Command command;
+        private final int[] commandStripes;
+        private final long startTimeNsec = System.nanoTime();
+        private final CompletableFuture<Reservation> result = new CompletableFuture<>();
+
+        /**
+         * Number of stripes acquired so far (accessed by one thread at a time: the reservation is either running or queued)
+         */
+        private int acquired;
+        private boolean isContended;
+
+        private PendingReservation(Command command, int[] commandStripes) {
+            this.command = command;
+            this.commandStripes = commandStripes;
+        }
+
+        /**
+         * Acquire the remaining stripes, or wait in the queue of the first busy one
+         */
+        private void proceed() {
+            for (; acquired < commandStripes.length; acquired++) {
+                var stripe = stripes[commandStripes[acquired]];
+                if (stripe.permit.tryAcquire())
+                    continue;
+
+                // The stripe may be released before the reservation is queued: check it again once queued
+                isContended = true;
+                stripe.waiters.add(this);
+                stripe.resumeWaiter();
+                return;
+            }
+
+            result.complete(newReservation(command, commandStripes, startTimeNsec, isContended));
+        }
+
+        /**
+         * Resume the reservation on the default executor, once the stripe it waits for has been released
+         */
+        private void resume() {
+            try {
+                CommandExecutors.getDefaultExecutor().execute(this::proceed);
+            }
+            catch (Throwable e) {
+                release(commandStripes, acquired);
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Reservation of the resources used by a command
+     */
+    public final class Reservation implements AutoCloseable {
+        private final Command command;
+        private final int[] reservedStripes;
+        private final AtomicBoolean isClosed = new AtomicBoolean();
+
+        /**
+         * Reservation of the enclosing run executed by the same thread (NULL if none, see run())
+         */
+        private Reservation enclosingReservation;
+
+        private Reservation(Command command, int[] reservedStripes) {
+            this.command = command;
+            this.reservedStripes = reservedStripes;
+        }
+
+        /**
+         * @return      Command the resources are reserved for
+         */
+        public Command getCommand() {
+            return command;
+        }
+
+        /**
+         * @param commandStripes    Sorted distinct stripes
+         * @return                  Does the reservation hold one of the stripes?
+         */
+        private boolean isConflicting(int[] commandStripes) {
+            for (var stripe : commandStripes) {
+                if (Arrays.binarySearch(reservedStripes, stripe) >= 0)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Release the reserved resources (only the first call releases them)
+         */
+        @Override
+        public void close() {
+            if (isClosed.compareAndSet(false, true)) {
+                release(reservedStripes, reservedStripes.length);
+                numberOfActiveReservations.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
-import static java.lang.Thread.sleep;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Retries core command N times if it fails
@@ -81,23 +82,64 @@ public class RetryCommand extends DecoratorCommand {
 
             processAbortAndPauseEvents();
 
-            if (coreCommand.getState() == State.Completed || coreCommand.getState() == State.Aborted || getState() == State.Aborted)
+            if (!isRetryRequired())
                 break;
-            if (coreCommand.getState() == State.Failed && !(coreCommand.getException() instanceof ExtensibleCommandsAllowRetryException))
-                break;
-
-            if (coreCommand.getException() instanceof ExtensibleCommandsAllowRetryException)
-                Logger.log(Logger.LogLevel.Error,
-                        String.format("ERROR (RECOVERED)[%s] - %s", getCoreCommand().getException().getId(),
-                                getCoreCommand().getException().getText()));
         }
 
         // If after all retries there is still an error, we need to report it.
+        checkCoreCommandFailure();
+
+        // Wait for the retry delay unless the command is aborted earlier
+        if (getCancellationToken().waitForCancellation(retryDelayMsec, TimeUnit.MILLISECONDS))
+            processAbortAndPauseEvents();
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        currentRetryIndex = 0;
+
+        return AsyncExecution.loop(() -> {
+            if (currentRetryIndex >= numberOfRetries)
+                return CompletableFuture.completedFuture(false);
+
+            currentRetryIndex++;
+            return coreCommand.runAsync()
+                    .thenCompose(s -> processAbortAndPauseEventsAsync())
+                    .thenApply(v -> isRetryRequired());
+        }).thenCompose(v -> {
+            // If after all retries there is still an error, we need to report it.
+            checkCoreCommandFailure();
+
+            // Wait for the retry delay without blocking a thread, unless the command is aborted earlier
+            return getCancellationToken().waitForCancellationAsync(retryDelayMsec, TimeUnit.MILLISECONDS)
+                    .thenCompose(isCancelled -> isCancelled ? processAbortAndPauseEventsAsync() :
+                            CompletableFuture.<Void>completedFuture(null));
+        });
+    }
+
+    /**
+     * Decide whether the core command must be retried after its execution
+     * @return      Must the core command be retried?
+     */
+    private boolean isRetryRequired() {
+        if (coreCommand.getState() == State.Completed || coreCommand.getState() == State.Aborted || getState() == State.Aborted)
+            return false;
+        if (coreCommand.getState() == State.Failed && !(coreCommand.getException() instanceof ExtensibleCommandsAllowRetryException))
+            return false;
+
+        if (coreCommand.getException() instanceof ExtensibleCommandsAllowRetryException)
+            Logger.log(Logger.LogLevel.Error, "ERROR (RECOVERED)[%s] - %s", getCoreCommand().getException().getId(),
+                    getCoreCommand().getException().getText());
+        return true;
+    }
+
+    /**
+     * Report the failure of the core command (if it failed after all retries)
+     */
+    private void checkCoreCommandFailure() {
         if (coreCommand.getState() == State.Failed) {
             setState(State.Failed);
             exception = coreCommand.getException();
         }
-
-        sleep(retryDelayMsec);
     }
 }
@@ -1,5 +1,7 @@
 package org.extensiblecommands;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Implements sequential execution of multiple commands. If any of the sub-commands fails,
  * the command fails.
@@ -31,4 +33,19 @@ public class SequentialCommand extends CompositeCommand {
                 break;
         }
     }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        var iterator = subCommands.iterator();
+
+        return AsyncExecution.loop(() -> {
+            if (getState() == State.Aborted || !iterator.hasNext())
+                return CompletableFuture.completedFuture(false);
+
+            var subCommand = iterator.next();
+            return subCommand.runAsync()
+                    .thenCompose(s -> processAbortAndPauseEventsAsync())
+                    .thenApply(v -> subCommand.getState() != State.Failed && subCommand.getState() != State.Aborted);
+        });
+    }
 }
@@ -1,5 +1,14 @@
 package org.extensiblecommands;
 
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+
 /**
  * Base class for atomic (non-composite) commands
  */
@@ -14,6 +23,31 @@ public class SimpleCommand extends AbstractCommand implements Command {
      */
     protected ExecutionDelegate executionMethod;
 
+    /**
+     * Resources used by the command (sorted)
+     */
+    private volatile Set<String> resources = Set.of();
+
+    /**
+     * Interrupt the executing thread when the command is aborted?
+     */
+    private volatile boolean isInterruptible;
+
+    /**
+     * May the operation of the command block the executing thread (waiting for a device, I/O, sleeping)?
+     */
+    private volatile boolean isBlocking;
+
+    /**
+     * Lock making sure that the executing thread is only interrupted while it executes the command
+     */
+    private final ReentrantLock interruptLock = new ReentrantLock();
+
+    /**
+     * Thread executing the command (if the command is interruptible, guarded by the interrupt lock)
+     */
+    private Thread executingThread;
+
     protected SimpleCommand() {
         this.name = "Simple";
     }
@@ -44,6 +78,83 @@ public class SimpleCommand extends AbstractCommand implements Command {
         this.name = name;
     }
 
+    /**
+     * Constructor. The command is aborted if the delegate returns after the cancellation has been requested.
+     * @param executionDelegate     Delegate to execute (receives the cancellation token of the command)
+     * @param name                  Command name
+     */
+    public SimpleCommand(CancellableExecutionDelegate executionDelegate, String name) {
+        executionMethod = () -> {
+            executionDelegate.execute(getCancellationToken());
+            if (getCancellationToken().isCancellationRequested())
+                processAbortAndPauseEvents();
+        };
+        this.name = name;
+    }
+
+    /**
+     * Set resources used by the command (physical components, devices, etc.): operations using a common resource conflict
+     * with each other, the resources are aggregated by the commands containing this command
+     * @param resources         Resources used by the command
+     * @return                  This command
+     */
+    public final SimpleCommand setResources(String... resources) {
+        var sortedResources = new TreeSet<String>();
+        for (var resource : resources)
+            sortedResources.add(requireNonNull(resource, String.format("Resource is NULL in SimpleCommand %s", name)));
+        this.resources = sortedResources.isEmpty() ? Set.of() : Collections.unmodifiableSet(sortedResources);
+
+        // The resources are aggregated by the structural indexes of the containing commands
+        onStructureChanged();
+        return this;
+    }
+
+    /**
+     * @return      Resources used by the command itself
+     */
+    @Override
+    protected Set<String> getDeclaredResources() {
+        return resources;
+    }
+
+    /**
+     * @return                  Interrupt the executing thread when the command is aborted?
+     */
+    public final boolean getIsInterruptible() {
+        return isInterruptible;
+    }
+
+    /**
+     * Set interruptible flag. Interrupting the executing thread stops blocking calls (sleeps, waits, interruptible I/O)
+     * right away, so the delegate must tolerate being interrupted.
+     * @param isInterruptible   Interrupt the executing thread when the command is aborted?
+     * @return                  This command
+     */
+    public final SimpleCommand setIsInterruptible(boolean isInterruptible) {
+        this.isInterruptible = isInterruptible;
+        return this;
+    }
+
+    /**
+     * @return                  May the operation of the command block the executing thread?
+     */
+    public final boolean getIsBlocking() {
+        return isBlocking;
+    }
+
+    /**
+     * Set blocking flag. The operation of a blocking command executed by a worker of a work-stealing pool
+     * lets the pool activate a spare worker while it is blocked (see CommandExecutors.runBlocking()).
+     * The flag is cleared by default, so computations do not activate spare workers:
+     * commands waiting for a device, for I/O or sleeping must set it.
+     * @param isBlocking        May the operation of the command block the executing thread?
+     * @return                  This command
+     */
+    public final SimpleCommand setIsBlocking(boolean isBlocking) {
+        this.isBlocking = isBlocking;
+        return this;
+    }
+
     /**
      * Do nothing
      */
@@ -53,6 +164,107 @@ public class SimpleCommand extends AbstractCommand implements Command {
     @Override
     protected void execute() throws Exception {
         if (executionMethod != null)
-            executionMethod.execute();
+            executeInterruptibly(executionMethod);
+    }
+
+    /**
+     * Cooperative checkpoint to be called by the long operation of the command (e.g. in every iteration of a loop):
+     * waits while the command is paused, and throws if it is aborted (the command then ends in Aborted state).
+     * Does nothing if the command is not running. As long as no Abort, Pause or Resume request is issued,
+     * the checkpoint costs a single volatile read. Delegates reach it through the cancellation token they receive
+     * (see CancellationToken.checkpoint()).
+     * @throws ExtensibleCommandsAbortedException   If the command is aborted
+     */
+    public final void checkpoint() throws InterruptedException {
+        processCheckpoint();
+    }
+
+    /**
+     * Execute the operation of the command, interrupting the operation on abort if the command is interruptible
+     * and compensating the blocked thread in a work-stealing pool if the command is blocking
+     * @param operation     Operation to execute
+     */
+    protected final void executeInterruptibly(ExecutionDelegate operation) throws Exception {
+        try {
+            if (isInterruptible)
+                executeWithInterrupts(operation);
+            else
+                executeOperation(operation);
+        }
+        catch (ExtensibleCommandsAbortedException e) {
+            if (!isAborted())
+                throw e;
+            processAbortAndPauseEvents();
+        }
+    }
+
+    /**
+     * Execute the operation of the command, interrupting the executing thread on abort
+     * @param operation     Operation to execute
+     */
+    private void executeWithInterrupts(ExecutionDelegate operation) throws Exception {
+
+        interruptLock.lock();
+        try {
+            executingThread = Thread.currentThread();
+        }
+        finally {
+            interruptLock.unlock();
+        }
+
+        // Abort of the command or of any command running it cancels the token
+        var registration = getCancellationToken().register(this::interruptExecutingThread);
+        try {
+            // Abort may have been requested before the executing thread was registered
+            if (!isAborted())
+                executeOperation(operation);
+        }
+        catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+            if (!isAborted())
+                throw e;
+        }
+        finally {
+            registration.dispose();
+            interruptLock.lock();
+            try {
+                executingThread = null;
+            }
+            finally {
+                interruptLock.unlock();
+            }
+
+            // Do not leak the interrupt issued by Abort to the code executed next by this thread
+            if (isAborted())
+                Thread.interrupted();
+        }
+
+        if (isAborted())
+            processAbortAndPauseEvents();
+    }
+
+    /**
+     * Execute the operation of the command, compensating the blocked thread in a work-stealing pool
+     * if the command is blocking
+     * @param operation     Operation to execute
+     */
+    private void executeOperation(ExecutionDelegate operation) throws Exception {
+        if (isBlocking)
+            CommandExecutors.runBlocking(operation);
+        else
+            operation.execute();
+    }
+
+    /**
+     * Interrupt the thread executing the command (if it is still executing it)
+     */
+    private void interruptExecutingThread() {
+        interruptLock.lock();
+        try {
+            if (executingThread != null)
+                executingThread.interrupt();
+        }
+        finally {
+            interruptLock.unlock();
+        }
     }
 }
@@ -56,6 +56,6 @@ public class SimpleCommandI<TInput> extends SimpleCommand {
     @Override
     protected void execute() throws Exception {
         if (executionMethod != null)
-            executionMethod.execute(input);
+            executeInterruptibly(() -> executionMethod.execute(input));
     }
 }
@@ -48,6 +48,6 @@ public class SimpleCommandIO<TInput, TOutput> extends SimpleCommandI<TInput> {
     @Override
     protected void execute() throws Exception {
         if (executionMethod != null)
-            this.output = executionMethod.execute(getInput());
+            executeInterruptibly(() -> this.output = executionMethod.execute(getInput()));
     }
 }
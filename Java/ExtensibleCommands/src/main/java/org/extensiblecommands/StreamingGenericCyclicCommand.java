@@ -0,0 +1,558 @@
+package org.extensiblecommands;
+
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Implements streaming version of the generic cyclic command: the core command is executed for every element
+ * of a source that is not materialized in memory (an iterator, a stream or a Flowable).
+ * The elements are pulled lazily, one per cycle: an iterator or a stream is advanced only when the next cycle starts,
+ * a Flowable is subscribed with backpressure and requested a bounded window of elements (see setPrefetch()),
+ * so only the window is kept in memory whatever the number of elements.
+ * Iterators and streams can be traversed only once: they are consumed by the first run (later runs find no elements,
+ * the stream is closed at the end of the first run). A Flowable is subscribed again on every run.
+ * The progress of the command counts processed elements. If the number of elements is not known in advance
+ * (and no expected number is set), the progress stays at 0 until the source is exhausted.
+ * @param <T>           Type of source element
+ */
+public class StreamingGenericCyclicCommand<T> extends DecoratorCommand {
+    /**
+     * Default number of elements requested from a Flowable in advance
+     */
+    public static final int DefaultPrefetch = 128;
+
+    /**
+     * Number of elements of the source (-1 if not known in advance)
+     */
+    private final long numberOfElements;
+
+    /**
+     * Factory of the element source of a run
+     */
+    private final Supplier<ElementSource<T>> sourceFactory;
+
+    /**
+     * Number of elements requested from a Flowable in advance (i.e. maximum number of elements kept in memory)
+     */
+    private volatile int prefetch = DefaultPrefetch;
+
+    /**
+     * Expected number of elements (0 if unknown), used for the progress and the time estimation of the sources
+     * of unknown size
+     */
+    private volatile int expectedNumberOfElements;
+
+    /**
+     * Current cycle number
+     */
+    private volatile int currentCycle;
+
+    /**
+     * Current element of the source (valid during iteration)
+     */
+    private volatile T currentElement;
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param iterator      Iterator through the elements
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Iterator<T> iterator) {
+        this(coreCommand, iterator, "Streaming Generic Cyclic");
+    }
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param iterator      Iterator through the elements
+     * @param name          Command name
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Iterator<T> iterator, String name) {
+        super(coreCommand, name);
+
+        requireNonNull(iterator, String.format("Iterator is NULL in StreamingGenericCyclicCommand %s", name));
+
+        this.numberOfElements = -1;
+        this.sourceFactory = () -> new IteratorSource<>(iterator, null);
+    }
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param stream        Stream of the elements
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Stream<T> stream) {
+        this(coreCommand, stream, "Streaming Generic Cyclic");
+    }
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param stream        Stream of the elements
+     * @param name          Command name
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Stream<T> stream, String name) {
+        super(coreCommand, name);
+
+        requireNonNull(stream, String.format("Stream is NULL in StreamingGenericCyclicCommand %s", name));
+
+        // The spliterator does not traverse the stream, the elements are still produced one by one
+        var spliterator = stream.spliterator();
+        var iterator = Spliterators.iterator(spliterator);
+        this.numberOfElements = spliterator.getExactSizeIfKnown();
+        this.sourceFactory = () -> new IteratorSource<>(iterator, stream::close);
+    }
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param flowable      Flowable emitting the elements
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Flowable<T> flowable) {
+        this(coreCommand, flowable, "Streaming Generic Cyclic");
+    }
+
+    /**
+     * Constructor
+     * @param coreCommand   Core command
+     * @param flowable      Flowable emitting the elements
+     * @param name          Command name
+     */
+    public StreamingGenericCyclicCommand(Command coreCommand, Flowable<T> flowable, String name) {
+        super(coreCommand, name);
+
+        requireNonNull(flowable, String.format("Flowable is NULL in StreamingGenericCyclicCommand %s", name));
+
+        this.numberOfElements = -1;
+        this.sourceFactory = () -> new FlowableSource<>(flowable, prefetch);
+    }
+
+    /**
+     * @return          Current cycle number
+     */
+    public final int getCurrentCycle() {
+        return currentCycle;
+    }
+
+    /**
+     * @return          Current element of the source (valid during iteration)
+     */
+    public final T getCurrentElement() {
+        return currentElement;
+    }
+
+    /**
+     * @return          Number of elements requested from a Flowable in advance
+     */
+    public final int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Set number of elements requested from a Flowable in advance (i.e. maximum number of elements kept in memory)
+     * @param prefetch  Number of elements requested in advance
+     * @return          This command
+     */
+    public final StreamingGenericCyclicCommand<T> setPrefetch(int prefetch) {
+        if (prefetch <= 0)
+            throw new RuntimeException(String.format("For command %s prefetch %s must be positive", name, prefetch));
+
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @return          Expected number of elements (0 if unknown)
+     */
+    public final int getExpectedNumberOfElements() {
+        return expectedNumberOfElements;
+    }
+
+    /**
+     * Set expected number of elements of a source of unknown size (ignored if the size of the source is known)
+     * @param expectedNumberOfElements  Expected number of elements (0 if unknown)
+     * @return                          This command
+     */
+    public final StreamingGenericCyclicCommand<T> setExpectedNumberOfElements(int expectedNumberOfElements) {
+        if (expectedNumberOfElements < 0)
+            throw new RuntimeException(String.format("For command %s expected number of elements %s must not be negative",
+                    name, expectedNumberOfElements));
+
+        this.expectedNumberOfElements = expectedNumberOfElements;
+        return this;
+    }
+
+    /**
+     * Estimate execution time: the core command is executed once for every element of the source
+     * @return          Estimated execution time (nsec, 0 if unknown)
+     */
+    @Override
+    protected long estimateTimeNsec() {
+        var elements = numberOfElements >= 0 ? numberOfElements : expectedNumberOfElements;
+        return elements * coreCommand.getEstimatedTimeNsec();
+    }
+
+    /**
+     * The progress counts processed elements
+     * @return          Number of elements (UnknownNumberOfProgressUnits if not known)
+     */
+    @Override
+    protected int getNumberOfProgressUnits() {
+        if (numberOfElements >= 0)
+            return (int) Math.min(numberOfElements, Integer.MAX_VALUE);
+        var expected = expectedNumberOfElements;
+        return expected > 0 ? expected : UnknownNumberOfProgressUnits;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        currentCycle = 0;
+        var source = sourceFactory.get();
+
+        try {
+            while (true) {
+                var isPulled = await(pull(source));
+
+                processAbortAndPauseEvents();
+
+                if (!startCycle(source, isPulled))
+                    break;
+
+                coreCommand.run();
+
+                processAbortAndPauseEvents();
+
+                if (!completeCycle())
+                    break;
+            }
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        currentCycle = 0;
+        var source = sourceFactory.get();
+
+        return AsyncExecution.loop(() -> pull(source)
+                .thenCompose(isPulled -> processAbortAndPauseEventsAsync().thenApply(v -> isPulled))
+                .thenCompose(isPulled -> {
+                    if (!startCycle(source, isPulled))
+                        return CompletableFuture.completedFuture(false);
+
+                    return coreCommand.runAsync()
+                            .thenCompose(s -> processAbortAndPauseEventsAsync())
+                            .thenApply(v -> completeCycle());
+                }))
+                .whenComplete((v, e) -> source.close());
+    }
+
+    //----------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Pull the next element from the source; waiting for the element is interrupted by Abort
+     * @param source        Element source
+     * @return              Future completed with TRUE if an element has been pulled
+     */
+    private CompletableFuture<Boolean> pull(ElementSource<T> source) {
+        var pulled = source.pull();
+        if (pulled.isDone())
+            return pulled;
+
+        var registration = getCancellationToken().register(() -> pulled.complete(false));
+        pulled.whenComplete((isPulled, e) -> registration.dispose());
+        return pulled;
+    }
+
+    /**
+     * Wait for a pulled element, letting the executor compensate for the blocked thread
+     * @param pulled        Future completed with TRUE if an element has been pulled
+     * @return              Has an element been pulled?
+     */
+    private static boolean await(CompletableFuture<Boolean> pulled) throws Exception {
+        try {
+            if (!pulled.isDone())
+                CommandExecutors.runBlocking(pulled::get);
+            return pulled.get();
+        }
+        catch (ExecutionException e) {
+            var cause = AsyncExecution.unwrap(e);
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Start a cycle with the pulled element
+     * @param source        Element source
+     * @param isPulled      Has an element been pulled?
+     * @return              Has the cycle been started?
+     */
+    private boolean startCycle(ElementSource<T> source, boolean isPulled) {
+        if (getState() == State.Failed || getState() == State.Aborted)
+            return false;
+
+        if (!isPulled) {
+            // The number of elements is known now
+            if (source.isExhausted)
+                setNumberOfProgressUnits(currentCycle);
+            return false;
+        }
+
+        currentElement = source.element;
+        currentCycle++;
+        return true;
+    }
+
+    /**
+     * Complete a cycle once the core command is executed
+     * @return              Must the iteration continue?
+     */
+    private boolean completeCycle() {
+        if (coreCommand.getState() == State.Completed)
+            completeProgressUnit();
+
+        return !(getState() == State.Failed || getState() == State.Aborted ||
+                coreCommand.getState() == State.Failed || coreCommand.getState() == State.Aborted);
+    }
+
+    /**
+     * Source of the elements of a run
+     * @param <T>           Type of source element
+     */
+    private abstract static class ElementSource<T> {
+        /**
+         * Last pulled element
+         */
+        volatile T element;
+
+        /**
+         * Has the source run out of elements?
+         */
+        volatile boolean isExhausted;
+
+        /**
+         * Pull the next element
+         * @return          Future completed with TRUE if an element has been pulled (see element),
+         *                  or with FALSE if the source is exhausted
+         */
+        abstract CompletableFuture<Boolean> pull();
+
+        /**
+         * Release the source (no more elements will be pulled)
+         */
+        abstract void close();
+    }
+
+    /**
+     * Source advancing an iterator one element per pull
+     * @param <T>           Type of source element
+     */
+    private static final class IteratorSource<T> extends ElementSource<T> {
+        private final Iterator<T> iterator;
+        private final Runnable closer;
+
+        /**
+         * Constructor
+         * @param iterator  Iterator through the elements
+         * @param closer    Action releasing the underlying resource at the end of the run (NULL if none)
+         */
+        IteratorSource(Iterator<T> iterator, Runnable closer) {
+            this.iterator = iterator;
+            this.closer = closer;
+        }
+
+        @Override
+        CompletableFuture<Boolean> pull() {
+            try {
+                if (!iterator.hasNext()) {
+                    isExhausted = true;
+                    return CompletableFuture.completedFuture(false);
+                }
+
+                element = iterator.next();
+                return CompletableFuture.completedFuture(true);
+            }
+            catch (Throwable e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        void close() {
+            if (closer != null)
+                closer.run();
+        }
+    }
+
+    /**
+     * Source subscribed to a Flowable with backpressure: a window of elements is requested in advance,
+     * and a new element is requested every time one is pulled, so that the buffer never exceeds the window
+     * @param <T>           Type of source element
+     */
+    private static final class FlowableSource<T> extends ElementSource<T> implements FlowableSubscriber<T> {
+        private final int prefetch;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Elements received but not pulled yet (guarded by lock)
+         */
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();
+
+        /**
+         * Pull waiting for the next element (guarded by lock)
+         */
+        private CompletableFuture<Boolean> waitingPull;
+
+        private boolean isCompleted;
+        private Throwable error;
+        private boolean isClosed;
+        private volatile Subscription subscription;
+
+        /**
+         * Constructor
+         * @param flowable  Flowable emitting the elements
+         * @param prefetch  Number of elements requested in advance
+         */
+        FlowableSource(Flowable<T> flowable, int prefetch) {
+            this.prefetch = prefetch;
+            flowable.subscribe(this);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            boolean isCancelled;
+            lock.lock();
+            try {
+                this.subscription = subscription;
+                isCancelled = isClosed;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (isCancelled)
+                subscription.cancel();
+            else
+                subscription.request(prefetch);
+        }
+
+        @Override
+        public void onNext(T t) {
+            CompletableFuture<Boolean> pull;
+            lock.lock();
+            try {
+                if (isClosed)
+                    return;
+
+                pull = waitingPull;
+                waitingPull = null;
+                if (pull == null) {
+                    buffer.add(t);
+                    return;
+                }
+
+                element = t;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            subscription.request(1);
+            pull.complete(true);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            CompletableFuture<Boolean> pull;
+            lock.lock();
+            try {
+                error = t;
+                pull = waitingPull;
+                waitingPull = null;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (pull != null)
+                pull.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            CompletableFuture<Boolean> pull;
+            lock.lock();
+            try {
+                isCompleted = true;
+                pull = waitingPull;
+                waitingPull = null;
+                if (pull != null)
+                    isExhausted = true;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (pull != null)
+                pull.complete(false);
+        }
+
+        @Override
+        CompletableFuture<Boolean> pull() {
+            lock.lock();
+            try {
+                if (buffer.isEmpty()) {
+                    if (error != null)
+                        return CompletableFuture.failedFuture(error);
+
+                    if (isCompleted) {
+                        isExhausted = true;
+                        return CompletableFuture.completedFuture(false);
+                    }
+
+                    waitingPull = new CompletableFuture<>();
+                    return waitingPull;
+                }
+
+                element = buffer.poll();
+            }
+            finally {
+                lock.unlock();
+            }
+
+            subscription.request(1);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        void close() {
+            lock.lock();
+            try {
+                isClosed = true;
+                buffer.clear();
+                waitingPull = null;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            var currentSubscription = subscription;
+            if (currentSubscription != null)
+                currentSubscription.cancel();
+        }
+    }
+}
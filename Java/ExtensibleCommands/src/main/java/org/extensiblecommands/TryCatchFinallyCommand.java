@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
@@ -36,6 +37,7 @@ public class TryCatchFinallyCommand extends DecoratorCommand {
         requireNonNull(finallyCommand, String.format("Core Command is NULL in TryCatchFinallyCommand %s", name));
 
         this.finallyCommand = finallyCommand;
+        linkChild(finallyCommand);
     }
 
     /**
@@ -46,26 +48,13 @@ public class TryCatchFinallyCommand extends DecoratorCommand {
     }
 
     /**
-     * @return          List of all child command objects (1st level only)
+     * Collect child command objects (1st level only)
+     * @param children          List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        var children = new ArrayList<Command>();
-        super.getChildren().forEach(c -> children.add(c));
+    protected void collectChildren(List<Command> children) {
+        super.collectChildren(children);
         children.add(finallyCommand);
-        return children;
-    }
-
-    /**
-     * @return          List of all descendant command objects (all levels)
-     */
-    @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<Command>();
-        super.getDescendants().forEach(c -> descendants.add(c));
-        descendants.add(finallyCommand);
-        finallyCommand.getDescendants().forEach(c -> descendants.add(c));
-        return descendants;
     }
 
     @Override
@@ -85,6 +74,23 @@ public class TryCatchFinallyCommand extends DecoratorCommand {
         finallyCommand.run();
     }
 
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        // Run core command
+        return coreCommand.runAsync()
+                .thenCompose(s -> processAbortAndPauseEventsAsync())
+                .thenCompose(v -> {
+                    if (coreCommand.getState() == State.Aborted || getState() == State.Aborted)
+                        return CompletableFuture.completedFuture(null);
+
+                    // Remember Core command exception
+                    if (coreCommand.getState() == State.Failed)
+                        exception = coreCommand.getException();
+
+                    return finallyCommand.runAsync().thenAccept(s -> { });
+                });
+    }
+
     /**
      * Set the main command state based on the child commands states
      */
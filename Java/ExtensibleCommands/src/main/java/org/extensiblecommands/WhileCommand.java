@@ -1,6 +1,7 @@
 package org.extensiblecommands;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
@@ -58,6 +59,8 @@ public class WhileCommand extends DecoratorCommand {
 
         this.predicate = predicate;
         this.initCommand = initCommand;
+        if (initCommand != null)
+            linkChild(initCommand);
     }
 
     /**
@@ -75,29 +78,14 @@ public class WhileCommand extends DecoratorCommand {
     }
 
     /**
-     * @return      List of all child command objects (1st level only)
+     * Collect child command objects (1st level only)
+     * @param children      List to add child commands to
      */
     @Override
-    public Iterable<Command> getChildren() {
-        var children = new ArrayList<Command>();
-        super.getChildren().forEach(c -> children.add(c));
+    protected void collectChildren(List<Command> children) {
+        super.collectChildren(children);
         if (initCommand != null)
             children.add(initCommand);
-        return children;
-    }
-
-    /**
-     * @return      List of all descendant command objects (all levels)
-     */
-    @Override
-    public Iterable<Command> getDescendants() {
-        var descendants = new ArrayList<Command>();
-        super.getDescendants().forEach(c -> descendants.add(c));
-        if (initCommand != null) {
-            descendants.add(initCommand);
-            initCommand.getDescendants().forEach(c -> descendants.add(c));
-        }
-        return descendants;
     }
 
     @Override
@@ -116,7 +104,7 @@ public class WhileCommand extends DecoratorCommand {
 
         // Run core command in a while cycle
         currentCycle = 0;
-        while (predicate.evaluateCondition()) {
+        while (!isAbortedBeforeCycle() && predicate.evaluateCondition()) {
             currentCycle++;
             coreCommand.run();
 
@@ -127,4 +115,45 @@ public class WhileCommand extends DecoratorCommand {
                 break;
         }
     }
+
+    /**
+     * Check for Abort before the loop condition is evaluated, so that no further cycle is started after Abort
+     * @return      Has the command been aborted?
+     */
+    private boolean isAbortedBeforeCycle() {
+        if (!isAborted())
+            return false;
+        if (getState() != State.Failed)
+            setState(State.Aborted);
+        return true;
+    }
+
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        // Run initial command if it is provided
+        var initialization = initCommand != null ?
+                initCommand.runAsync().thenCompose(s -> processAbortAndPauseEventsAsync()) :
+                CompletableFuture.<Void>completedFuture(null);
+
+        return initialization.thenCompose(v -> {
+            // If there is an error or abort in one of the sub-commands, terminate the command
+            if (initCommand != null && (initCommand.getState() == State.Failed || initCommand.getState() == State.Aborted)) {
+                checkErrors(initCommand);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // Run core command in a while cycle
+            currentCycle = 0;
+            return AsyncExecution.loop(() -> {
+                if (isAbortedBeforeCycle() || !predicate.evaluateCondition())
+                    return CompletableFuture.completedFuture(false);
+
+                currentCycle++;
+                return coreCommand.runAsync()
+                        .thenCompose(s -> processAbortAndPauseEventsAsync())
+                        .thenApply(u -> !(getState() == State.Failed || getState() == State.Aborted ||
+                                coreCommand.getState() == State.Failed || coreCommand.getState() == State.Aborted));
+            });
+        });
+    }
 }
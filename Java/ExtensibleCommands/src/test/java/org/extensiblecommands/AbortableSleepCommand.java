@@ -2,6 +2,7 @@ package org.extensiblecommands;
 
 /**
  * Implements sleep command that can be aborted at any time.
+ * The command overrides Abort() to wake up the sleep (see CancellableSleepCommand for the cancellation token style).
  */
 public class AbortableSleepCommand extends SimpleCommand {
     /**
@@ -44,7 +45,7 @@ public class AbortableSleepCommand extends SimpleCommand {
      */
     @Override
     public void abort() {
-        aborted = true;
+        super.abort();
         eventAborted.set();
     }
 
@@ -54,8 +55,11 @@ public class AbortableSleepCommand extends SimpleCommand {
     @Override
     protected void execute() throws InterruptedException {
         eventAborted.reset();
-        eventAborted.waitOne(sleepTimeMsec);
-        
+
+        // An Abort requested before the event has been reset is found through the invoker chain
+        if (!isAborted())
+            eventAborted.waitOne(sleepTimeMsec);
+
         processAbortAndPauseEvents();
     }
 }
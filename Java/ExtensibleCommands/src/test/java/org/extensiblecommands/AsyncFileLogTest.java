@@ -0,0 +1,284 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.lang.Thread.sleep;
+
+public class AsyncFileLogTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void writeToFileTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("commands.log");
+        try (var log = new AsyncFileLog(file)) {
+            for (int i = 0; i < 5000; i++)
+                log.log("T", "Info", "Message " + i);
+            log.log("T", "Error", "Error message");
+
+            Assert.assertTrue(log.flush(Setup.WaitTimeoutMsec));
+            Assert.assertEquals(5001, Files.readAllLines(file).size());
+        }
+
+        var lines = Files.readAllLines(file);
+        Assert.assertEquals(5001, lines.size());
+        Assert.assertEquals("T - Info - Message 0", lines.get(0));
+        Assert.assertEquals("T - Info - Message 4999", lines.get(4999));
+        Assert.assertEquals("T - Error - Error message", lines.get(5000));
+    }
+
+    @Test
+    public void runWithAsyncLogTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("commands.log");
+        var log = new AsyncFileLog(file);
+        Logger.setLogger(log);
+        try {
+            new SequentialCommand("Seq")
+                .add(new SimpleCommand("A1"))
+                .add(new SimpleCommand("A2"))
+                .run();
+        }
+        finally {
+            Setup.InitLog();
+            log.close();
+        }
+
+        Assert.assertTrue(Files.readString(file).contains("Command Seq : Executing -> Completed"));
+        Assert.assertEquals(0, log.getNumberOfDroppedEntries());
+    }
+
+    @Test
+    public void dropInfoTest() throws Exception {
+        var channel = new StalledChannel();
+        var log = new AsyncFileLog(channel, 2, AsyncFileLog.OverflowPolicy.DropInfo);
+        fillBuffer(log, channel);
+
+        // Buffer is full: Info entries are dropped, Error entries wait for a free slot
+        log.log("T", "Info", "Dropped");
+        Assert.assertEquals(1, log.getNumberOfDroppedEntries());
+
+        var errorLogger = new Thread(() -> log.log("T", "Error", "Error"));
+        errorLogger.start();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        Assert.assertTrue(errorLogger.isAlive());
+
+        channel.resume();
+        errorLogger.join(Setup.WaitTimeoutMsec);
+        log.close();
+
+        Assert.assertEquals(List.of("T - Info - 0", "T - Info - 1", "T - Info - 2", "T - Error - Error"), channel.getLines());
+        Assert.assertEquals(1, log.getNumberOfDroppedEntries());
+        Assert.assertEquals(0, log.getNumberOfDroppedErrors());
+    }
+
+    @Test
+    public void dropOldestTest() throws Exception {
+        var channel = new StalledChannel();
+        var log = new AsyncFileLog(channel, 2, AsyncFileLog.OverflowPolicy.DropOldest);
+        fillBuffer(log, channel);
+
+        // Buffer is full: the oldest pending entries are overwritten
+        log.log("T", "Info", "3");
+        log.log("T", "Error", "4");
+        Assert.assertEquals(2, log.getNumberOfDroppedEntries());
+
+        channel.resume();
+        log.close();
+
+        Assert.assertEquals(List.of("T - Info - 0", "T - Info - 3", "T - Error - 4"), channel.getLines());
+        Assert.assertEquals(0, log.getNumberOfDroppedErrors());
+    }
+
+    @Test
+    public void blockTest() throws Exception {
+        var channel = new StalledChannel();
+        var log = new AsyncFileLog(channel, 2, AsyncFileLog.OverflowPolicy.Block);
+        fillBuffer(log, channel);
+
+        var logger = new Thread(() -> log.log("T", "Info", "3"));
+        logger.start();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        Assert.assertTrue(logger.isAlive());
+
+        channel.resume();
+        logger.join(Setup.WaitTimeoutMsec);
+        log.close();
+
+        Assert.assertEquals(List.of("T - Info - 0", "T - Info - 1", "T - Info - 2", "T - Info - 3"), channel.getLines());
+        Assert.assertEquals(0, log.getNumberOfDroppedEntries());
+
+        // Entries logged after closing are dropped
+        log.log("T", "Error", "After close");
+        Assert.assertEquals(1, log.getNumberOfDroppedErrors());
+    }
+
+    @Test
+    public void transientWriteFailureTest() throws Exception {
+        var channel = new FailingChannel(new IOException("Device is not ready"));
+        var log = new AsyncFileLog(channel, 16, AsyncFileLog.OverflowPolicy.Block);
+
+        // The batch that fails to be written is dropped...
+        log.log("T", "Error", "0");
+        Assert.assertTrue(log.flush(Setup.WaitTimeoutMsec));
+        Assert.assertNotNull(log.getWriteException());
+        Assert.assertEquals(1, log.getNumberOfDroppedErrors());
+
+        // ...but logging goes on once the channel recovers
+        log.log("T", "Info", "1");
+        Assert.assertTrue(log.flush(Setup.WaitTimeoutMsec));
+        Assert.assertNull(log.getWriteException());
+        log.close();
+
+        Assert.assertEquals("T - Info - 1" + System.lineSeparator(), channel.output.toString(StandardCharsets.UTF_8));
+        Assert.assertEquals(1, log.getNumberOfDroppedEntries());
+    }
+
+    @Test
+    public void writerFailureTest() throws Exception {
+        // Unchecked exceptions of the channel are write failures too
+        var channel = new FailingChannel(new IllegalStateException("Channel is broken"));
+        var log = new AsyncFileLog(channel, 16, AsyncFileLog.OverflowPolicy.Block);
+        log.log("T", "Error", "0");
+        Assert.assertTrue(log.flush(Setup.WaitTimeoutMsec));
+        Assert.assertTrue(log.getWriteException().getCause() instanceof IllegalStateException);
+        log.log("T", "Info", "1");
+        Assert.assertTrue(log.flush(Setup.WaitTimeoutMsec));
+        Assert.assertNull(log.getWriteException());
+        log.close();
+
+        // If the writer dies, the logging threads do not wait for it: the entries are dropped
+        var deadLog = new AsyncFileLog(new FailingChannel(new AssertionError("Writer is dead")), 1,
+                AsyncFileLog.OverflowPolicy.Block);
+        var logger = new Thread(() -> {
+            for (int i = 0; i < 4; i++)
+                deadLog.log("T", "Error", Integer.toString(i));
+        });
+        logger.start();
+        logger.join(Setup.WaitTimeoutMsec);
+        Assert.assertFalse(logger.isAlive());
+        Assert.assertTrue(deadLog.flush(Setup.WaitTimeoutMsec));
+        Assert.assertTrue(deadLog.getNumberOfDroppedErrors() > 0);
+        deadLog.close();
+    }
+
+    //----------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Log an entry taken by the (stalled) writer, then fill the buffer of capacity 2
+     */
+    private void fillBuffer(AsyncFileLog log, StalledChannel channel) throws InterruptedException {
+        log.log("T", "Info", "0");
+        Assert.assertTrue(channel.writeStarted.await(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        log.log("T", "Info", "1");
+        log.log("T", "Info", "2");
+    }
+
+    /**
+     * In-memory channel that fails the first write
+     */
+    private static class FailingChannel implements WritableByteChannel {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final WritableByteChannel channel = Channels.newChannel(output);
+        private final Throwable failure;
+        private boolean isFailed;
+
+        FailingChannel(Throwable failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            if (!isFailed) {
+                isFailed = true;
+                if (failure instanceof IOException)
+                    throw (IOException) failure;
+                if (failure instanceof RuntimeException)
+                    throw (RuntimeException) failure;
+                throw (Error) failure;
+            }
+            return channel.write(buffer);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * In-memory channel that stalls the first write until resumed
+     */
+    private static class StalledChannel implements WritableByteChannel {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final WritableByteChannel channel = Channels.newChannel(output);
+        private final CountDownLatch writeStarted = new CountDownLatch(1);
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        void resume() {
+            resumed.countDown();
+        }
+
+        synchronized List<String> getLines() {
+            return output.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            writeStarted.countDown();
+            try {
+                resumed.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (this) {
+                return channel.write(buffer);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.extensiblecommands;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements sleep command that can be aborted at any time by waiting on its cancellation token
+ * (the command does not override Abort(), see AbortableSleepCommand for that style).
+ */
+public class CancellableSleepCommand extends SimpleCommand {
+    /**
+     * Sleep time (in msec). When it expires, command terminates.
+     */
+    private final int sleepTimeMsec;
+
+    /**
+     * Constructor
+     * @param sleepTimeMsec     Sleep time (msec)
+     * @param name              Command name
+     */
+    public CancellableSleepCommand(int sleepTimeMsec, String name) {
+        this.name = name;
+        this.sleepTimeMsec = sleepTimeMsec;
+    }
+
+    /**
+     * @return       Sleep time (in msec). When it expires, command terminates.
+     */
+    public int getSleepTimeMsec() {
+        return sleepTimeMsec;
+    }
+
+    /**
+     * Sleep for a specified period of time unless the cancellation is requested earlier.
+     */
+    @Override
+    protected void execute() throws InterruptedException {
+        getCancellationToken().waitForCancellation(sleepTimeMsec, TimeUnit.MILLISECONDS);
+
+        processAbortAndPauseEvents();
+    }
+}
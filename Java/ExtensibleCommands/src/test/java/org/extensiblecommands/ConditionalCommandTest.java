@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 public class ConditionalCommandTest {
     @Rule
     public TestName name = new TestName();
@@ -278,6 +280,15 @@ public class ConditionalCommandTest {
         conditionalCommand.run();
     }
     
+    @Test
+    public void runAsyncTest() throws Exception {
+        var command = createConditionalCommand(false);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(State.Idle, command.getTrueCommand().getState());
+        Assert.assertEquals(State.Completed, command.getFalseCommand().getState());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private ConditionalCommand createConditionalCommand(boolean flag) {
@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 import static java.lang.Thread.sleep;
 
 public class CyclicCommandTest {
@@ -141,6 +143,14 @@ public class CyclicCommandTest {
         cyclicCommand.run();
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        var command = new CyclicCommand(new NonBlockingSleepCommand(1, "Sleep"), 5);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(5, command.getCurrentCycle());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private CyclicCommand createCyclicCommand() {
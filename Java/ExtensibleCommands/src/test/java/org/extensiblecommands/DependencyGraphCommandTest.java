@@ -0,0 +1,206 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+
+public class DependencyGraphCommandTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void dependencyOrderTest() throws Exception {
+        var order = new ConcurrentLinkedQueue<String>();
+        var a = recordingCommand("A", order);
+        var b = recordingCommand("B", order);
+        var c = recordingCommand("C", order);
+        var d = recordingCommand("D", order);
+        var command = new DependencyGraphCommand("Graph");
+        command.add(a);
+        command.add(b, a);
+        command.add(c, a);
+        command.add(d, b, c);
+
+        command.run();
+
+        Assert.assertEquals(State.Completed, command.getState());
+        var executed = List.copyOf(order);
+        Assert.assertEquals(4, executed.size());
+        Assert.assertEquals("A", executed.get(0));
+        Assert.assertEquals("D", executed.get(3));
+        Assert.assertEquals(List.of(b, c), command.getDependencies(d));
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void unknownDependencyTest() {
+        var command = new DependencyGraphCommand("Graph");
+        var error = Assert.assertThrows(RuntimeException.class,
+                () -> command.add(new SimpleCommand("B"), new SimpleCommand("A")));
+        Assert.assertTrue(error.getMessage().contains("not added"));
+        Assert.assertFalse(command.getChildren().iterator().hasNext());
+    }
+
+    @Test
+    public void makespanTest() throws Exception {
+        // A -> C, A -> D, B -> D: nesting forces Sequential(Parallel(A, B), Parallel(C, D)),
+        // while in the graph C does not wait for B
+        var unit = Setup.ThreadLatencyDelayMsec;
+
+        var nested = new SequentialCommand("Nested")
+            .add(new ParallelCommand("Stage1")
+                .add(new NonBlockingSleepCommand(unit, "A"))
+                .add(new NonBlockingSleepCommand(2 * unit, "B")))
+            .add(new ParallelCommand("Stage2")
+                .add(new NonBlockingSleepCommand(2 * unit, "C"))
+                .add(new NonBlockingSleepCommand(unit, "D")));
+        nested.run();
+
+        var a = new NonBlockingSleepCommand(unit, "A");
+        var b = new NonBlockingSleepCommand(2 * unit, "B");
+        var graph = new DependencyGraphCommand("Graph");
+        graph.add(a);
+        graph.add(b);
+        graph.add(new NonBlockingSleepCommand(2 * unit, "C"), a);
+        graph.add(new NonBlockingSleepCommand(unit, "D"), a, b);
+        graph.run();
+
+        Assert.assertEquals(State.Completed, nested.getState());
+        Assert.assertEquals(State.Completed, graph.getState());
+        Assert.assertTrue(nested.getElapsedTimeMsec() >= 4 * unit);
+        Assert.assertTrue(graph.getElapsedTimeMsec() < nested.getElapsedTimeMsec() - unit / 2);
+    }
+
+    @Test
+    public void criticalPathTest() throws Exception {
+        // Short commands are added first, but the long chain is started first
+        var order = new ConcurrentLinkedQueue<String>();
+        var short1 = estimatedCommand("Short1", 1, order);
+        var short2 = estimatedCommand("Short2", 1, order);
+        var long1 = estimatedCommand("Long1", 2, order);
+        var long2 = estimatedCommand("Long2", 2, order);
+        var command = new DependencyGraphCommand("Graph");
+        command.setMaxDegreeOfParallelism(1);
+        command.add(short1);
+        command.add(short2);
+        command.add(long1);
+        command.add(long2, long1);
+
+        Assert.assertEquals(List.of(long1, long2), command.getCriticalPath());
+        Assert.assertEquals(Duration.ofMillis(4 * Setup.ThreadLatencyDelayMsec).toNanos(), command.getEstimatedTimeNsec());
+
+        command.run();
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(List.of("Long1", "Long2", "Short1", "Short2"), List.copyOf(order));
+    }
+
+    @Test
+    public void resourcesTest() throws Exception {
+        var executing = new AtomicInteger();
+        var maxExecuting = new AtomicInteger();
+        var command = new DependencyGraphCommand("Graph");
+        for (int i = 0; i < 4; i++) {
+            command.add(new SimpleCommand(() -> {
+                maxExecuting.accumulateAndGet(executing.incrementAndGet(), Math::max);
+                sleep(Setup.ThreadLatencyDelayMsec / 4);
+                executing.decrementAndGet();
+            }, "Use" + i).setResources("Camera"));
+        }
+        var independent = new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec / 4, "Independent");
+        command.add(independent);
+
+        command.run();
+
+        // Sub-commands using the camera never run simultaneously, the independent one overlaps them
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(1, maxExecuting.get());
+        Assert.assertEquals(State.Completed, independent.getState());
+        Assert.assertTrue(command.getElapsedTimeMsec() < 5 * Setup.ThreadLatencyDelayMsec / 4);
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        var a = new SimpleCommand(() -> {
+            throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+        }, "A");
+        var b = new SimpleCommand("B");
+        var independent = new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "Independent");
+        var command = new DependencyGraphCommand("Graph");
+        command.add(a);
+        command.add(independent);
+        command.add(b, a);
+
+        command.run();
+
+        // The dependent command is not started, the running one is waited for
+        Assert.assertEquals(State.Failed, command.getState());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+        Assert.assertEquals(State.Idle, b.getState());
+        Assert.assertEquals(State.Completed, independent.getState());
+    }
+
+    @Test
+    public void abortTest() throws Exception {
+        var a = new AbortableSleepCommand(Setup.WaitTimeoutMsec, "A");
+        var b = new SimpleCommand("B");
+        var command = new DependencyGraphCommand("Graph");
+        command.add(a);
+        command.add(b, a);
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(State.Aborted, a.getState());
+        Assert.assertEquals(State.Idle, b.getState());
+    }
+
+    @Test
+    public void runAsyncTest() throws Exception {
+        var order = new ConcurrentLinkedQueue<String>();
+        var a = new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A");
+        var b = recordingCommand("B", order);
+        var command = new DependencyGraphCommand("Graph");
+        command.add(a);
+        command.add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "C"));
+        command.add(b, a);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(List.of("B"), List.copyOf(order));
+        Assert.assertTrue(command.getElapsedTimeMsec() < 2 * Setup.ThreadLatencyDelayMsec);
+        Assert.assertEquals(State.Completed, new DependencyGraphCommand().runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+    }
+
+    //----------------------------------------------------------------------------------------------------------------------
+
+    private static SimpleCommand recordingCommand(String name, ConcurrentLinkedQueue<String> order) {
+        return new SimpleCommand(() -> order.add(name), name);
+    }
+
+    private static SimpleCommand estimatedCommand(String name, int units, ConcurrentLinkedQueue<String> order) {
+        var command = recordingCommand(name, order);
+        command.setEstimatedTime(Duration.ofMillis(units * Setup.ThreadLatencyDelayMsec));
+        return command;
+    }
+}
@@ -0,0 +1,110 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExecutionStatisticsTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    private final List<ExecutionAnomaly> anomalies = new ArrayList<>();
+
+    @Test
+    public void statisticsByNameTest() throws Exception {
+        var shouldFail = new boolean[] { false };
+        var leaf = new SimpleCommand(() -> {
+            if (shouldFail[0])
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+        }, "Leaf");
+        var command = new SequentialCommand("Main").add(leaf).add(new SimpleCommand("Other"));
+
+        try (var statistics = new ExecutionStatistics().trackTree(command)) {
+            for (int i = 0; i < 10; i++) {
+                shouldFail[0] = i % 5 == 4;
+                command.run();
+            }
+
+            Assert.assertEquals(3, statistics.getKeys().size());
+
+            var leafStatistics = statistics.getStatistics("Leaf");
+            Assert.assertEquals(10, leafStatistics.getCount());
+            Assert.assertEquals(8, leafStatistics.getCompletedCount());
+            Assert.assertEquals(2, leafStatistics.getFailedCount());
+            Assert.assertEquals(0.2, leafStatistics.getFailureRate(), 1e-9);
+            Assert.assertTrue(leafStatistics.getValueAtPercentile(99) >= leafStatistics.getValueAtPercentile(50));
+
+            // The other leaf is not executed after the failure
+            Assert.assertEquals(8, statistics.getStatistics("Other").getCount());
+            Assert.assertEquals(2, statistics.getStatistics("Main").getFailedCount());
+
+            // Nothing is recorded after untracking
+            statistics.untrack(leaf);
+            shouldFail[0] = false;
+            command.run();
+            Assert.assertEquals(10, leafStatistics.getCount());
+            Assert.assertEquals(11, statistics.getStatistics("Main").getCount());
+        }
+    }
+
+    @Test
+    public void statisticsByPathTest() throws Exception {
+        var shared = new SimpleCommand("Shared");
+        var command = new SequentialCommand("Main")
+            .add(new SequentialCommand("A").add(shared))
+            .add(new SequentialCommand("B").add(new SimpleCommand("Shared")));
+
+        try (var statistics = new ExecutionStatistics(ExecutionStatistics.KeyMode.Path, 16, 3.0, 4)
+                .trackTree(command)) {
+            command.run();
+
+            Assert.assertEquals(1, statistics.getStatistics("Main/A/Shared").getCompletedCount());
+            Assert.assertEquals(1, statistics.getStatistics("Main/B/Shared").getCompletedCount());
+            Assert.assertNull(statistics.getStatistics("Shared"));
+        }
+    }
+
+    @Test
+    public void anomalyTest() throws Exception {
+        var delayMsec = new int[] { 5 };
+        var command = new SimpleCommand(() -> Thread.sleep(delayMsec[0]), "Timed");
+
+        try (var statistics = new ExecutionStatistics(ExecutionStatistics.KeyMode.Name, 16, 3.0, 8).track(command)) {
+            var d = statistics.getAnomalyObservable().subscribe(anomalies::add);
+            try {
+                for (int i = 0; i < 16; i++)
+                    command.run();
+                var normalHigh = statistics.getStatistics("Timed").getNormalTimeHighNsec();
+                Assert.assertTrue(normalHigh >= 5_000_000);
+
+                // A run much slower than the previous ones is signaled
+                delayMsec[0] = (int) (2 * normalHigh / 1_000_000) + Setup.ThreadLatencyDelayMsec;
+                anomalies.clear();
+                command.run();
+            }
+            finally {
+                d.dispose();
+            }
+
+            Assert.assertEquals(1, anomalies.size());
+            Assert.assertSame(command, anomalies.get(0).getCommand());
+            Assert.assertEquals("Timed", anomalies.get(0).getKey());
+            Assert.assertTrue(anomalies.get(0).isSlow());
+        }
+    }
+}
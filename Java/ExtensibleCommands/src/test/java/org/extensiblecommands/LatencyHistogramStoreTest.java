@@ -0,0 +1,172 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LatencyHistogramStoreTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        LatencyHistograms.clear();
+        LatencyHistograms.setEnabled(true);
+
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @After
+    public void tearDownTest() {
+        LatencyHistograms.setEnabled(false);
+        LatencyHistograms.clear();
+    }
+
+    private final List<ExecutionAnomaly> anomalies = new ArrayList<>();
+
+    @Test
+    public void persistAndLoadTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("histograms.bin");
+        try (var store = new LatencyHistogramStore(file)) {
+            for (int i = 1; i <= 1000; i++)
+                LatencyHistograms.get("Move").record(i * 1000L);
+            LatencyHistograms.get("Home").record(5_000_000);
+            store.flush();
+            Assert.assertEquals(2, store.getNumberOfStoredHistograms());
+
+            // Recorded after the last explicit flush, written on closing
+            LatencyHistograms.get("Home").record(7_000_000);
+        }
+
+        var expectedP99 = LatencyHistograms.get("Move").getP99Nsec();
+        var expectedMean = LatencyHistograms.get("Move").getMeanNsec();
+        LatencyHistograms.clear();
+
+        try (var store = new LatencyHistogramStore(file)) {
+            Assert.assertEquals(2, store.getNumberOfStoredHistograms());
+
+            var move = LatencyHistograms.get("Move");
+            Assert.assertEquals(1000, move.getTotalCount());
+            Assert.assertEquals(1000, move.getMinNsec());
+            Assert.assertEquals(1_000_000, move.getMaxNsec());
+            Assert.assertEquals(expectedP99, move.getP99Nsec());
+            Assert.assertEquals(expectedMean, move.getMeanNsec(), 1e-6);
+            Assert.assertEquals(2, LatencyHistograms.get("Home").getTotalCount());
+
+            // Estimates are available before the first run
+            Assert.assertEquals((long) expectedMean, new SimpleCommand("Move").getEstimatedTimeNsec());
+        }
+    }
+
+    @Test
+    public void appendAndCompactTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("histograms.bin");
+        try (var store = new LatencyHistogramStore(file)) {
+            for (int i = 0; i < 10; i++) {
+                LatencyHistograms.get("Move").record(1000);
+                store.flush();
+            }
+        }
+
+        // Every flush appends a record superseding the previous one, reopening compacts the file
+        var appendedSize = Files.size(file);
+        LatencyHistograms.clear();
+        try (var store = new LatencyHistogramStore(file)) {
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            Assert.assertEquals(10, LatencyHistograms.get("Move").getTotalCount());
+        }
+        Assert.assertTrue(Files.size(file) < appendedSize);
+
+        LatencyHistograms.clear();
+        try (var store = new LatencyHistogramStore(file)) {
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            Assert.assertEquals(10, LatencyHistograms.get("Move").getTotalCount());
+        }
+    }
+
+    @Test
+    public void truncatedRecordTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("histograms.bin");
+        try (var store = new LatencyHistogramStore(file)) {
+            LatencyHistograms.get("Move").record(1000);
+            store.flush();
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+        }
+
+        // Simulate a crash in the middle of appending a record
+        Files.write(file, new byte[] { 0, 0, 0, 100, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        LatencyHistograms.clear();
+        try (var store = new LatencyHistogramStore(file)) {
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            Assert.assertEquals(1, LatencyHistograms.get("Move").getTotalCount());
+            LatencyHistograms.get("Move").record(2000);
+        }
+
+        // The truncated record has been dropped, so the record appended afterwards is loaded
+        LatencyHistograms.clear();
+        try (var store = new LatencyHistogramStore(file)) {
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            Assert.assertEquals(2, LatencyHistograms.get("Move").getTotalCount());
+        }
+    }
+
+    @Test
+    public void backgroundFlushTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("histograms.bin");
+        try (var store = new LatencyHistogramStore(file, 10)) {
+            LatencyHistograms.get("Move").record(1000);
+
+            var deadline = System.currentTimeMillis() + Setup.WaitTimeoutMsec;
+            while (store.getNumberOfStoredHistograms() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            Assert.assertNull(store.getFlushException());
+        }
+    }
+
+    @Test
+    public void warmStartAnomalyTest() throws Exception {
+        var file = folder.getRoot().toPath().resolve("histograms.bin");
+        try (var store = new LatencyHistogramStore(file)) {
+            for (int i = 0; i < 100; i++)
+                LatencyHistograms.get("Timed").record(1_000_000 + i * 1000L);
+            store.flush();
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+        }
+        LatencyHistograms.clear();
+
+        var command = new SimpleCommand(() -> Thread.sleep(Setup.ThreadLatencyDelayMsec), "Timed");
+        try (var store = new LatencyHistogramStore(file);
+             var statistics = new ExecutionStatistics().seedFromLatencyHistograms().track(command)) {
+            Assert.assertEquals(1, store.getNumberOfStoredHistograms());
+            var d = statistics.getAnomalyObservable().subscribe(anomalies::add);
+            try {
+                command.run();
+            }
+            finally {
+                d.dispose();
+            }
+        }
+
+        // The first run is compared with the restored distribution
+        Assert.assertEquals(1, anomalies.size());
+        Assert.assertTrue(anomalies.get(0).isSlow());
+    }
+}
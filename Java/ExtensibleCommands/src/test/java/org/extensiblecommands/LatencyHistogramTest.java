@@ -0,0 +1,164 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+
+public class LatencyHistogramTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @After
+    public void tearDownTest() {
+        LatencyHistograms.setEnabled(false);
+        LatencyHistograms.clear();
+    }
+
+    @Test
+    public void bucketTest() {
+        // Every value must fall into a sub-bucket whose range contains it, with a relative error below 1/64
+        for (var value : new long[] { 0, 1, 127, 128, 129, 255, 256, 1000, 123_456_789L, Long.MAX_VALUE }) {
+            var index = LatencyHistogram.indexOf(value);
+            var highest = LatencyHistogram.highestEquivalentValue(index);
+            Assert.assertTrue(highest >= value);
+            Assert.assertTrue(highest - value <= value / 64);
+            if (index > 0)
+                Assert.assertTrue(LatencyHistogram.highestEquivalentValue(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void percentileTest() {
+        var histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getP99Nsec());
+
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+
+        Assert.assertEquals(1000, histogram.getTotalCount());
+        Assert.assertEquals(1000, histogram.getMinNsec());
+        Assert.assertEquals(1_000_000, histogram.getMaxNsec());
+        Assert.assertEquals(500_500, histogram.getMeanNsec(), 1e-6);
+        Assert.assertEquals(500_000, histogram.getP50Nsec(), 500_000 / 64);
+        Assert.assertEquals(990_000, histogram.getP99Nsec(), 990_000 / 64);
+        Assert.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getTotalCount());
+        Assert.assertEquals(0, histogram.getMaxNsec());
+    }
+
+    @Test
+    public void concurrentRecordingTest() throws Exception {
+        var histogram = new LatencyHistogram();
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            var thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    histogram.record(i);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads)
+            thread.join();
+
+        Assert.assertEquals(40000, histogram.getTotalCount());
+        Assert.assertEquals(9999, histogram.getMaxNsec());
+        Assert.assertEquals(0, histogram.getMinNsec());
+    }
+
+    @Test
+    public void recordCommandLatencyTest() throws Exception {
+        var command = new SimpleCommand(() -> Thread.sleep(10), "Timed");
+
+        command.run();
+        Assert.assertEquals(0, LatencyHistograms.get("Timed").getTotalCount());  // Disabled by default
+
+        LatencyHistograms.setEnabled(true);
+        for (int i = 0; i < 5; i++)
+            command.run();
+        var failing = new SimpleCommand(() -> { throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "Timed");
+        failing.run();
+
+        // Only completed runs are recorded
+        var histogram = LatencyHistograms.get("Timed");
+        Assert.assertEquals(5, histogram.getTotalCount());
+        Assert.assertTrue(histogram.getMinNsec() >= 10_000_000);
+        Assert.assertTrue(histogram.getMaxNsec() >= histogram.getP50Nsec());
+        Assert.assertTrue(LatencyHistograms.getNames().contains("Timed"));
+
+        // Nanosecond elapsed time is consistent with the millisecond one
+        Assert.assertTrue(command.getElapsedTimeNsec() >= 10_000_000);
+        Assert.assertEquals(command.getElapsedTimeMsec(), command.getElapsedTimeNsec() / 1_000_000);
+        Assert.assertEquals(command.getElapsedTime().toNanos(), command.getElapsedTimeNsec());
+    }
+
+    @Test
+    public void learnedEstimatedTimeTest() throws Exception {
+        var leaf = new SimpleCommand(() -> Thread.sleep(10), "Learned");
+        var flag = new boolean[] { true };
+        var command = new ConditionalCommand(() -> flag[0], leaf, new SimpleCommand("Fast"));
+
+        // Nothing measured yet
+        Assert.assertEquals(0, leaf.getEstimatedTimeNsec());
+
+        LatencyHistograms.setEnabled(true);
+        for (int i = 0; i < 4; i++) {
+            flag[0] = i % 2 == 0;
+            command.run();
+        }
+
+        // Leaf estimate is its mean measured time, the branch probability is learned from the evaluations
+        var mean = (long) LatencyHistograms.get("Learned").getMeanNsec();
+        Assert.assertTrue(mean >= 10_000_000);
+        Assert.assertEquals(mean, leaf.getEstimatedTimeNsec());
+        Assert.assertEquals(0.5, command.getTrueProbability(), 1e-9);
+        Assert.assertTrue(command.getEstimatedTimeNsec() >= mean / 2);
+
+        command.setTrueProbability(1);
+        Assert.assertTrue(command.getEstimatedTimeNsec() >= mean);
+    }
+
+    @Test
+    public void learnedWeightsTest() throws Exception {
+        var slow = new SimpleCommand(() -> Thread.sleep(Setup.ThreadLatencyDelayMsec), "LearnedSlow");
+        var command = new SequentialCommand("LearnedMain")
+            .add(slow)
+            .add(new SimpleCommand("LearnedFast"));
+        LatencyHistograms.setEnabled(true);
+
+        var updates = new ArrayList<ProgressUpdate>();
+        var d = command.getProgressUpdateObservable().subscribe(updates::add);
+        try {
+            // Nothing measured yet: every leaf weighs 1, the remaining time is extrapolated from the elapsed time
+            command.run();
+            Assert.assertEquals(50, updates.get(0).getPercentCompleted());
+            Assert.assertTrue(updates.get(0).getEstimatedRemainingTimeMsec() >= Setup.ThreadLatencyDelayMsec / 2);
+
+            // The rerun weighs the leaves by their measured times, and estimates the remaining time from them
+            updates.clear();
+            command.run();
+            Assert.assertTrue(updates.get(0).getPercentCompleted() >= 90);
+            Assert.assertTrue(updates.get(0).getEstimatedRemainingTimeMsec() < Setup.ThreadLatencyDelayMsec / 2);
+            Assert.assertEquals(100, updates.get(updates.size() - 1).getPercentCompleted());
+        }
+        finally {
+            d.dispose();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoggerTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @After
+    public void tearDownTest() {
+        Setup.InitLog();
+    }
+
+    private final List<String> messages = new ArrayList<>();
+    private int formatCount;
+
+    @Test
+    public void formatOnlyIfLoggedTest() {
+        Logger.setLogger((timestamp, level, message) -> messages.add(String.format("%s - %s", level, message)));
+        var argument = new Object() {
+            @Override
+            public String toString() {
+                formatCount++;
+                return "arg";
+            }
+        };
+
+        Logger.setIsLoggingEnabled(false);
+        Logger.log(Logger.LogLevel.Info, "Message %s", argument);
+        Logger.log(Logger.LogLevel.Info, "Message %s %s", argument, argument);
+        Logger.log(Logger.LogLevel.Info, "Message %s %s %s", argument, argument, argument);
+        Logger.log(Logger.LogLevel.Info, () -> String.format("Message %s", argument));
+        Assert.assertFalse(Logger.isEnabled(Logger.LogLevel.Info));
+        Assert.assertEquals(0, formatCount);
+        Assert.assertTrue(messages.isEmpty());
+
+        // Errors are always logged
+        Assert.assertTrue(Logger.isEnabled(Logger.LogLevel.Error));
+        Logger.log(Logger.LogLevel.Error, "Error %s", argument);
+        Assert.assertEquals(1, formatCount);
+        Assert.assertEquals(List.of("Error - Error arg"), messages);
+
+        Logger.setIsLoggingEnabled(true);
+        messages.clear();
+        Logger.log(Logger.LogLevel.Info, "Message %s %s", argument, 1);
+        Logger.log(Logger.LogLevel.Info, () -> "Supplied message");
+        Assert.assertEquals(List.of("Info - Message arg 1", "Info - Supplied message"), messages);
+    }
+
+    @Test
+    public void noLoggerTest() {
+        Logger.setLogger(null);
+
+        Assert.assertFalse(Logger.isEnabled(Logger.LogLevel.Error));
+        Logger.log(Logger.LogLevel.Error, "Error %s", "arg");
+    }
+
+    @Test
+    public void timeStampTest() {
+        Assert.assertTrue(Logger.getTimeStamp().matches("\\d{4}/\\d{2}/\\d{2} \\d{2}:\\d{2}:\\d{2}:\\d{3}"));
+    }
+}
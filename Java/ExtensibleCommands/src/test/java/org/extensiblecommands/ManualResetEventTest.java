@@ -0,0 +1,123 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ManualResetEventTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void setResetTest() throws Exception {
+        var event = new ManualResetEvent(false);
+        Assert.assertTrue(event.isSet());
+        Assert.assertTrue(event.waitOne(0, TimeUnit.NANOSECONDS));
+
+        event.reset();
+        Assert.assertFalse(event.isSet());
+        Assert.assertFalse(event.waitOne(0, TimeUnit.NANOSECONDS));
+
+        var start = System.nanoTime();
+        Assert.assertFalse(event.waitOne(200, TimeUnit.MICROSECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= 200_000);
+
+        event.set();
+        Assert.assertTrue(event.isSet());
+        event.waitOne(0);
+    }
+
+    @Test
+    public void waitStrategiesTest() throws Exception {
+        for (var strategy : ManualResetEvent.WaitStrategy.values()) {
+            var event = new ManualResetEvent(true, strategy);
+            Assert.assertEquals(strategy, event.getWaitStrategy());
+
+            var waiting = new CountDownLatch(1);
+            var signaled = new AtomicBoolean();
+            var waiter = new Thread(() -> {
+                try {
+                    waiting.countDown();
+                    signaled.set(event.waitOne(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            waiting.await();
+            Thread.sleep(Setup.ThreadLatencyDelayMsec);
+
+            event.set();
+            waiter.join(Setup.WaitTimeoutMsec);
+            Assert.assertTrue(signaled.get());
+
+            // Timeout expires with every strategy
+            event.reset();
+            Assert.assertFalse(event.waitOne(1, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void signalNotLostOnResetTest() throws Exception {
+        // The event is set and immediately re-armed: a thread waiting before the signal must still be released
+        for (var strategy : ManualResetEvent.WaitStrategy.values()) {
+            var event = new ManualResetEvent(true, strategy);
+            var waiting = new CountDownLatch(1);
+            var released = new CountDownLatch(1);
+            var waiter = new Thread(() -> {
+                try {
+                    waiting.countDown();
+                    event.waitOne(0);
+                    released.countDown();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            waiting.await();
+            Thread.sleep(Setup.ThreadLatencyDelayMsec);
+
+            event.set();
+            event.reset();
+            Assert.assertTrue(released.await(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void interruptTest() throws Exception {
+        var event = new ManualResetEvent(true, ManualResetEvent.WaitStrategy.Spin);
+        var interrupted = new AtomicBoolean();
+        var waiter = new Thread(() -> {
+            try {
+                event.waitOne(0);
+            }
+            catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        waiter.start();
+        Thread.sleep(Setup.ThreadLatencyDelayMsec);
+
+        waiter.interrupt();
+        waiter.join(Setup.WaitTimeoutMsec);
+        Assert.assertTrue(interrupted.get());
+    }
+}
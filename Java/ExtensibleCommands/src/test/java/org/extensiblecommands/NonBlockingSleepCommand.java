@@ -0,0 +1,42 @@
+package org.extensiblecommands;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+
+/**
+ * Implements sleep command that does not hold a thread while sleeping when it is run asynchronously.
+ */
+public class NonBlockingSleepCommand extends SimpleCommand {
+    /**
+     * Sleep time (in msec). When it expires, command terminates.
+     */
+    private final int sleepTimeMsec;
+
+    /**
+     * Constructor
+     * @param sleepTimeMsec     Sleep time (msec)
+     * @param name              Command name
+     */
+    public NonBlockingSleepCommand(int sleepTimeMsec, String name) {
+        this.name = name;
+        this.sleepTimeMsec = sleepTimeMsec;
+    }
+
+    /**
+     * Sleep for a specified period of time (blocking the current thread)
+     */
+    @Override
+    protected void execute() throws InterruptedException {
+        sleep(sleepTimeMsec);
+    }
+
+    /**
+     * Sleep for a specified period of time without blocking any thread
+     */
+    @Override
+    protected CompletableFuture<Void> executeAsync() {
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(sleepTimeMsec, TimeUnit.MILLISECONDS));
+    }
+}
@@ -3,6 +3,17 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static java.lang.Thread.sleep;
 
 public class ParallelCommandTest {
@@ -124,6 +135,200 @@ public class ParallelCommandTest {
         Assert.assertEquals(State.Completed, command.getSubCommand(6).getState());
     }
 
+    @Test
+    public void failFastTest() throws Exception {
+        var failureTime = new AtomicLong();
+        var command = new ParallelCommand("P").setIsFailFast(true);
+        command.add(new AbortableSleepCommand(15 * Setup.ThreadLatencyDelayMsec, "P1"))
+            .add(new AbortableSleepCommand(20 * Setup.ThreadLatencyDelayMsec, "P2"))
+            .add(new SimpleCommand(() -> {
+                sleep(Setup.ThreadLatencyDelayMsec);
+                failureTime.set(System.nanoTime());
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+            }, "P3-Error"))
+            .add(new AbortableSleepCommand(25 * Setup.ThreadLatencyDelayMsec, "P4"));
+
+        command.run();
+        var failureToCompletionMsec = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - failureTime.get());
+
+        Assert.assertEquals(State.Failed, command.getState());
+        Assert.assertEquals(State.Aborted, command.getSubCommand(0).getState());
+        Assert.assertEquals(State.Aborted, command.getSubCommand(1).getState());
+        Assert.assertEquals(State.Failed,  command.getSubCommand(2).getState());
+        Assert.assertEquals(State.Aborted, command.getSubCommand(3).getState());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+        Assert.assertEquals(1, command.getFailures().size());
+
+        // The command must complete shortly after the first failure, not after the slowest branch
+        Assert.assertTrue(failureToCompletionMsec < Setup.ThreadLatencyDelayMsec);
+        Assert.assertTrue(command.getElapsedTimeMsec() < 5 * Setup.ThreadLatencyDelayMsec);
+    }
+
+    @Test
+    public void failFastBeforeSiblingStartTest() throws Exception {
+        // The failure occurs while the sibling is being started: the sibling must still be aborted
+        for (int i = 0; i < 20; i++) {
+            var command = new ParallelCommand("P").setIsFailFast(true);
+            command.add(new SimpleCommand(() -> { throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "P1-Error"))
+                .add(new AbortableSleepCommand(Setup.WaitTimeoutMsec, "P2"));
+
+            command.run();
+
+            Assert.assertEquals(State.Failed, command.getState());
+            Assert.assertNotEquals(State.Completed, command.getSubCommand(1).getState());
+            Assert.assertTrue(command.getElapsedTimeMsec() < Setup.ThreadLatencyDelayMsec);
+        }
+    }
+
+    @Test
+    public void failFastExternalAbortTest() throws Exception {
+        var command = new ParallelCommand("P").setIsFailFast(true);
+        command.add(new AbortableSleepCommand(15 * Setup.ThreadLatencyDelayMsec, "P1"))
+            .add(new AbortableSleepCommand(20 * Setup.ThreadLatencyDelayMsec, "P2"));
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertTrue(command.getFailures().isEmpty());
+    }
+
+    @Test
+    public void multipleFailuresTest() throws Exception {
+        var command = new ParallelCommand("P");
+        for (int i = 0; i < 20; i++)
+            command.add(new SimpleCommand(() -> { throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "P" + i));
+        command.add(new SimpleCommand(() -> sleep(Setup.ThreadLatencyDelayMsec), "P-OK"));
+
+        command.run();
+
+        // Every failure is registered, even though the branches fail simultaneously
+        Assert.assertEquals(State.Failed, command.getState());
+        Assert.assertEquals(20, command.getFailures().size());
+    }
+
+    @Test
+    public void maxDegreeOfParallelismTest() throws Exception {
+        var executing = new AtomicInteger();
+        var maxExecuting = new AtomicInteger();
+        var command = new ParallelCommand("P").setMaxDegreeOfParallelism(4);
+        for (int i = 0; i < 50; i++) {
+            command.add(new SimpleCommand(() -> {
+                maxExecuting.accumulateAndGet(executing.incrementAndGet(), Math::max);
+                sleep(10);
+                executing.decrementAndGet();
+            }, "P" + i));
+        }
+
+        var d = command.getProgressUpdateObservable().subscribe(p -> percentComplete = p.getPercentCompleted());
+        try {
+            command.run();
+        }
+        finally {
+            d.dispose();
+        }
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(4, maxExecuting.get());
+        Assert.assertEquals(100, percentComplete);
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void waitStrategyTest() throws Exception {
+        for (var strategy : ManualResetEvent.WaitStrategy.values()) {
+            var counter = new AtomicInteger();
+            var command = new ParallelCommand("P").setWaitStrategy(strategy);
+            Assert.assertEquals(strategy, command.getWaitStrategy());
+            for (int i = 0; i < 20; i++)
+                command.add(new SimpleCommand(counter::incrementAndGet, "P" + i));
+
+            // Rerun to check that the branch countdown is rebuilt for each run
+            for (int run = 1; run <= 3; run++) {
+                command.run();
+                Assert.assertEquals(State.Completed, command.getState());
+                Assert.assertEquals(20 * run, counter.get());
+            }
+        }
+    }
+
+    @Test
+    public void progressUpdateCoalescingTest() throws Exception {
+        var command = new ParallelCommand("P");
+        for (int i = 0; i < 1000; i++)
+            command.add(new SimpleCommand("P" + i));
+
+        // At most one update per percent change, even if leaves complete concurrently
+        var updates = new ConcurrentLinkedQueue<Integer>();
+        var d = command.getProgressUpdateObservable().subscribe(p -> updates.add(p.getPercentCompleted()));
+        try {
+            command.run();
+        }
+        finally {
+            d.dispose();
+        }
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertTrue(updates.size() <= 100);
+        Assert.assertEquals(updates.size(), updates.stream().distinct().count());
+        Assert.assertTrue(updates.contains(100));
+
+        // Updates of leaves completing concurrently are emitted in increasing order
+        var percents = new ArrayList<>(updates);
+        for (int i = 1; i < percents.size(); i++)
+            Assert.assertTrue(percents.get(i) > percents.get(i - 1));
+
+        // At most one update per interval, except the final update
+        command = new ParallelCommand("P").setMaxDegreeOfParallelism(1);
+        for (int i = 0; i < 10; i++)
+            command.add(new SimpleCommand(() -> sleep(10), "P" + i));
+
+        updates.clear();
+        d = command.getProgressUpdateObservable().subscribe(p -> updates.add(p.getPercentCompleted()));
+        AbstractCommand.setProgressUpdateIntervalMsec(Setup.WaitTimeoutMsec);
+        try {
+            command.run();
+        }
+        finally {
+            AbstractCommand.setProgressUpdateIntervalMsec(0);
+            d.dispose();
+        }
+
+        Assert.assertEquals(List.of(100), new ArrayList<>(updates));
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void priorityTest() throws Exception {
+        var admissionOrder = new ConcurrentLinkedQueue<String>();
+        var command = new ParallelCommand("P").setMaxDegreeOfParallelism(1)
+            .add(new SimpleCommand(() -> admissionOrder.add("Low"), "Low"), -1)
+            .add(new SimpleCommand(() -> admissionOrder.add("Normal1"), "Normal1"), 0)
+            .add(new SimpleCommand(() -> admissionOrder.add("High"), "High"), 10)
+            .add(new SimpleCommand(() -> admissionOrder.add("Normal2"), "Normal2"), 0);
+
+        command.run();
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(List.of("High", "Normal1", "Normal2", "Low"), new ArrayList<>(admissionOrder));
+    }
+
+    @Test
+    public void maxDegreeOfParallelismFailFastTest() throws Exception {
+        var command = new ParallelCommand("P").setMaxDegreeOfParallelism(2).setIsFailFast(true);
+        command.add(new SimpleCommand(() -> { throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "P1-Error"))
+            .add(new AbortableSleepCommand(10 * Setup.ThreadLatencyDelayMsec, "P2"))
+            .add(new SimpleCommand("P3"))
+            .add(new SimpleCommand("P4"));
+
+        command.run();
+
+        // Branches waiting for admission are never started after the failure
+        Assert.assertEquals(State.Failed, command.getState());
+        Assert.assertEquals(State.Idle, command.getSubCommand(2).getState());
+        Assert.assertEquals(State.Idle, command.getSubCommand(3).getState());
+        Assert.assertTrue(command.getElapsedTimeMsec() < 5 * Setup.ThreadLatencyDelayMsec);
+    }
+
     @Test
     public void abortTest() throws Exception {
         var command = new ParallelCommand("P");
@@ -271,6 +476,202 @@ public class ParallelCommandTest {
         Assert.assertEquals(4, command.getChildren().spliterator().getExactSizeIfKnown());
     }
 
+    @Test
+    public void runOnDefaultExecutorTest() throws Exception {
+        var threadNames = ConcurrentHashMap.<String>newKeySet();
+        var command = new ParallelCommand("P")
+            .add(new SimpleCommand(() -> threadNames.add(Thread.currentThread().getName()), "P1"))
+            .add(new SimpleCommand(() -> threadNames.add(Thread.currentThread().getName()), "P2"));
+
+        command.run();
+
+        Assert.assertEquals(State.Completed, command.getState());
+        for (var threadName : threadNames)
+            Assert.assertTrue(threadName.startsWith(CommandExecutors.DefaultThreadNamePrefix));
+    }
+
+    @Test
+    public void runOnSuppliedExecutorTest() throws Exception {
+        var executor = Executors.newFixedThreadPool(2, CommandExecutors.newThreadFactory("Test-pool"));
+        try {
+            var threadNames = ConcurrentHashMap.<String>newKeySet();
+            var command = new ParallelCommand("P", executor)
+                .add(new SimpleCommand(() -> threadNames.add(Thread.currentThread().getName()), "P1"))
+                .add(new SimpleCommand(() -> threadNames.add(Thread.currentThread().getName()), "P2"));
+
+            // Threads must be reused from run to run
+            for (int i = 0; i < 10; i++) {
+                command.run();
+                Assert.assertEquals(State.Completed, command.getState());
+            }
+
+            Assert.assertTrue(threadNames.size() <= 2);
+            for (var threadName : threadNames)
+                Assert.assertTrue(threadName.startsWith("Test-pool"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runOnVirtualThreadsTest() throws Exception {
+        Assume.assumeTrue(CommandExecutors.isVirtualThreadSupported());
+
+        var executor = CommandExecutors.newVirtualThreadPerTaskExecutor();
+        try {
+            var command = new ParallelCommand("P", executor);
+            for (int i = 0; i < 1000; i++)
+                command.add(new SimpleCommand(() -> sleep(Setup.ThreadLatencyDelayMsec), "P" + i));
+
+            Setup.runAndWaitForNormalCompletion(command);
+
+            Assert.assertEquals(State.Completed, command.getState());
+            Assert.assertTrue(command.getElapsedTimeMsec() < Setup.WaitTimeoutMsec);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void replaceDefaultExecutorTest() throws Exception {
+        // Replacing the default executor shuts down a pool created by the library, not an application executor
+        var applicationExecutor = Executors.newSingleThreadExecutor();
+        try {
+            CommandExecutors.useWorkStealingPool();
+            var firstPool = (ExecutorService) CommandExecutors.getDefaultExecutor();
+            CommandExecutors.useWorkStealingPool();
+            var secondPool = (ExecutorService) CommandExecutors.getDefaultExecutor();
+
+            Assert.assertNotSame(firstPool, secondPool);
+            Assert.assertTrue(firstPool.isShutdown());
+            Assert.assertFalse(secondPool.isShutdown());
+
+            CommandExecutors.setDefaultExecutor(applicationExecutor);
+            Assert.assertTrue(secondPool.isShutdown());
+
+            var command = new ParallelCommand("P")
+                .add(new SimpleCommand("P1"))
+                .add(new SimpleCommand("P2"));
+            command.run();
+            Assert.assertEquals(State.Completed, command.getState());
+
+            CommandExecutors.setDefaultExecutor(null);
+            Assert.assertFalse(applicationExecutor.isShutdown());
+        }
+        finally {
+            CommandExecutors.setDefaultExecutor(null);
+            applicationExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void workStealingNestedTest() throws Exception {
+        // 3 levels of Parallel commands with 4 branches each: the waiting parents execute their branches themselves
+        // and the computing leaves (not blocking by default) do not activate spare workers
+        var pool = CommandExecutors.newWorkStealingPool(2, "WorkStealing");
+        try {
+            var executed = new AtomicInteger();
+            var maxPoolSize = new AtomicInteger();
+            var command = new ParallelCommand("Stages", pool);
+            for (int i = 0; i < 4; i++) {
+                var stage = new ParallelCommand("Stage" + i, pool);
+                for (int j = 0; j < 4; j++) {
+                    var axis = new ParallelCommand("Axis" + j, pool);
+                    for (int k = 0; k < 4; k++) {
+                        axis.add(new SimpleCommand(() -> {
+                            maxPoolSize.accumulateAndGet(pool.getPoolSize(), Math::max);
+                            var end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2);
+                            while (System.nanoTime() < end)
+                                Thread.onSpinWait();
+                            executed.incrementAndGet();
+                        }, "Move" + k));
+                    }
+                    stage.add(axis);
+                }
+                command.add(stage);
+            }
+
+            pool.submit(() -> {
+                command.run();
+                return null;
+            }).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(State.Completed, command.getState());
+            Assert.assertEquals(64, executed.get());
+            // A pool spawning a thread per waiting parent would need 84 threads
+            Assert.assertTrue(maxPoolSize.get() <= 8);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void workStealingBlockingLeavesTest() throws Exception {
+        // Sleeping leaves let the pool activate spare workers, so they do not wait for each other
+        var pool = CommandExecutors.newWorkStealingPool(2, "WorkStealing");
+        try {
+            var command = new ParallelCommand("P", pool);
+            for (int i = 0; i < 8; i++)
+                command.add(new SimpleCommand(() -> sleep(Setup.ThreadLatencyDelayMsec), "P" + i).setIsBlocking(true));
+
+            pool.submit(() -> {
+                command.run();
+                return null;
+            }).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+
+            Assert.assertEquals(State.Completed, command.getState());
+            Assert.assertTrue(command.getElapsedTimeMsec() < 3 * Setup.ThreadLatencyDelayMsec);
+
+            // Failures of blocking operations are reported to the caller
+            var failing = new SimpleCommand(() -> {
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+            }, "Failing").setIsBlocking(true);
+            pool.submit(() -> {
+                failing.run();
+                return null;
+            }).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(State.Failed, failing.getState());
+            Assert.assertEquals(Setup.TestErrorCode, failing.getException().getId());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void submitTest() throws Exception {
+        var command = new ParallelCommand("P")
+            .add(new SimpleCommand(() -> sleep(100), "P1"))
+            .add(new SimpleCommand(() -> sleep(100), "P2"));
+
+        CommandExecutors.submit(command).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(State.Completed, command.getState());
+    }
+
+    @Test
+    public void rejectedByExecutorTest() throws Exception {
+        var executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        var command = new ParallelCommand("P", executor)
+            .add(new SimpleCommand("P1"))
+            .add(new SimpleCommand("P2"));
+
+        try {
+            command.run();
+            Assert.fail();
+        }
+        catch (Exception ex) {
+            Assert.assertTrue(ex.getMessage().startsWith("Fatal error"));
+            Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(State.Failed, command.getState());
+    }
+
     @Test
     public void runInputOutputTest() throws Exception {
         var command = new SimpleCommandIO<String, Integer>(input -> input.length(), "Test");
@@ -282,6 +683,98 @@ public class ParallelCommandTest {
         parallelCommand.run();
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        var command = new ParallelCommand("Parallel")
+            .add(new NonBlockingSleepCommand(200, "P1"))
+            .add(new NonBlockingSleepCommand(300, "P2"))
+            .add(new SimpleCommand(() -> sleep(400), "P3"))
+            .add(new NonBlockingSleepCommand(500, "P4"));
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertTrue(command.getElapsedTimeMsec() < 1000);
+        for (var subCommand : command.getChildren())
+            Assert.assertEquals(State.Completed, subCommand.getState());
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void runAsyncMaxDegreeOfParallelismTest() throws Exception {
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var command = new ParallelCommand("P").setMaxDegreeOfParallelism(2);
+        for (int i = 0; i < 6; i++)
+            command.add(new SimpleCommand(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(50);
+                running.decrementAndGet();
+            }, String.format("P%d", i)));
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void runAsyncFailFastTest() throws Exception {
+        var command = new ParallelCommand("P").setIsFailFast(true);
+        command.add(new SimpleCommand(() -> {
+                sleep(Setup.ThreadLatencyDelayMsec);
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+            }, "Error"))
+            .add(new AbortableSleepCommand(Setup.WaitTimeoutMsec, "Long"));
+
+        Assert.assertEquals(State.Failed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+        Assert.assertEquals(State.Aborted, command.getSubCommand(1).getState());
+    }
+
+    @Test
+    public void runAsyncPauseReleasesThreadsTest() throws Exception {
+        var completed = new AtomicInteger();
+        var command = new ParallelCommand("P");
+        for (int i = 0; i < 200; i++) {
+            command.add(new SequentialCommand("B" + i)
+                .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "B" + i + "-1"))
+                .add(new SimpleCommand(completed::incrementAndGet, "B" + i + "-2")));
+        }
+
+        var future = command.runAsync();
+        command.pause();
+        sleep(3 * Setup.ThreadLatencyDelayMsec);
+
+        // Every branch is suspended at its next child boundary without holding a thread
+        Assert.assertEquals(State.Executing, command.getState());
+        Assert.assertEquals(0, completed.get());
+        Assert.assertEquals(200, AbstractCommand.getNumberOfSuspendedRuns());
+        Assert.assertEquals(0, AbstractCommand.getNumberOfThreadsWaitingForResume());
+
+        command.resume();
+        Assert.assertEquals(State.Completed, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(200, completed.get());
+        Assert.assertEquals(0, AbstractCommand.getNumberOfSuspendedRuns());
+    }
+
+    @Test
+    public void runAsyncPauseAbortTest() throws Exception {
+        var command = new ParallelCommand("P");
+        for (int i = 0; i < 10; i++) {
+            command.add(new SequentialCommand("B" + i)
+                .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "B" + i + "-1"))
+                .add(new SimpleCommand("B" + i + "-2")));
+        }
+
+        var future = command.runAsync();
+        command.pause();
+        sleep(2 * Setup.ThreadLatencyDelayMsec);
+
+        // Abort reschedules the suspended runs
+        command.abort();
+        Assert.assertEquals(State.Aborted, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, AbstractCommand.getNumberOfSuspendedRuns());
+        Assert.assertEquals(State.Idle, ((SequentialCommand) command.getSubCommand(0)).getSubCommand(1).getState());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private ParallelCommand createPauseAbortParallelCommand() {
@@ -304,4 +797,6 @@ public class ParallelCommandTest {
             .add(command2);
         return command;
     }
+
+    private volatile int percentComplete;
 }
@@ -0,0 +1,180 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.Thread.sleep;
+
+public class ParallelGenericCyclicCommandTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void constructionTest() {
+        var command = new ParallelGenericCyclicCommand<Integer, Integer>(worker -> new SimpleCommand("Core"), List.of(1, 2), 3);
+        Assert.assertEquals("Parallel Generic Cyclic", command.getName());
+        Assert.assertEquals(3, command.getNumberOfWorkers());
+        Assert.assertEquals(3, command.getNumberOfLeaves());
+        Assert.assertNotSame(command.getWorker(0).getCoreCommand(), command.getWorker(1).getCoreCommand());
+        Assert.assertEquals(2, command.getWorker(2).getIndex());
+        Assert.assertEquals(-1, command.getWorker(0).getCurrentIndex());
+
+        // Malformed cases
+        var error = Assert.assertThrows(RuntimeException.class,
+                () -> new ParallelGenericCyclicCommand<Integer, Integer>(null, List.of(1)));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class,
+                () -> new ParallelGenericCyclicCommand<Integer, Integer>(worker -> SimpleCommand.NullCommand, null));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class,
+                () -> new ParallelGenericCyclicCommand<Integer, Integer>(worker -> null, List.of(1)));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class,
+                () -> new ParallelGenericCyclicCommand<Integer, Integer>(worker -> SimpleCommand.NullCommand, List.of(1), 0));
+        Assert.assertTrue(error.getMessage().contains("must be positive"));
+        Assert.assertThrows(RuntimeException.class, () -> command.getWorker(3));
+        Assert.assertThrows(RuntimeException.class, () -> command.getWorker(0).setResult(1));
+    }
+
+    @Test
+    public void runOkTest() throws Exception {
+        var elements = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        var threads = ConcurrentHashMap.<Thread>newKeySet();
+        var command = new ParallelGenericCyclicCommand<Integer, Integer>(worker -> new SimpleCommand(() -> {
+            threads.add(Thread.currentThread());
+            worker.setResult(2 * worker.getCurrentElement());
+        }, "Core"), elements, 4);
+
+        var numberOfUpdates = new AtomicInteger();
+        var lastPercent = new AtomicInteger();
+        var subscription = command.getProgressUpdateObservable().subscribe(update -> {
+            numberOfUpdates.incrementAndGet();
+            lastPercent.set(update.getPercentCompleted());
+        });
+        try {
+            Setup.runAndWaitForNormalCompletion(command);
+        }
+        finally {
+            subscription.dispose();
+        }
+
+        var results = command.getResults();
+        Assert.assertEquals(1000, results.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(2 * i, (int) results.get(i));
+            Assert.assertEquals(State.Completed, command.getElementState(i));
+        }
+        Assert.assertTrue(threads.size() > 1);
+
+        // Progress counts the elements, not the leaves (there is one leaf per worker)
+        Assert.assertEquals(100, command.getPercentCompleted());
+        Assert.assertEquals(100, lastPercent.get());
+        Assert.assertTrue(numberOfUpdates.get() > 50);
+    }
+
+    @Test
+    public void parallelExecutionTest() throws Exception {
+        var elements = IntStream.range(0, 16).boxed().collect(Collectors.toList());
+        var command = new ParallelGenericCyclicCommand<Integer, Integer>(worker -> new SimpleCommand(
+                () -> sleep(Setup.ThreadLatencyDelayMsec / 4), "Core"), elements, 4);
+
+        Setup.runAndWaitForNormalCompletion(command);
+
+        // 16 elements of 1/4 delay each, processed by 4 workers
+        Assert.assertTrue(command.getElapsedTimeMsec() < 2 * Setup.ThreadLatencyDelayMsec);
+    }
+
+    @Test
+    public void elementFailureTest() throws Exception {
+        var elements = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        var command = new ParallelGenericCyclicCommand<Integer, String>(worker -> new SimpleCommand(() -> {
+            var element = worker.getCurrentElement();
+            if (element == 7 || element == 5)
+                throw new ExtensibleCommandsException(element, Setup.TestErrorDescription);
+            worker.setResult("Point" + element);
+        }, "Core"), elements, 3);
+
+        Setup.runAndWaitForFailure(command);
+
+        // The other elements are processed, the first failed element supplies the exception
+        Assert.assertEquals(5, command.getException().getId());
+        for (int i = 0; i < 20; i++) {
+            var isFailed = i == 5 || i == 7;
+            Assert.assertEquals(isFailed ? State.Failed : State.Completed, command.getElementState(i));
+            Assert.assertEquals(isFailed ? null : "Point" + i, command.getResults().get(i));
+        }
+        Assert.assertEquals(7, command.getElementException(7).getId());
+        Assert.assertNull(command.getElementException(6));
+    }
+
+    @Test
+    public void failFastTest() throws Exception {
+        var elements = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        var command = new ParallelGenericCyclicCommand<Integer, Integer>(worker -> new SimpleCommand(cancellationToken -> {
+            if (worker.getCurrentElement() == 0) {
+                sleep(Setup.ThreadLatencyDelayMsec);
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+            }
+            cancellationToken.waitForCancellation(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+        }, "Core"), elements, 4).setIsFailFast(true);
+
+        Setup.runAndWaitForFailure(command);
+
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+        Assert.assertTrue(command.getElapsedTimeMsec() < Setup.WaitTimeoutMsec);
+        Assert.assertEquals(State.Failed, command.getElementState(0));
+        Assert.assertEquals(State.Aborted, command.getElementState(1));
+        Assert.assertEquals(State.Idle, command.getElementState(19));
+    }
+
+    @Test
+    public void abortTest() throws Exception {
+        var elements = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        var started = new AtomicInteger();
+        var command = new ParallelGenericCyclicCommand<Integer, Integer>(worker -> new SimpleCommand(cancellationToken -> {
+            started.incrementAndGet();
+            cancellationToken.waitForCancellation(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+        }, "Core"), elements, 2);
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(2, started.get());
+        Assert.assertEquals(State.Idle, command.getElementState(19));
+    }
+
+    @Test
+    public void runAsyncTest() throws Exception {
+        // A sorted set is split through a snapshot, the results follow the order of the set
+        var elements = new TreeSet<>(Set.of("c", "a", "d", "b", "e"));
+        var command = new ParallelGenericCyclicCommand<String, String>(worker -> new SimpleCommand(
+                () -> worker.setResult(worker.getCurrentElement().toUpperCase()), "Core"), elements, 2);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(List.of("A", "B", "C", "D", "E"), command.getResults());
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+}
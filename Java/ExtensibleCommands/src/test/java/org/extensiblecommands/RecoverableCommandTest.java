@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 public class RecoverableCommandTest {
     @Rule
     public TestName name = new TestName();
@@ -258,6 +260,20 @@ public class RecoverableCommandTest {
         recoverableCommand.run();
     }
     
+    @Test
+    public void runAsyncTest() throws Exception {
+        // If an ExtensibleCommandsAllowRetryException is thrown, the command succeeds after exercising the recovery command
+        var coreCommand = new SimpleCommand(() -> { throw new ExtensibleCommandsAllowRetryException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "Core");
+        var recoveryCommand = new SimpleCommand(() -> { }, "Recovery");
+        var command = new RecoverableCommand(coreCommand, recoveryCommand, "Recoverable");
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(State.Failed, coreCommand.getState());
+        Assert.assertEquals(State.Completed, recoveryCommand.getState());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private RecoverableCommand createCorePauseAbortCommand(boolean stop) {
@@ -0,0 +1,231 @@
+package org.extensiblecommands;
+
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.Thread.sleep;
+
+public class ResourceReservationManagerTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void resourceAggregationTest() {
+        var move = new SimpleCommand("Move").setResources("Stage", "Laser");
+        var measure = new SimpleCommand("Measure").setResources("Camera");
+        var branch = new ParallelCommand("Branch").add(measure);
+        var command = new SequentialCommand("Root")
+            .add(move)
+            .add(new RetryCommand(branch, 3));
+
+        Assert.assertEquals(Set.of("Stage", "Laser"), move.getResources());
+        Assert.assertEquals(List.of("Camera", "Laser", "Stage"), new ArrayList<>(command.getResources()));
+
+        // Resources declared after the tree is built are aggregated as well
+        measure.setResources("Camera", "Stage", "Light");
+        Assert.assertEquals(List.of("Camera", "Laser", "Light", "Stage"), new ArrayList<>(command.getResources()));
+        Assert.assertTrue(new SequentialCommand("Empty").getResources().isEmpty());
+    }
+
+    @Test
+    public void conflictingRootsTest() throws Exception {
+        var manager = new ResourceReservationManager();
+        var executing = new AtomicInteger();
+        var maxExecuting = new AtomicInteger();
+
+        var roots = new ArrayList<Command>();
+        for (int i = 0; i < 4; i++) {
+            roots.add(new SequentialCommand("Root" + i)
+                .add(new SimpleCommand(() -> {
+                    maxExecuting.accumulateAndGet(executing.incrementAndGet(), Math::max);
+                    sleep(Setup.ThreadLatencyDelayMsec / 4);
+                    executing.decrementAndGet();
+                }, "Use" + i).setResources("Stage", "Resource" + i)));
+        }
+
+        runConcurrently(manager, roots);
+
+        // Roots sharing a resource are never executed simultaneously
+        Assert.assertEquals(1, maxExecuting.get());
+        Assert.assertEquals(4, manager.getNumberOfReservations());
+        Assert.assertTrue(manager.getNumberOfContendedReservations() > 0);
+        Assert.assertEquals(manager.getNumberOfContendedReservations(), manager.getWaitTimeHistogram().getTotalCount());
+        Assert.assertTrue(manager.getWaitTimeHistogram().getMaxNsec() > 0);
+        Assert.assertEquals(0, manager.getNumberOfActiveReservations());
+    }
+
+    @Test
+    public void independentRootsTest() throws Exception {
+        var manager = new ResourceReservationManager();
+        var roots = new ArrayList<Command>();
+        for (int i = 0; i < 4; i++) {
+            roots.add(new SequentialCommand("Root" + i)
+                .add(new SimpleCommand(() -> sleep(Setup.ThreadLatencyDelayMsec), "Use" + i).setResources("Resource" + i)));
+        }
+
+        var startTimeNsec = System.nanoTime();
+        runConcurrently(manager, roots);
+
+        // Roots using different resources are executed concurrently
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNsec) < 3 * Setup.ThreadLatencyDelayMsec);
+        Assert.assertEquals(4, manager.getNumberOfReservations());
+    }
+
+    @Test
+    public void tryReserveTest() throws Exception {
+        var manager = new ResourceReservationManager(4);
+        var first = new SimpleCommand("First").setResources("A", "B");
+        var second = new SimpleCommand("Second").setResources("B", "C");
+
+        try (var reservation = manager.reserve(first)) {
+            Assert.assertSame(first, reservation.getCommand());
+            Assert.assertEquals(1, manager.getNumberOfActiveReservations());
+
+            // The resource B is in use
+            Assert.assertNull(manager.tryReserve(second, 1, TimeUnit.MILLISECONDS));
+        }
+
+        // Closing the reservation releases the resources (closing it again has no effect)
+        var reservation = manager.tryReserve(second, 0, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(reservation);
+        reservation.close();
+        reservation.close();
+        Assert.assertEquals(0, manager.getNumberOfActiveReservations());
+
+        // A command without resources is admitted immediately
+        manager.reserve(SimpleCommand.NullCommand).close();
+    }
+
+    @Test
+    public void runAsyncTest() throws Exception {
+        var manager = new ResourceReservationManager();
+        var first = new SequentialCommand("First")
+            .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "Sleep"))
+            .add(new SimpleCommand("Use").setResources("Stage"));
+        var second = new SequentialCommand("Second").add(new SimpleCommand("Use").setResources("Stage"));
+
+        var firstFuture = manager.runAsync(first);
+        sleep(Setup.ThreadLatencyDelayMsec / 4);
+        var secondFuture = manager.runAsync(second);
+
+        Assert.assertEquals(State.Completed, firstFuture.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(State.Completed, secondFuture.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        // The second root has been admitted after the first one released the resource
+        Assert.assertTrue(second.getElapsedTimeMsec() < Setup.ThreadLatencyDelayMsec);
+        Assert.assertEquals(1, manager.getNumberOfContendedReservations());
+        Assert.assertEquals(0, manager.getNumberOfActiveReservations());
+    }
+
+    @Test
+    public void runAsyncWaitersTest() throws Exception {
+        // Roots waiting for their resources do not hold a thread of the default executor
+        var executor = Executors.newSingleThreadExecutor();
+        CommandExecutors.setDefaultExecutor(executor);
+        try {
+            var manager = new ResourceReservationManager();
+            var roots = new ArrayList<Command>();
+            var futures = new ArrayList<CompletableFuture<State>>();
+            for (int i = 0; i < 3; i++) {
+                var root = new SequentialCommand("Root" + i)
+                    .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "Sleep"))
+                    .add(new SimpleCommand("Use").setResources("Stage"));
+                roots.add(root);
+                futures.add(manager.runAsync(root));
+            }
+
+            var probeTimeNsec = System.nanoTime();
+            var probe = CompletableFuture.supplyAsync(System::nanoTime, executor).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(probe - probeTimeNsec) < Setup.ThreadLatencyDelayMsec / 2);
+
+            for (var future : futures)
+                Assert.assertEquals(State.Completed, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+            // The roots have been admitted one after the other
+            Assert.assertEquals(3, manager.getNumberOfReservations());
+            Assert.assertEquals(2, manager.getNumberOfContendedReservations());
+            Assert.assertEquals(0, manager.getNumberOfActiveReservations());
+            for (var root : roots)
+                Assert.assertEquals(State.Completed, root.getState());
+        }
+        finally {
+            CommandExecutors.setDefaultExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void nestedReservationTest() throws Exception {
+        // A nested run reserving a resource held by the enclosing run of the same thread is rejected instead of deadlocking
+        var manager = new ResourceReservationManager();
+        var error = new AtomicReference<RuntimeException>();
+        var inner = new SimpleCommand("Inner").setResources("Stage");
+        var outer = new SequentialCommand("Outer").add(new SimpleCommand(() -> {
+            try {
+                manager.run(inner);
+            }
+            catch (RuntimeException e) {
+                error.set(e);
+            }
+        }, "Use").setResources("Stage"));
+
+        manager.run(outer);
+
+        Assert.assertEquals(State.Completed, outer.getState());
+        Assert.assertEquals(State.Idle, inner.getState());
+        Assert.assertNotNull(error.get());
+        Assert.assertTrue(error.get().getMessage().contains("would deadlock"));
+
+        // Nested runs reserving other resources are admitted
+        var other = new SimpleCommand("Other").setResources("Camera");
+        var enclosing = new SequentialCommand("Enclosing").add(new SimpleCommand(() -> manager.run(other), "Use")
+                .setResources("Stage"));
+        manager.run(enclosing);
+
+        Assert.assertEquals(State.Completed, enclosing.getState());
+        Assert.assertEquals(State.Completed, other.getState());
+        Assert.assertEquals(0, manager.getNumberOfActiveReservations());
+    }
+
+    //----------------------------------------------------------------------------------------------------------------------
+
+    private static void runConcurrently(ResourceReservationManager manager, List<Command> roots) throws Exception {
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (var root : roots) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    manager.run(root);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, CommandExecutors.getDefaultExecutor()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+
+        for (var root : roots)
+            Assert.assertEquals(State.Completed, root.getState());
+    }
+}
@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 import static java.lang.Thread.sleep;
 
 public class RetryCommandTest {
@@ -230,6 +232,37 @@ public class RetryCommandTest {
         retryCommand.run();
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        counter = 0;
+        // If an ExtensibleCommandsAllowRetryException is thrown, the command exercises retries and fails only after finishing the last retry
+        var coreCommand = new SimpleCommand(() -> { counter++; throw new ExtensibleCommandsAllowRetryException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "Core");
+        var command = new RetryCommand(coreCommand, 10, Setup.ThreadLatencyDelayMsec, "Retry");
+
+        Assert.assertEquals(State.Failed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(10, counter);
+        Assert.assertEquals(10, command.getCurrentRetryIndex());
+        Assert.assertTrue(command.getElapsedTimeMsec() >= Setup.ThreadLatencyDelayMsec);
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+    }
+
+    @Test
+    public void abortDuringRetryDelayTest() throws Exception {
+        var command = new RetryCommand(new SimpleCommand("Core"), 3, 10 * Setup.WaitTimeoutMsec, "Retry");
+
+        // The retry delay is interrupted by Abort
+        Setup.runAndAbort(command);
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(command.getAbortLatencyNsec()) < Setup.ThreadLatencyDelayMsec);
+
+        var future = command.runAsync();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        command.abort();
+        Assert.assertEquals(State.Aborted, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(command.getAbortLatencyNsec()) < Setup.ThreadLatencyDelayMsec);
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private RetryCommand createPauseAbortRetryCommand(boolean pause) {
@@ -3,6 +3,15 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.lang.Thread.sleep;
 
 public class SequentialCommandTest {
@@ -67,6 +76,95 @@ public class SequentialCommandTest {
         Assert.assertEquals(State.Completed, command.getSubCommand(2).getState());
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        var command = new SequentialCommand("S")
+            .add(new AbortableSleepCommand(1, "A1"))
+            .add(new NonBlockingSleepCommand(1, "A2"))
+            .add(new AbortableSleepCommand(1, "A3"));
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(State.Completed, command.getSubCommand(0).getState());
+        Assert.assertEquals(State.Completed, command.getSubCommand(1).getState());
+        Assert.assertEquals(State.Completed, command.getSubCommand(2).getState());
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void runAsyncErrorTest() throws Exception {
+        var command = new SequentialCommand("Seq")
+            .add(new AbortableSleepCommand(1, "A1"))
+            .add(new SimpleCommand(() -> { throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);}))
+            .add(new AbortableSleepCommand(1, "A3"));
+
+        Assert.assertEquals(State.Failed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(State.Completed, command.getSubCommand(0).getState());
+        Assert.assertEquals(State.Failed,    command.getSubCommand(1).getState());
+        Assert.assertEquals(State.Idle,      command.getSubCommand(2).getState());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+    }
+
+    @Test
+    public void runAsyncManyRootsTest() throws Exception {
+        // One thread drives many roots: none of them holds a thread while its leaves are sleeping
+        var commands = new ArrayList<Command>();
+        var futures = new ArrayList<CompletableFuture<State>>();
+        for (int i = 0; i < 1000; i++) {
+            var command = new SequentialCommand(String.format("Seq %d", i))
+                .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A1"))
+                .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A2"));
+            commands.add(command);
+            futures.add(command.runAsync());
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+
+        for (var command : commands)
+            Assert.assertEquals(State.Completed, command.getState());
+    }
+
+    @Test
+    public void runAsyncOverlappingRunsTest() throws Exception {
+        // Runs of a running command wait for it without holding a thread of the default executor
+        var executor = Executors.newSingleThreadExecutor();
+        CommandExecutors.setDefaultExecutor(executor);
+        try {
+            var command = new SequentialCommand("Seq")
+                .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A1"));
+            var futures = new ArrayList<CompletableFuture<State>>();
+            for (int i = 0; i < 3; i++)
+                futures.add(command.runAsync());
+
+            var probeTimeNsec = System.nanoTime();
+            var probe = CompletableFuture.supplyAsync(System::nanoTime, executor).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(probe - probeTimeNsec) < Setup.ThreadLatencyDelayMsec / 2);
+
+            for (var future : futures)
+                Assert.assertEquals(State.Completed, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            CommandExecutors.setDefaultExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runAsyncAbortTest() throws Exception {
+        var command = new SequentialCommand("Seq")
+            .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A1"))
+            .add(new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec, "A2"));
+
+        var future = command.runAsync();
+        sleep(Setup.ThreadLatencyDelayMsec / 2);
+        command.abort();
+
+        Assert.assertEquals(State.Aborted, future.get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(State.Idle, command.getSubCommand(1).getState());
+    }
+
     @Test
     public void runErrorTest() throws Exception {
         var command = new SequentialCommand("Seq")
@@ -143,6 +241,111 @@ public class SequentialCommandTest {
         Assert.assertEquals(State.Idle, command.getSubCommand(2).getState());
     }
 
+    @Test
+    public void largeTreeAbortTest() throws Exception {
+        // 50000 leaves: Abort of the root is a single write found by the running sub-commands
+        var command = new SequentialCommand("Root");
+        for (int i = 0; i < 1000; i++) {
+            var branch = new SequentialCommand("B" + i);
+            for (int j = 0; j < 50; j++)
+                branch.add(new SimpleCommand("B" + i + "-" + j));
+            command.add(branch);
+        }
+        var abortingBranch = (SequentialCommand) command.getSubCommand(500);
+        abortingBranch.add(new SimpleCommand(command::abort, "Abort"));
+        abortingBranch.add(new SimpleCommand("After abort"));
+
+        command.run();
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(State.Completed, command.getSubCommand(499).getState());
+        Assert.assertEquals(State.Aborted, abortingBranch.getState());
+        Assert.assertEquals(State.Idle, abortingBranch.getSubCommand(51).getState());
+        Assert.assertEquals(State.Idle, command.getSubCommand(501).getState());
+
+        // Sub-commands run on their own are not affected by the Abort of the root
+        command.getSubCommand(501).run();
+        Assert.assertEquals(State.Completed, command.getSubCommand(501).getState());
+    }
+
+    @Test
+    public void ancestorAbortTest() throws Exception {
+        // Abort of the root reaches a descendant overriding Abort() (notified explicitly)
+        // and a descendant waiting on its cancellation token (linked to the token of its invoker)
+        var overriding = new AbortableSleepCommand(Setup.WaitTimeoutMsec, "Overriding");
+        var cancellable = new CancellableSleepCommand(Setup.WaitTimeoutMsec, "Cancellable");
+        var command = new SequentialCommand("Root")
+            .add(new ParallelCommand("Branch").add(overriding).add(cancellable));
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(State.Aborted, overriding.getState());
+        Assert.assertEquals(State.Aborted, cancellable.getState());
+        Assert.assertTrue(command.getElapsedTimeMsec() < Setup.WaitTimeoutMsec);
+    }
+
+    @Test
+    public void nestedPauseResumeTest() throws Exception {
+        // The root is paused from a nested command: the nested commands started after the pause are paused as well
+        var command = new SequentialCommand("Root");
+        var branch = new SequentialCommand("Branch")
+            .add(new SimpleCommand(() -> {}, "B1"))
+            .add(new SimpleCommand(command::pause, "B2-Pause"))
+            .add(new SimpleCommand(() -> {}, "B3"));
+        command.add(new SimpleCommand(() -> {}, "S1"));
+        command.add(branch);
+        command.add(new SimpleCommand(() -> {}, "S3"));
+
+        ExecutionDelegate assertAfterPause = () -> {
+            Assert.assertEquals(State.Executing, branch.getState());
+            Assert.assertEquals(State.Completed, branch.getSubCommand(1).getState());
+            Assert.assertEquals(State.Idle, branch.getSubCommand(2).getState());
+        };
+
+        Setup.pauseAndResume(command, assertAfterPause);
+
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(State.Completed, branch.getSubCommand(2).getState());
+        Assert.assertEquals(State.Completed, command.getSubCommand(2).getState());
+    }
+
+    @Test
+    public void nestedAbortWhilePausedTest() throws Exception {
+        // Abort of a nested command wakes it up even though the root is still paused
+        var command = new SequentialCommand("Root");
+        var branch = new SequentialCommand("Branch")
+            .add(new SimpleCommand(command::pause, "B1-Pause"))
+            .add(new SimpleCommand(() -> {}, "B2"));
+        command.add(branch);
+        command.add(new SimpleCommand(() -> {}, "S2"));
+
+        command.resetFinished();
+        new Thread(() -> {
+            try {
+                command.run();
+            }
+            catch (Exception e) {
+                // Ignore
+            }
+        }).start();
+        sleep(Setup.ThreadLatencyDelayMsec);
+
+        Assert.assertEquals(State.Executing, branch.getState());
+        branch.abort();
+        sleep(Setup.ThreadLatencyDelayMsec);
+
+        // The branch is aborted, the root waits for Resume before checking it
+        Assert.assertEquals(State.Aborted, branch.getState());
+        Assert.assertEquals(State.Idle, branch.getSubCommand(1).getState());
+        Assert.assertEquals(State.Executing, command.getState());
+
+        command.resume();
+        command.waitUntilFinished(Setup.WaitTimeoutMsec);
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(State.Idle, command.getSubCommand(1).getState());
+    }
+
     @Test
     public void retrieveSubCommandsTest() {
         var command = new SequentialCommand("Main")
@@ -174,6 +377,84 @@ public class SequentialCommandTest {
         Assert.assertEquals(4, command.getChildren().spliterator().getExactSizeIfKnown());        // Make sure multiple calls produce the same result
     }
 
+    @Test
+    public void treeIndexTest() {
+        var branch = new SequentialCommand("Branch")
+            .add(new SimpleCommand("B1"))
+            .add(new SimpleCommand("B2"));
+        var command = (SequentialCommand) new SequentialCommand("Main")
+            .add(new SimpleCommand("A1"))
+            .add(new RetryCommand(branch, 3));
+
+        Assert.assertEquals(5, command.getDescendants().spliterator().getExactSizeIfKnown());
+        Assert.assertEquals(3, command.getNumberOfLeaves());
+        Assert.assertEquals(3, command.getDepth());
+        Assert.assertEquals("B2", command.getLeaves().get(2).getName());
+
+        // Index is cached and exposed through read-only views
+        Assert.assertSame(command.getDescendants(), command.getDescendants());
+        boolean exceptionCaught = false;
+        try {
+            ((List<Command>) command.getChildren()).add(SimpleCommand.NullCommand);
+        }
+        catch (UnsupportedOperationException e) {
+            exceptionCaught = true;
+        }
+        Assert.assertTrue(exceptionCaught);
+
+        // Adding a sub-command to a descendant invalidates the index of the ancestors
+        var other = new SequentialCommand("Other").add(new SimpleCommand("O1"));
+        var otherDescendants = other.getDescendants();
+        branch.add(new SimpleCommand("B3"));
+        Assert.assertEquals(6, command.getDescendants().spliterator().getExactSizeIfKnown());
+        Assert.assertEquals(4, command.getNumberOfLeaves());
+
+        // ... but not the index of the other trees
+        Assert.assertSame(otherDescendants, other.getDescendants());
+        var descendants = command.getDescendants();
+        other.add(new SimpleCommand("O2"));
+        ((SimpleCommand) other.getSubCommand(0)).setResources("Camera");
+        Assert.assertSame(descendants, command.getDescendants());
+        Assert.assertEquals(Set.of("Camera"), other.getResources());
+
+        // A sub-command shared between two trees invalidates the indexes of both trees through its parent links
+        var shared = new SequentialCommand("Shared").add(new SimpleCommand("S1"));
+        var tree1 = new SequentialCommand("Tree1").add(new RetryCommand(shared, 2));
+        var tree2 = new SequentialCommand("Tree2").add(shared);
+        Assert.assertEquals(1, tree1.getNumberOfLeaves());
+        Assert.assertEquals(1, tree2.getNumberOfLeaves());
+        shared.add(new SimpleCommand("S2"));
+        Assert.assertEquals(2, tree1.getNumberOfLeaves());
+        Assert.assertEquals(2, tree2.getNumberOfLeaves());
+    }
+
+    @Test
+    public void progressUpdateThroughDecoratorsTest() throws Exception {
+        var branch = new SequentialCommand("Branch")
+            .add(new SimpleCommand("B1"))
+            .add(new SimpleCommand("B2"));
+        var command = new SequentialCommand("Main")
+            .add(new SimpleCommand("A1"))
+            .add(new RetryCommand(branch, 3))
+            .add(new ConditionalCommand(() -> true, new SimpleCommand("True"), new SimpleCommand("False")));
+
+        var d = command.getProgressUpdateObservable().subscribe(p -> onProgressUpdate(p));
+        numberOfUpdates = 0;
+        try {
+            command.run();
+        }
+        finally {
+            d.dispose();
+        }
+
+        // Leaves notify all running ancestors: 4 of 5 leaves are completed (the False branch is never executed)
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(80, command.getPercentCompleted());
+        Assert.assertEquals(80, percentComplete);
+        Assert.assertEquals(4, numberOfUpdates);
+        Assert.assertEquals(100, branch.getPercentCompleted());
+    }
+
     @Test
     public void progressUpdateTest() throws Exception {
         //--------------------- Normal completion ------------
@@ -316,6 +597,115 @@ public class SequentialCommandTest {
         sequentialCommand.run();
     }
 
+    @Test
+    public void estimatedTimeTest() {
+        var a = new SimpleCommand("A");
+        var b = new SimpleCommand("B");
+        var c = new SimpleCommand("C");
+        a.setEstimatedTime(Duration.ofMillis(10));
+        b.setEstimatedTime(Duration.ofMillis(20));
+        c.setEstimatedTime(Duration.ofMillis(30));
+
+        var parallel = new ParallelCommand("Parallel");
+        parallel.add(b).add(c);
+        var command = new SequentialCommand("Main")
+            .add(a)
+            .add(parallel)
+            .add(new CyclicCommand(a, 3))
+            .add(new ConditionalCommand(() -> true, b, c).setTrueProbability(0.9))
+            .add(new RecoverableCommand(a, c));
+
+        // Sequential sums, Parallel takes the longest, Cyclic multiplies, Conditional weights branches by probability
+        Assert.assertEquals(30, parallel.getEstimatedTime().toMillis());
+        Assert.assertEquals(10 + 30 + 3 * 10 + 21 + 10, command.getEstimatedTime().toMillis());
+
+        // Limited parallelism spreads the total time over the allowed number of branches
+        parallel.setMaxDegreeOfParallelism(1);
+        Assert.assertEquals(50, parallel.getEstimatedTime().toMillis());
+
+        // Explicit estimate overrides the calculated one
+        command.setEstimatedTime(Duration.ofSeconds(1));
+        Assert.assertEquals(1_000_000_000L, command.getEstimatedTimeNsec());
+        command.setEstimatedTime(null);
+        Assert.assertEquals(10 + 50 + 3 * 10 + 21 + 10, command.getEstimatedTime().toMillis());
+
+        // Unknown estimates
+        Assert.assertEquals(0, new SequentialCommand().add(new SimpleCommand("X")).getEstimatedTimeNsec());
+    }
+
+    @Test
+    public void cachedLeafWeightsTest() throws Exception {
+        var numberOfEstimations = new AtomicInteger();
+        var estimated = new SimpleCommand("Estimated") {
+            @Override
+            protected long estimateTimeNsec() {
+                numberOfEstimations.incrementAndGet();
+                return Duration.ofMillis(30).toNanos();
+            }
+        };
+        var other = new SimpleCommand("Other");
+        other.setEstimatedTime(Duration.ofMillis(10));
+        var command = new SequentialCommand("Main")
+            .add(new SequentialCommand("Branch").add(estimated))
+            .add(other);
+
+        var percents = new ArrayList<Integer>();
+        var d = command.getProgressUpdateObservable().subscribe(p -> percents.add(p.getPercentCompleted()));
+        try {
+            // The weights and the estimated times are captured by the structural indexes, not re-estimated on every run
+            command.run();
+            var numberOfFirstRunEstimations = numberOfEstimations.get();
+            command.run();
+            command.run();
+            Assert.assertEquals(numberOfFirstRunEstimations, numberOfEstimations.get());
+            Assert.assertEquals(List.of(75, 100, 75, 100, 75, 100), percents);
+
+            // Setting an estimated time explicitly invalidates the captured weights
+            percents.clear();
+            other.setEstimatedTime(Duration.ofMillis(90));
+            command.run();
+            Assert.assertEquals(List.of(25, 100), percents);
+        }
+        finally {
+            d.dispose();
+        }
+    }
+
+    @Test
+    public void weightedProgressUpdateTest() throws Exception {
+        var shortCommand = new SimpleCommand("Short");
+        var longCommand = new SimpleCommand(() -> Thread.sleep(Setup.ThreadLatencyDelayMsec), "Long");
+        var unknownCommand = new SimpleCommand("Unknown");
+        shortCommand.setEstimatedTime(Duration.ofMillis(10));
+        longCommand.setEstimatedTime(Duration.ofMillis(70));
+
+        var command = new SequentialCommand("Main")
+            .add(shortCommand)
+            .add(longCommand)
+            .add(unknownCommand);
+
+        var updates = new ArrayList<ProgressUpdate>();
+        var d = command.getProgressUpdateObservable().subscribe(updates::add);
+        try {
+            command.run();
+        }
+        finally {
+            d.dispose();
+        }
+
+        // The leaf without estimate weighs as much as an average leaf with estimate (40 msec), 120 msec in total
+        Assert.assertEquals(3, updates.size());
+        Assert.assertEquals(8, updates.get(0).getPercentCompleted());
+        Assert.assertEquals(66, updates.get(1).getPercentCompleted());
+        Assert.assertEquals(100, updates.get(2).getPercentCompleted());
+
+        // Remaining time is estimated from the estimated time of the command (10 + 70 + 0 msec)
+        Assert.assertTrue(updates.get(0).isRemainingTimeEstimated());
+        Assert.assertEquals(73, updates.get(0).getEstimatedRemainingTimeMsec());
+        Assert.assertEquals(26, updates.get(1).getEstimatedRemainingTimeMsec());
+        Assert.assertEquals(0, updates.get(2).getEstimatedRemainingTimeMsec());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private void onProgressUpdate(ProgressUpdate progressUpdate) {
@@ -3,6 +3,10 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.lang.Thread.sleep;
 
 public class SimpleCommandTest {
@@ -243,6 +247,142 @@ public class SimpleCommandTest {
 
     //----------------------------------------------------------------------------------------------------------------------
 
+    @Test
+    public void interruptibleAbortTest() throws Exception {
+        var isInterruptLeaked = new AtomicBoolean();
+        var command = new SimpleCommand(() -> sleep(10L * Setup.WaitTimeoutMsec), "Sleep").setIsInterruptible(true);
+        Assert.assertTrue(command.getIsInterruptible());
+
+        command.resetFinished();
+        var thread = new Thread(() -> {
+            try {
+                command.run();
+                isInterruptLeaked.set(Thread.currentThread().isInterrupted());
+            }
+            catch (Exception e) {
+                // Ignore
+            }
+        });
+        thread.start();
+        sleep(Setup.ThreadLatencyDelayMsec);
+
+        command.abort();
+        command.waitUntilFinished(Setup.WaitTimeoutMsec);
+        thread.join(Setup.WaitTimeoutMsec);
+
+        // The blocked thread is woken up right away, and the interrupt does not outlive the command
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertTrue(command.getAbortLatencyNsec() > 0);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(command.getAbortLatencyNsec()) < Setup.ThreadLatencyDelayMsec);
+        Assert.assertFalse(isInterruptLeaked.get());
+
+        // Without Abort, an interruptible command completes normally
+        Assert.assertEquals(State.Completed, new SimpleCommand(() -> sleep(10), "Short").setIsInterruptible(true).runAsync()
+                .get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancellationTokenTest() throws Exception {
+        var callbackCount = new AtomicInteger();
+        var command = new SimpleCommand(token -> {
+            var d = token.register(callbackCount::incrementAndGet);
+            try {
+                // Wait for Abort instead of sleeping
+                Assert.assertTrue(token.waitForCancellation(10L * Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+                Assert.assertTrue(token.isCancellationRequested());
+            }
+            finally {
+                d.dispose();
+            }
+        }, "Token");
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(1, callbackCount.get());
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(command.getAbortLatencyNsec()) < Setup.ThreadLatencyDelayMsec);
+
+        // Callbacks registered after the cancellation are invoked immediately
+        command.getCancellationToken().register(callbackCount::incrementAndGet);
+        Assert.assertEquals(2, callbackCount.get());
+
+        // The wait expires if the command is not aborted
+        var token = new SimpleCommand("Token").getCancellationToken();
+        Assert.assertFalse(token.waitForCancellationAsync(1, TimeUnit.MILLISECONDS).get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(token.waitForCancellation(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void checkpointTest() throws Exception {
+        var iterations = new AtomicInteger();
+        var command = new SimpleCommand(token -> {
+            while (true) {
+                token.checkpoint();
+                iterations.incrementAndGet();
+                sleep(1);
+            }
+        }, "Loop");
+
+        command.resetFinished();
+        new Thread(() -> {
+            try {
+                command.run();
+            }
+            catch (Exception e) {
+                // Ignore
+            }
+        }).start();
+        sleep(Setup.ThreadLatencyDelayMsec);
+
+        // The operation stops at the next checkpoint while paused...
+        command.pause();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        var pausedIterations = iterations.get();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        Assert.assertEquals(pausedIterations, iterations.get());
+        Assert.assertEquals(State.Executing, command.getState());
+
+        // ...continues when resumed...
+        command.resume();
+        sleep(Setup.ThreadLatencyDelayMsec);
+        Assert.assertTrue(iterations.get() > pausedIterations);
+
+        // ...and terminates on Abort
+        command.abort();
+        command.waitUntilFinished(Setup.WaitTimeoutMsec);
+        Assert.assertEquals(State.Aborted, command.getState());
+
+        // Checkpoints of a command that is not running do nothing (even after an aborted run)
+        command.checkpoint();
+        command.getCancellationToken().checkpoint();
+        new SimpleCommand("Idle").checkpoint();
+        new CancellationToken().checkpoint();
+    }
+
+    @Test
+    public void checkpointInTreeTest() throws Exception {
+        // Checkpoints of a running leaf pass while nothing is requested
+        var leaf = new SimpleCommand(token -> {
+            for (int i = 0; i < 1000; i++)
+                token.checkpoint();
+        }, "Leaf");
+        var root = new SequentialCommand("Root").add(leaf);
+
+        root.run();
+        Assert.assertEquals(State.Completed, leaf.getState());
+
+        // Abort of the root is found by the checkpoint of the running leaf
+        var aborting = new SequentialCommand("Root");
+        aborting.add(new SimpleCommand(token -> {
+            aborting.abort();
+            token.checkpoint();
+            Assert.fail("Checkpoint must throw after Abort");
+        }, "Leaf"));
+        aborting.run();
+        Assert.assertEquals(State.Aborted, aborting.getState());
+        Assert.assertEquals(State.Aborted, aborting.getSubCommand(0).getState());
+    }
+
     private int commandStartedCount;
     private int commandCompletedCount;
     private int commandFailedCount;
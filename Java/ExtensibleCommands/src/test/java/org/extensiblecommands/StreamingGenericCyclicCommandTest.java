@@ -0,0 +1,225 @@
+package org.extensiblecommands;
+
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import org.junit.*;
+import org.junit.rules.TestName;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class StreamingGenericCyclicCommandTest {
+    @Rule
+    public TestName name = new TestName();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Setup.InitLog();
+    }
+
+    @Before
+    public void setUpTest() {
+        Logger.log(Logger.LogLevel.Info,
+                "----------------------------------------------------------------------------------------------------------");
+        Logger.log(Logger.LogLevel.Info,
+                String.format("Starting Test %s:%s", this.getClass().getName(), name.getMethodName()));
+    }
+
+    @Test
+    public void constructionTest() {
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"), Flowable.range(0, 10));
+        Assert.assertEquals("Streaming Generic Cyclic", command.getName());
+        Assert.assertEquals(StreamingGenericCyclicCommand.DefaultPrefetch, command.getPrefetch());
+        Assert.assertEquals(0, command.getCurrentCycle());
+
+        // Malformed cases
+        var error = Assert.assertThrows(RuntimeException.class,
+                () -> new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"), (Iterator<Integer>) null));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class,
+                () -> new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"), (Stream<Integer>) null));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class,
+                () -> new StreamingGenericCyclicCommand<>(null, Flowable.range(0, 10)));
+        Assert.assertTrue(error.getMessage().contains("is NULL"));
+        error = Assert.assertThrows(RuntimeException.class, () -> command.setPrefetch(0));
+        Assert.assertTrue(error.getMessage().contains("must be positive"));
+        Assert.assertThrows(RuntimeException.class, () -> command.setExpectedNumberOfElements(-1));
+    }
+
+    @Test
+    public void iteratorTest() throws Exception {
+        // The iterator is advanced only when the next cycle starts
+        var numberOfPulled = new AtomicInteger();
+        var iterator = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return numberOfPulled.get() < 50;
+            }
+
+            @Override
+            public Integer next() {
+                return numberOfPulled.incrementAndGet();
+            }
+        };
+        var processed = new ArrayList<Integer>();
+        var maxPulledAhead = new AtomicInteger();
+        var command = new StreamingGenericCyclicCommand<Integer>(new SimpleCommand(() -> {
+            processed.add(numberOfPulled.get());
+            maxPulledAhead.accumulateAndGet(numberOfPulled.get() - processed.size(), Math::max);
+        }, "Core"), iterator);
+
+        var percents = new CopyOnWriteArrayList<Integer>();
+        var subscription = command.getProgressUpdateObservable().subscribe(update -> percents.add(update.getPercentCompleted()));
+        try {
+            Setup.runAndWaitForNormalCompletion(command);
+        }
+        finally {
+            subscription.dispose();
+        }
+
+        Assert.assertEquals(50, command.getCurrentCycle());
+        Assert.assertEquals(50, processed.size());
+        Assert.assertEquals(0, maxPulledAhead.get());
+
+        // The number of elements is not known until the iterator is exhausted
+        Assert.assertEquals(100, command.getPercentCompleted());
+        Assert.assertFalse(percents.isEmpty());
+        Assert.assertTrue(percents.stream().allMatch(percent -> percent == 0 || percent == 100));
+        Assert.assertEquals(100, (int) percents.get(percents.size() - 1));
+    }
+
+    @Test
+    public void streamTest() throws Exception {
+        var isClosed = new AtomicBoolean();
+        var stream = IntStream.range(0, 20).boxed().onClose(() -> isClosed.set(true));
+        var sum = new AtomicInteger();
+        var holder = new AtomicReference<StreamingGenericCyclicCommand<Integer>>();
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand(
+                () -> sum.addAndGet(holder.get().getCurrentElement()), "Core"), stream);
+        holder.set(command);
+
+        var numberOfUpdates = new AtomicInteger();
+        var subscription = command.getProgressUpdateObservable().subscribe(update -> numberOfUpdates.incrementAndGet());
+        try {
+            Setup.runAndWaitForNormalCompletion(command);
+        }
+        finally {
+            subscription.dispose();
+        }
+
+        // The size of the stream is known: the progress counts the elements
+        Assert.assertEquals(190, sum.get());
+        Assert.assertEquals(20, command.getCurrentCycle());
+        Assert.assertTrue(isClosed.get());
+        Assert.assertEquals(100, command.getPercentCompleted());
+        Assert.assertTrue(numberOfUpdates.get() >= 20);
+    }
+
+    @Test
+    public void flowableBackpressureTest() throws Exception {
+        // The elements are emitted on another thread, only the prefetch window is requested in advance
+        var requested = new AtomicLong();
+        var processed = new AtomicInteger();
+        var maxRequestedAhead = new AtomicLong();
+        var flowable = Flowable.range(0, 1000)
+                .subscribeOn(Schedulers.io())
+                .doOnRequest(requested::addAndGet);
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand(() -> {
+            processed.incrementAndGet();
+            maxRequestedAhead.accumulateAndGet(requested.get() - processed.get(), Math::max);
+        }, "Core"), flowable).setPrefetch(16);
+
+        Setup.runAndWaitForNormalCompletion(command);
+
+        Assert.assertEquals(1000, processed.get());
+        Assert.assertEquals(1000, command.getCurrentCycle());
+        Assert.assertTrue(maxRequestedAhead.get() <= 16);
+        Assert.assertEquals(100, command.getPercentCompleted());
+
+        // The Flowable is subscribed again on every run
+        command.run();
+        Assert.assertEquals(State.Completed, command.getState());
+        Assert.assertEquals(2000, processed.get());
+    }
+
+    @Test
+    public void expectedNumberOfElementsTest() throws Exception {
+        var percents = new CopyOnWriteArrayList<Integer>();
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"), Flowable.range(0, 10))
+                .setExpectedNumberOfElements(10);
+        var subscription = command.getProgressUpdateObservable().subscribe(update -> percents.add(update.getPercentCompleted()));
+        try {
+            Setup.runAndWaitForNormalCompletion(command);
+        }
+        finally {
+            subscription.dispose();
+        }
+
+        Assert.assertTrue(percents.contains(50));
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        var isClosed = new AtomicBoolean();
+        var stream = Stream.iterate(1, i -> i + 1).onClose(() -> isClosed.set(true));
+        var holder = new AtomicReference<StreamingGenericCyclicCommand<Integer>>();
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand(() -> {
+            if (holder.get().getCurrentElement() == 3)
+                throw new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription);
+        }, "Core"), stream);
+        holder.set(command);
+
+        Setup.runAndWaitForFailure(command);
+
+        Assert.assertEquals(3, command.getCurrentCycle());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+        Assert.assertTrue(isClosed.get());
+
+        // Failure of the source
+        var failing = new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"),
+                Flowable.<Integer>error(new ExtensibleCommandsException(Setup.TestErrorCode, Setup.TestErrorDescription)));
+        failing.run();
+        Assert.assertEquals(State.Failed, failing.getState());
+        Assert.assertEquals(Setup.TestErrorCode, failing.getException().getId());
+    }
+
+    @Test
+    public void abortWhileWaitingTest() throws Exception {
+        // The source never emits: Abort interrupts the wait for the next element
+        var isCancelled = new AtomicBoolean();
+        var command = new StreamingGenericCyclicCommand<>(new SimpleCommand("Core"),
+                Flowable.concat(Flowable.just(1), Flowable.<Integer>never()).doOnCancel(() -> isCancelled.set(true)));
+
+        Setup.runAndAbort(command);
+
+        Assert.assertEquals(State.Aborted, command.getState());
+        Assert.assertEquals(1, command.getCurrentCycle());
+        Assert.assertTrue(command.getAbortLatencyNsec() < TimeUnit.MILLISECONDS.toNanos(Setup.ThreadLatencyDelayMsec));
+        Assert.assertTrue(isCancelled.get());
+    }
+
+    @Test
+    public void runAsyncTest() throws Exception {
+        var flowable = Flowable.fromIterable(List.of("a", "b", "c", "d"))
+                .concatMap(element -> Flowable.just(element).delay(Setup.ThreadLatencyDelayMsec / 4, TimeUnit.MILLISECONDS));
+        var command = new StreamingGenericCyclicCommand<>(
+                new NonBlockingSleepCommand(Setup.ThreadLatencyDelayMsec / 4, "Core"), flowable).setPrefetch(2);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(4, command.getCurrentCycle());
+        Assert.assertEquals("d", command.getCurrentElement());
+        Assert.assertEquals(100, command.getPercentCompleted());
+    }
+}
@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 import static java.lang.Thread.sleep;
 
 public class TryCatchFinallyCommandTest {
@@ -316,6 +318,20 @@ public class TryCatchFinallyCommandTest {
         tryCatchFinallyCommand.run();
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        // If an ExtensibleCommandsAllowRecoveryException is thrown inside the Core command, the Finally command executes but the command fails
+        var coreCommand = new SimpleCommand(() -> { throw new ExtensibleCommandsAllowRecoveryException(Setup.TestErrorCode, Setup.TestErrorDescription); }, "Core");
+        var finallyCommand = new SimpleCommand(() -> { }, "Finally");
+        var command = new TryCatchFinallyCommand(coreCommand, finallyCommand, "Try-Catch-Finally");
+
+        Assert.assertEquals(State.Failed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(State.Failed, coreCommand.getState());
+        Assert.assertEquals(State.Completed, finallyCommand.getState());
+        Assert.assertEquals(Setup.TestErrorCode, command.getException().getId());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private TryCatchFinallyCommand createCorePauseAbortCommand(boolean pause) {
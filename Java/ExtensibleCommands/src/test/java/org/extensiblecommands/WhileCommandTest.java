@@ -3,6 +3,8 @@ package org.extensiblecommands;
 import org.junit.*;
 import org.junit.rules.TestName;
 
+import java.util.concurrent.TimeUnit;
+
 import static java.lang.Thread.sleep;
 
 public class WhileCommandTest {
@@ -273,6 +275,22 @@ public class WhileCommandTest {
         whileCommand.run();
     }
 
+    @Test
+    public void runAsyncTest() throws Exception {
+        var command = createWhileCommand(true);
+
+        Assert.assertEquals(State.Completed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(State.Completed, command.getInitCommand().getState());
+        Assert.assertEquals(State.Completed, command.getCoreCommand().getState());
+        Assert.assertEquals(5, command.getCurrentCycle());
+
+        command = createWhileCommandError(true);
+
+        Assert.assertEquals(State.Failed, command.runAsync().get(Setup.WaitTimeoutMsec, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, command.getCurrentCycle());
+    }
+
     //----------------------------------------------------------------------------------------------------------------------
 
     private int counter;
@@ -0,0 +1,45 @@
+package org.extensiblecommands;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the iteration cost of cyclic commands (1000 cycles of an empty core command per operation)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CyclicCommandBenchmark {
+    private static final int NumberOfCycles = 1000;
+
+    private CyclicCommand cyclicCommand;
+    private GenericCyclicCommand<Integer> genericCyclicCommand;
+
+    @Setup
+    public void setUp() {
+        cyclicCommand = new CyclicCommand(new SimpleCommand(() -> { }, "Core"), NumberOfCycles);
+
+        var elements = new ArrayList<Integer>();
+        for (int i = 0; i < NumberOfCycles; i++)
+            elements.add(i);
+        genericCyclicCommand = new GenericCyclicCommand<>(new SimpleCommand(() -> { }, "Core"), elements);
+    }
+
+    @Benchmark
+    public Object cyclic() throws Exception {
+        cyclicCommand.run();
+        return cyclicCommand.getException();
+    }
+
+    @Benchmark
+    public Object genericCyclic() throws Exception {
+        genericCyclicCommand.run();
+        return genericCyclicCommand.getException();
+    }
+}
@@ -0,0 +1,46 @@
+package org.extensiblecommands;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of logging state transitions (to a logger discarding messages) compared to disabled logging
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggingBenchmark {
+    /**
+     * Is Info logging enabled?
+     */
+    @Param({"true", "false"})
+    public boolean isLoggingEnabled;
+
+    private Command command;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        Logger.setLogger((timestamp, level, message) -> blackhole.consume(message));
+        Logger.setIsLoggingEnabled(isLoggingEnabled);
+
+        command = SequentialCommandBenchmark.createChain(10);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.setLogger(null);
+        Logger.setIsLoggingEnabled(true);
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        command.run();
+        return command.getException();
+    }
+}
@@ -0,0 +1,53 @@
+package org.extensiblecommands;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the fan-out/join overhead of a parallel command on the shared worker pool
+ * and on a thread-per-task executor (behavior of the earlier library versions)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelCommandBenchmark {
+    /**
+     * Number of parallel branches
+     */
+    @Param({"2", "16", "128"})
+    public int fanOut;
+
+    /**
+     * Executor running the branches
+     */
+    @Param({"pool", "threadPerTask"})
+    public String executor;
+
+    private ExecutorService pool;
+    private ParallelCommand command;
+
+    @Setup
+    public void setUp() {
+        pool = CommandExecutors.newCachedThreadPool("Benchmark");
+        command = new ParallelCommand("Parallel", executor.equals("pool") ? pool : CommandExecutors.threadPerTask());
+        for (int i = 0; i < fanOut; i++)
+            command.add(new SimpleCommand(() -> { }, "Branch " + i));
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        command.run();
+        return command.getException();
+    }
+}
@@ -0,0 +1,54 @@
+package org.extensiblecommands;
+
+import io.reactivex.disposables.Disposable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of progress propagation from the leaves to the root (observed by a subscriber)
+ * for a deep tree (nested sequential commands) and a wide tree (one sequential command with many leaves)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressBenchmark {
+    /**
+     * Shape of the command tree
+     */
+    @Param({"deep", "wide"})
+    public String shape;
+
+    private Command command;
+    private Disposable subscription;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        if (shape.equals("deep")) {
+            command = SequentialCommandBenchmark.createChain(64);
+        }
+        else {
+            var sequentialCommand = new SequentialCommand("Wide");
+            for (int i = 0; i < 1000; i++)
+                sequentialCommand.add(new SimpleCommand(() -> { }, "Leaf " + i));
+            command = sequentialCommand;
+        }
+        subscription = command.getProgressUpdateObservable().subscribe(blackhole::consume);
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscription.dispose();
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        command.run();
+        return command.getException();
+    }
+}
@@ -0,0 +1,48 @@
+package org.extensiblecommands;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-run overhead of a chain of nested sequential commands: every level runs a leaf and the next level
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SequentialCommandBenchmark {
+    /**
+     * Number of nested levels
+     */
+    @Param({"1", "10", "100"})
+    public int depth;
+
+    private Command command;
+
+    @Setup
+    public void setUp() {
+        command = createChain(depth);
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        command.run();
+        return command.getException();
+    }
+
+    /**
+     * Create a chain of nested sequential commands
+     * @param depth         Number of nested levels
+     * @return              Top level command
+     */
+    static Command createChain(int depth) {
+        CompositeCommand level = new SequentialCommand("Level " + depth).add(new SimpleCommand(() -> { }, "Leaf"));
+        for (int i = depth - 1; i > 0; i--)
+            level = new SequentialCommand("Level " + i).add(new SimpleCommand(() -> { }, "Leaf")).add(level);
+        return level;
+    }
+}
@@ -0,0 +1,30 @@
+package org.extensiblecommands;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-run overhead of a simple command (i.e. the cost of the command engine around an empty delegate)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimpleCommandBenchmark {
+    private SimpleCommand command;
+
+    @Setup
+    public void setUp() {
+        command = new SimpleCommand(() -> { }, "Simple");
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        command.run();
+        return command.getException();
+    }
+}